@@ -27,11 +27,47 @@ import java.util.List;
  */
 public abstract class AbstractHandlingThread extends Thread {
   protected final ServerBase server;
+  protected Waiter waiter = new Waiter(this);
 
   public AbstractHandlingThread(ServerBase server){
     this.server = server;
   }
   
+  /**
+   * Waiter idling this thread, holds stats of spins and parks.
+   * @return the waiter
+   */
+  public Waiter getWaiter() {
+    return waiter;
+  }
+  
+  /**
+   * Wakes thread up if it idles, so it goes through its jobs again.
+   */
+  public void wakeup() {
+    this.waiter.signal();
+  }
+  
+  /**
+   * Tells thread that its job can progress, called by other threads when 
+   * job blocking handlers finish.
+   * 
+   * @param job job owned by this thread
+   */
+  public void jobReady(DataHandler job) {
+    this.wakeup();
+  }
+  
+  /**
+   * Gives buffers and deflaters cached by current thread back to their 
+   * pools. Must be called by any thread handling requests when it finishes,
+   * its caches would never be used again.
+   */
+  public static void releaseThreadCaches() {
+    DirectBufferPool.releaseThreadCache();
+    DeflaterPool.releaseThreadCache();
+  }
+  
   abstract public long getJobsAdded();
 
   abstract public long getJobsRemoved();
@@ -0,0 +1,131 @@
+/*
+ * topNET
+ * Fast HTTP Server Solution.
+ * Copyright 2016, Qubit Group <www.qubit.com>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  
+ * If not, see <https://www.gnu.org/licenses/lgpl-3.0.en.html>
+ * 
+ * Author: Peter Fronc <peter.fronc@qubitdigital.com>
+ */
+
+package com.qubit.topnet;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool running handling chains with blocking handlers (see 
+ * {@link Handler#isBlocking()}) away from IO handling threads. Pool has 
+ * fixed threads amount and limited queue of waiting requests, when both are
+ * full request is rejected and answered with 503 right away.
+ * 
+ * @author Peter Fronc <peter.fronc@qubitdigital.com>
+ */
+public class BlockingHandlersPool {
+
+  private final ThreadPoolExecutor executor;
+  private final AtomicLong rejectedCounter = new AtomicLong();
+
+  /**
+   * @param threadsAmount threads running blocking handlers
+   * @param queueSize max requests waiting for free thread
+   */
+  public BlockingHandlersPool(int threadsAmount, int queueSize) {
+    final AtomicInteger threadsCounter = new AtomicInteger();
+    
+    this.executor = new ThreadPoolExecutor(
+        threadsAmount,
+        threadsAmount,
+        60,
+        TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)),
+        (Runnable runnable) -> {
+          Thread thread = new Thread(() -> {
+            try {
+              runnable.run();
+            } finally {
+              // idle threads time out, their caches must not
+              AbstractHandlingThread.releaseThreadCaches();
+            }
+          }, "topnet-blocking-" + threadsCounter.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        },
+        new ThreadPoolExecutor.AbortPolicy());
+    
+    this.executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Queues task to run.
+   * 
+   * @param task task to run
+   * @return false if pool is saturated and task was rejected
+   */
+  public boolean submit(Runnable task) {
+    try {
+      this.executor.execute(task);
+      return true;
+    } catch (RejectedExecutionException ex) {
+      this.rejectedCounter.incrementAndGet();
+      return false;
+    }
+  }
+
+  /**
+   * Stops pool threads, tasks running are interrupted.
+   */
+  public void shutdown() {
+    this.executor.shutdownNow();
+  }
+
+  /**
+   * Waits for tasks running to finish after {@link #shutdown()}.
+   * 
+   * @param timeoutMs max miliseconds to wait
+   * @return true if pool threads finished
+   */
+  public boolean awaitTermination(long timeoutMs) {
+    try {
+      return this.executor.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  /**
+   * @return amount of tasks waiting for thread
+   */
+  public int getQueueDepth() {
+    return this.executor.getQueue().size();
+  }
+
+  /**
+   * @return amount of threads running tasks now
+   */
+  public int getActiveCount() {
+    return this.executor.getActiveCount();
+  }
+
+  /**
+   * @return amount of tasks rejected since pool was created
+   */
+  public long getRejectedCounter() {
+    return this.rejectedCounter.get();
+  }
+}
@@ -0,0 +1,74 @@
+/*
+ * topNET
+ * Fast HTTP Server Solution.
+ * Copyright 2016, Qubit Group <www.qubit.com>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  
+ * If not, see <https://www.gnu.org/licenses/lgpl-3.0.en.html>
+ * 
+ * Author: Peter Fronc <peter.fronc@qubitdigital.com>
+ */
+package com.qubit.topnet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Channel reading remaining bytes of a buffer. When set as response channel,
+ * {@link DataHandler} writes the buffer to socket directly instead of
+ * copying it into output buffers first (unless response is chunked or
+ * compressed). Pass duplicate of buffer shared by many responses.
+ * 
+ * @author Peter Fronc <peter.fronc@qubitdigital.com>
+ */
+public class ByteBufferChannel implements ReadableByteChannel {
+  
+  private final ByteBuffer source;
+  private boolean open = true;
+
+  public ByteBufferChannel(ByteBuffer source) {
+    this.source = source;
+  }
+
+  @Override
+  public int read(ByteBuffer buffer) throws IOException {
+    if (!this.source.hasRemaining()) {
+      return -1;
+    }
+    
+    int amount = Math.min(buffer.remaining(), this.source.remaining());
+    int limit = this.source.limit();
+    this.source.limit(this.source.position() + amount);
+    buffer.put(this.source);
+    this.source.limit(limit);
+    
+    return amount;
+  }
+
+  /**
+   * @return the source buffer, its position is moved as bytes are sent
+   */
+  public ByteBuffer getSource() {
+    return source;
+  }
+
+  @Override
+  public boolean isOpen() {
+    return open;
+  }
+
+  @Override
+  public void close() throws IOException {
+    this.open = false;
+  }
+}
@@ -0,0 +1,94 @@
+/*
+ * topNET
+ * Fast HTTP Server Solution.
+ * Copyright 2016, Qubit Group <www.qubit.com>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  
+ * If not, see <https://www.gnu.org/licenses/lgpl-3.0.en.html>
+ * 
+ * Author: Peter Fronc <peter.fronc@qubitdigital.com>
+ */
+package com.qubit.topnet;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Input stream reading remaining bytes of a buffer. Buffer position is 
+ * moved while reading, so pass duplicate of buffer shared by many streams.
+ * 
+ * @author Peter Fronc <peter.fronc@qubitdigital.com>
+ */
+public class ByteBufferInputStream extends InputStream
+    implements ByteBufferReadable {
+  
+  private final ByteBuffer source;
+
+  public ByteBufferInputStream(ByteBuffer source) {
+    this.source = source;
+  }
+
+  @Override
+  public int read() {
+    return this.source.hasRemaining() ? this.source.get() & 0xFF : -1;
+  }
+
+  @Override
+  public int read(byte[] bytes, int offset, int length) {
+    if (!this.source.hasRemaining()) {
+      return length == 0 ? 0 : -1;
+    }
+    
+    int amount = Math.min(length, this.source.remaining());
+    this.source.get(bytes, offset, amount);
+    
+    return amount;
+  }
+
+  /**
+   * Puts as many bytes as possible into buffer.
+   * 
+   * @param buffer destination buffer
+   * @return amount of bytes put or -1 if stream is finished.
+   */
+  @Override
+  public int read(ByteBuffer buffer) {
+    if (!this.source.hasRemaining()) {
+      return -1;
+    }
+    
+    int amount = Math.min(buffer.remaining(), this.source.remaining());
+    
+    if (amount == this.source.remaining()) {
+      buffer.put(this.source);
+    } else {
+      int limit = this.source.limit();
+      this.source.limit(this.source.position() + amount);
+      buffer.put(this.source);
+      this.source.limit(limit);
+    }
+    
+    return amount;
+  }
+
+  @Override
+  public int available() {
+    return this.source.remaining();
+  }
+
+  @Override
+  public long skip(long n) {
+    int amount = (int) Math.max(0, Math.min(n, this.source.remaining()));
+    this.source.position(this.source.position() + amount);
+    return amount;
+  }
+}
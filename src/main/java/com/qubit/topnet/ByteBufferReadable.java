@@ -0,0 +1,40 @@
+/*
+ * topNET
+ * Fast HTTP Server Solution.
+ * Copyright 2016, Qubit Group <www.qubit.com>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  
+ * If not, see <https://www.gnu.org/licenses/lgpl-3.0.en.html>
+ * 
+ * Author: Peter Fronc <peter.fronc@qubitdigital.com>
+ */
+package com.qubit.topnet;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Streams implementing this interface can be drained directly into output
+ * buffers by {@link ResponseStream}, without per byte reads or temporary
+ * arrays.
+ * 
+ * @author Peter Fronc <peter.fronc@qubitdigital.com>
+ */
+public interface ByteBufferReadable {
+
+  /**
+   * Puts as many bytes as possible into buffer.
+   * 
+   * @param buffer destination buffer
+   * @return amount of bytes put or -1 if nothing is left to read
+   */
+  int read(ByteBuffer buffer);
+}
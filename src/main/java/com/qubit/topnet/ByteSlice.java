@@ -0,0 +1,98 @@
+/*
+ * topNET
+ * Fast HTTP Server Solution.
+ * Copyright 2016, Qubit Group <www.qubit.com>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  
+ * If not, see <https://www.gnu.org/licenses/lgpl-3.0.en.html>
+ * 
+ * Author: Peter Fronc <peter.fronc@qubitdigital.com>
+ */
+
+package com.qubit.topnet;
+
+import java.nio.charset.Charset;
+
+/**
+ * Char sequence view over range of bytes, each byte is one char (as in 
+ * ISO-8859-1). String is created only when `toString` is called, then it is 
+ * decoded with slice charset.
+ * 
+ * Slice does not copy bytes - it is valid as long as its source array is
+ * not reused, for request headers it means until request is reset.
+ * 
+ * @author Peter Fronc <peter.fronc@qubitdigital.com>
+ */
+public class ByteSlice implements CharSequence {
+
+  private final byte[] bytes;
+  private final int offset;
+  private final int length;
+  private final Charset charset;
+
+  public ByteSlice(byte[] bytes, int offset, int length, Charset charset) {
+    this.bytes = bytes;
+    this.offset = offset;
+    this.length = length;
+    this.charset = charset;
+  }
+
+  @Override
+  public int length() {
+    return this.length;
+  }
+
+  @Override
+  public char charAt(int index) {
+    if (index < 0 || index >= this.length) {
+      throw new IndexOutOfBoundsException("Index: " + index);
+    }
+    return (char) (this.bytes[this.offset + index] & 0xFF);
+  }
+
+  @Override
+  public CharSequence subSequence(int start, int end) {
+    if (start < 0 || end > this.length || start > end) {
+      throw new IndexOutOfBoundsException(
+          "Range: " + start + " - " + end);
+    }
+    return new ByteSlice(this.bytes, this.offset + start, end - start, 
+        this.charset);
+  }
+
+  /**
+   * Compares slice with ASCII string ignoring case, nothing is allocated.
+   * 
+   * @param string string to compare
+   * @return true if equal ignoring case
+   */
+  public boolean equalsIgnoreCase(String string) {
+    if (string.length() != this.length) {
+      return false;
+    }
+
+    for (int i = 0; i < this.length; i++) {
+      char a = (char) (this.bytes[this.offset + i] & 0xFF);
+      char b = string.charAt(i);
+      if (a != b && Character.toLowerCase(a) != Character.toLowerCase(b)) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  @Override
+  public String toString() {
+    return new String(this.bytes, this.offset, this.length, this.charset);
+  }
+}
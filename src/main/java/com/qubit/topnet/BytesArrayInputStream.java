@@ -0,0 +1,62 @@
+/*
+ * topNET
+ * Fast HTTP Server Solution.
+ * Copyright 2016, Qubit Group <www.qubit.com>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  
+ * If not, see <https://www.gnu.org/licenses/lgpl-3.0.en.html>
+ * 
+ * Author: Peter Fronc <peter.fronc@qubitdigital.com>
+ */
+
+package com.qubit.topnet;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Byte array input stream that can be drained directly into a 
+ * {@link ByteBuffer} without intermediate copying. Used by {@link Response}
+ * for headers and print() body so write loop can load them in bulk.
+ * 
+ * @author Peter Fronc <peter.fronc@qubitdigital.com>
+ */
+public class BytesArrayInputStream extends ByteArrayInputStream
+    implements ByteBufferReadable {
+
+  public BytesArrayInputStream(byte[] buf) {
+    super(buf);
+  }
+
+  public BytesArrayInputStream(byte[] buf, int offset, int length) {
+    super(buf, offset, length);
+  }
+
+  /**
+   * Puts as many bytes as possible into buffer.
+   * 
+   * @param buffer destination buffer
+   * @return amount of bytes put or -1 if stream is finished.
+   */
+  @Override
+  public synchronized int read(ByteBuffer buffer) {
+    if (this.pos >= this.count) {
+      return -1;
+    }
+    
+    int amount = Math.min(buffer.remaining(), this.count - this.pos);
+    buffer.put(this.buf, this.pos, amount);
+    this.pos += amount;
+    
+    return amount;
+  }
+}
@@ -77,14 +77,14 @@ public class BytesStream {
   private void addBuf() {
     if (this.currentWritingBuffer.getNext() == null) {
       if (currentWritingBuffer.getByteBuffer() == null) {
-        currentWritingBuffer.setByteBuffer(
-            ByteBuffer.allocateDirect(singleBufferChunkSize));
-        currentSize += singleBufferChunkSize;
+        ByteBuffer buffer = DirectBufferPool.acquire(singleBufferChunkSize);
+        currentWritingBuffer.setByteBuffer(buffer);
+        currentSize += buffer.capacity();
       } else if (currentSize < maxBufferSize) { // add new only if not too large
+        ByteBuffer buffer = DirectBufferPool.acquire(singleBufferChunkSize);
         this.currentWritingBuffer = (new BufferWrapper());
-        this.currentWritingBuffer
-            .setByteBuffer(ByteBuffer.allocateDirect(singleBufferChunkSize));
-        currentSize += singleBufferChunkSize;
+        this.currentWritingBuffer.setByteBuffer(buffer);
+        currentSize += buffer.capacity();
         this.last.setNext(this.currentWritingBuffer);
         this.currentWritingBuffer.setPrev(this.last);
         this.last = this.currentWritingBuffer;
@@ -195,6 +195,80 @@ public class BytesStream {
     }
   }
 
+  /**
+   * Copies bytes from this stream into `dest` until `delimiter` is copied,
+   * no more bytes are available or `dest` is full. Bytes are scanned in
+   * place and copied in bulk, buffer chunks boundaries are crossed as with
+   * `readByte()`. Increments `this.currentBufferReadPosition`.
+   *
+   * @param delimiter byte to stop at (it is copied too)
+   * @param dest array to copy to
+   * @param destPos where to start copying in dest
+   * @return amount of bytes copied
+   */
+  public int readUntil(byte delimiter, byte[] dest, int destPos) {
+    int copied = 0;
+
+    while (true) {
+      ByteBuffer buf = currentReadingBuffer.getByteBuffer();
+
+      if (buf == null) {
+        return copied;
+      }
+
+      int from = currentBufferReadPosition;
+      int end = Math.min(buf.position(), from + dest.length - destPos);
+      int i = from;
+      boolean found = false;
+
+      if (buf.hasArray()) {
+        byte[] array = buf.array();
+        int offset = buf.arrayOffset();
+        while (i < end) {
+          if (array[offset + i++] == delimiter) {
+            found = true;
+            break;
+          }
+        }
+      } else {
+        while (i < end) {
+          if (buf.get(i++) == delimiter) {
+            found = true;
+            break;
+          }
+        }
+      }
+
+      int amount = i - from;
+
+      if (amount > 0) {
+        // bulk copy with position and limit restored after, they are
+        // markers for writing
+        int position = buf.position();
+        int limit = buf.limit();
+        buf.limit(i);
+        buf.position(from);
+        buf.get(dest, destPos, amount);
+        buf.limit(limit);
+        buf.position(position);
+
+        destPos += amount;
+        copied += amount;
+        currentBufferReadPosition = i;
+      }
+
+      if (found || destPos == dest.length || buf.hasRemaining()
+          || currentReadingBuffer == currentWritingBuffer
+          || currentReadingBuffer.getNext() == null) {
+        return copied;
+      }
+
+      // chunk fully read, continue with next one
+      currentReadingBuffer = currentReadingBuffer.getNext();
+      currentBufferReadPosition = 0;
+    }
+  }
+
   /**
    * Resets this bytes stream. Clears any buffer chunks left and sets all
    * markers to zero.
@@ -300,10 +374,19 @@ public class BytesStream {
       if (amount > toValue) {
         if (next.getPrev() != null) {
           last = next.getPrev();
+          amount -= buffer.capacity();
         } else {
           last = next;
         }
+        // dropped tail goes back to pool
+        BufferWrapper dropped = last.getNext();
         last.setNext(null);
+        while (dropped != null) {
+          DirectBufferPool.release(dropped.getByteBuffer());
+          dropped.setByteBuffer(null);
+          dropped.setPrev(null);
+          dropped = dropped.getNext();
+        }
         break;
       }
       next = next.getNext();
@@ -312,6 +395,22 @@ public class BytesStream {
     currentSize = amount;
   }
 
+  /**
+   * Returns all buffers of this stream to DirectBufferPool and resets it to
+   * initial state. Stream stays usable, next write takes new buffer from pool.
+   */
+  public void releaseBuffers() {
+    BufferWrapper next = this.first;
+
+    while (next != null) {
+      DirectBufferPool.release(next.getByteBuffer());
+      next.setByteBuffer(null);
+      next = next.getNext();
+    }
+
+    this.init();
+  }
+
   public void shrinkLessMore() {
     if (isShrinkingBuffersAfterJob()) {
       this.shrinkLessMore(Math.min(minimumBytesToKeepAfterJobShrink, getMaxBufferSize()));
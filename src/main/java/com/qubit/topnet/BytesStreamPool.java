@@ -0,0 +1,97 @@
+/*
+ * topNET
+ * Fast HTTP Server Solution.
+ * Copyright 2016, Qubit Group <www.qubit.com>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  
+ * If not, see <https://www.gnu.org/licenses/lgpl-3.0.en.html>
+ * 
+ * Author: Peter Fronc <peter.fronc@qubitdigital.com>
+ */
+package com.qubit.topnet;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of bytes streams used as response output buffers. Connection takes
+ * stream when it starts writing response and returns it when response is 
+ * written, so idle connections do not keep output buffers.
+ * 
+ * @author Peter Fronc <peter.fronc@qubitdigital.com>
+ */
+public class BytesStreamPool {
+
+  private final ConcurrentLinkedQueue<BytesStream> streams = 
+      new ConcurrentLinkedQueue<>();
+  private final AtomicInteger pooled = new AtomicInteger(0);
+  private volatile int maxPooled = 256;
+
+  /**
+   * @return stream from pool or new one if pool is empty
+   */
+  public BytesStream acquire() {
+    BytesStream stream = this.streams.poll();
+    
+    if (stream == null) {
+      return new BytesStream();
+    }
+    
+    this.pooled.decrementAndGet();
+    
+    return stream;
+  }
+
+  /**
+   * Returns stream to pool. Stream buffers go back to DirectBufferPool, so 
+   * pooled streams do not hold off-heap memory, and its chunk size goes 
+   * back to default so sizing for one response does not leak to next one.
+   * 
+   * @param stream stream to return
+   */
+  public void release(BytesStream stream) {
+    stream.releaseBuffers();
+    
+    if (this.pooled.get() >= this.maxPooled) {
+      return; // let it go
+    }
+    
+    stream.setSingleBufferChunkSize(BytesStream.getDefaultBufferChunkSize());
+    
+    this.pooled.incrementAndGet();
+    this.streams.offer(stream);
+  }
+
+  /**
+   * @return the maxPooled
+   */
+  public int getMaxPooled() {
+    return maxPooled;
+  }
+
+  /**
+   * Maximum amount of streams kept in pool, streams released above this
+   * limit are dropped.
+   * 
+   * @param maxPooled the maxPooled to set
+   */
+  public void setMaxPooled(int maxPooled) {
+    this.maxPooled = maxPooled;
+  }
+  
+  /**
+   * @return amount of streams waiting in pool
+   */
+  public int getPooled() {
+    return this.pooled.get();
+  }
+}
@@ -0,0 +1,212 @@
+/*
+ * topNET
+ * Fast HTTP Server Solution.
+ * Copyright 2016, Qubit Group <www.qubit.com>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  
+ * If not, see <https://www.gnu.org/licenses/lgpl-3.0.en.html>
+ * 
+ * Author: Peter Fronc <peter.fronc@qubitdigital.com>
+ */
+package com.qubit.topnet;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decoder for request bodies sent with chunked transfer encoding. Bytes are
+ * decoded in place - chunk data is moved back over the chunk size lines, so 
+ * buffer region [from, getWriteIndex()) holds only body bytes. State is kept
+ * between calls so chunks may be split across any number of reads.
+ * 
+ * Chunk extensions and trailers are skipped.
+ * 
+ * @author Peter Fronc <peter.fronc@qubitdigital.com>
+ */
+public class ChunkedBodyDecoder {
+
+  private static final int SIZE = 0;
+  private static final int SIZE_EXTENSION = 1;
+  private static final int SIZE_LF = 2;
+  private static final int DATA = 3;
+  private static final int DATA_CR = 4;
+  private static final int DATA_LF = 5;
+  private static final int TRAILER = 6;
+  private static final int TRAILER_LINE = 7;
+  private static final int TRAILER_LINE_LF = 8;
+  private static final int TRAILER_END_LF = 9;
+  private static final int DONE = 10;
+  private static final int MALFORMED = 11;
+  
+  // more would overflow long
+  private static final int MAX_SIZE_DIGITS = 15;
+
+  private int state = SIZE;
+  private long chunkLeft = 0;
+  private int sizeDigits = 0;
+  private long decodedSize = 0;
+  
+  private int readIndex;
+  private int writeIndex;
+
+  public void reset() {
+    this.state = SIZE;
+    this.chunkLeft = 0;
+    this.sizeDigits = 0;
+    this.decodedSize = 0;
+  }
+
+  /**
+   * Sets index from which raw bytes are read and decoded bytes are written.
+   * 
+   * @param from buffer index
+   */
+  public void setIndex(int from) {
+    this.readIndex = from;
+    this.writeIndex = from;
+  }
+
+  /**
+   * Decodes raw bytes up to limit. Returns as soon as any chunk is fully read
+   * so caller can handle it.
+   * 
+   * @param buffer buffer with raw bytes
+   * @param limit index where raw bytes end
+   * @return true if chunk was completed or body is finished
+   */
+  public boolean decode(ByteBuffer buffer, int limit) {
+    while (this.readIndex < limit && this.state < DONE) {
+      if (this.state == DATA) {
+        int amount = (int) Math.min(this.chunkLeft, limit - this.readIndex);
+        
+        if (this.writeIndex != this.readIndex) {
+          for (int i = 0; i < amount; i++) {
+            buffer.put(this.writeIndex + i, buffer.get(this.readIndex + i));
+          }
+        }
+        
+        this.readIndex += amount;
+        this.writeIndex += amount;
+        this.chunkLeft -= amount;
+        this.decodedSize += amount;
+        
+        if (this.chunkLeft == 0) {
+          this.state = DATA_CR;
+        }
+        
+        continue;
+      }
+      
+      byte current = buffer.get(this.readIndex++);
+      
+      switch (this.state) {
+        case SIZE:
+          int digit = Character.digit(current, 16);
+          if (digit != -1 && this.sizeDigits < MAX_SIZE_DIGITS) {
+            this.chunkLeft = (this.chunkLeft << 4) | digit;
+            this.sizeDigits++;
+          } else if (this.sizeDigits > 0
+              && (current == ';' || current == ' ' || current == '\t')) {
+            this.state = SIZE_EXTENSION;
+          } else if (this.sizeDigits > 0 && current == '\r') {
+            this.state = SIZE_LF;
+          } else {
+            this.state = MALFORMED;
+          }
+          break;
+        case SIZE_EXTENSION:
+          if (current == '\r') {
+            this.state = SIZE_LF;
+          }
+          break;
+        case SIZE_LF:
+          if (current != '\n') {
+            this.state = MALFORMED;
+          } else {
+            this.sizeDigits = 0;
+            this.state = this.chunkLeft == 0 ? TRAILER : DATA;
+          }
+          break;
+        case DATA_CR:
+          this.state = current == '\r' ? DATA_LF : MALFORMED;
+          break;
+        case DATA_LF:
+          if (current != '\n') {
+            this.state = MALFORMED;
+          } else {
+            this.state = SIZE;
+            return true;
+          }
+          break;
+        case TRAILER:
+          this.state = current == '\r' ? TRAILER_END_LF : TRAILER_LINE;
+          break;
+        case TRAILER_LINE:
+          if (current == '\r') {
+            this.state = TRAILER_LINE_LF;
+          }
+          break;
+        case TRAILER_LINE_LF:
+          this.state = current == '\n' ? TRAILER : MALFORMED;
+          break;
+        case TRAILER_END_LF:
+          if (current != '\n') {
+            this.state = MALFORMED;
+          } else {
+            this.state = DONE;
+            return true;
+          }
+          break;
+      }
+      
+      if (this.state == MALFORMED) {
+        return false;
+      }
+    }
+    
+    return false;
+  }
+
+  /**
+   * @return true if last chunk and trailers were read
+   */
+  public boolean isFinished() {
+    return this.state == DONE;
+  }
+
+  /**
+   * @return true if bytes read are not valid chunked encoding
+   */
+  public boolean isMalformed() {
+    return this.state == MALFORMED;
+  }
+
+  /**
+   * @return the decodedSize - amount of body bytes decoded so far
+   */
+  public long getDecodedSize() {
+    return decodedSize;
+  }
+
+  /**
+   * @return the readIndex
+   */
+  public int getReadIndex() {
+    return readIndex;
+  }
+
+  /**
+   * @return the writeIndex - index where decoded bytes end
+   */
+  public int getWriteIndex() {
+    return writeIndex;
+  }
+}
@@ -0,0 +1,127 @@
+/*
+ * topNET
+ * Fast HTTP Server Solution.
+ * Copyright 2016, Qubit Group <www.qubit.com>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  
+ * If not, see <https://www.gnu.org/licenses/lgpl-3.0.en.html>
+ * 
+ * Author: Peter Fronc <peter.fronc@qubitdigital.com>
+ */
+package com.qubit.topnet;
+
+import com.qubit.topnet.exceptions.ResponseBuildingStartedException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Response body source for asynchronous producers. Each added array is one
+ * chunk - when response is sent with chunked transfer encoding, data from 
+ * two different chunks never ends up in same HTTP chunk (large chunks may be 
+ * split to fit output buffers).
+ * 
+ * Creating stream marks response with more data coming and sets it as 
+ * response stream, {@link #finish()} must be called when producer is done.
+ * Chunks may be added from any thread.
+ * 
+ * @author Peter Fronc <peter.fronc@qubitdigital.com>
+ */
+public class ChunksInputStream extends InputStream 
+    implements ByteBufferReadable {
+
+  private final ConcurrentLinkedQueue<byte[]> chunks = 
+      new ConcurrentLinkedQueue<>();
+  private final Response response;
+  
+  // owned by reading thread
+  private byte[] current;
+  private int position;
+
+  /**
+   * @param response response to send chunks with
+   * @throws ResponseBuildingStartedException if response was printed to
+   */
+  public ChunksInputStream(Response response)
+      throws ResponseBuildingStartedException {
+    this.response = response;
+    response.setMoreDataComing(true);
+    response.setContentLength(-1);
+    response.setStreamToReadFrom(this);
+  }
+
+  /**
+   * Adds chunk to be sent. Array must not be changed after adding.
+   * 
+   * @param chunk bytes to send, empty arrays are ignored
+   */
+  public void addChunk(byte[] chunk) {
+    if (chunk.length > 0) {
+      this.chunks.add(chunk);
+    }
+  }
+
+  /**
+   * @param chunk text to send
+   * @param charset charset to encode text with
+   */
+  public void addChunk(String chunk, Charset charset) {
+    this.addChunk(chunk.getBytes(charset));
+  }
+
+  /**
+   * Marks that no more chunks will be added, response will finish when all
+   * chunks are sent.
+   */
+  public void finish() {
+    this.response.setMoreDataComing(false);
+  }
+  
+  private boolean nextChunk() {
+    if (this.current == null || this.position >= this.current.length) {
+      this.current = this.chunks.poll();
+      this.position = 0;
+    }
+    
+    return this.current != null;
+  }
+
+  @Override
+  public int read() {
+    if (this.nextChunk()) {
+      return this.current[this.position++] & 0xFF;
+    }
+    
+    return -1;
+  }
+
+  /**
+   * Puts bytes of current chunk only into buffer.
+   * 
+   * @param buffer destination buffer
+   * @return amount of bytes put or -1 if no chunk is available now
+   */
+  @Override
+  public int read(ByteBuffer buffer) {
+    if (!this.nextChunk()) {
+      return -1;
+    }
+    
+    int amount = Math.min(
+        buffer.remaining(), this.current.length - this.position);
+    buffer.put(this.current, this.position, amount);
+    this.position += amount;
+    
+    return amount;
+  }
+}
@@ -0,0 +1,373 @@
+/*
+ * topNET
+ * Fast HTTP Server Solution.
+ * Copyright 2016, Qubit Group <www.qubit.com>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  
+ * If not, see <https://www.gnu.org/licenses/lgpl-3.0.en.html>
+ * 
+ * Author: Peter Fronc <peter.fronc@qubitdigital.com>
+ */
+package com.qubit.topnet;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Locale;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Response body compressed on the fly with gzip or deflate content coding.
+ * It wraps body stream and/or channel of response and is read by write loop
+ * like any other body stream. Compressed size is not known upfront, so 
+ * response using it is sent without content length - chunked for HTTP/1.1.
+ * 
+ * For responses with more data coming, whatever was compressed is flushed
+ * when source has nothing to read, so client gets data without waiting for
+ * whole response.
+ * 
+ * @author Peter Fronc <peter.fronc@qubitdigital.com>
+ */
+public class CompressedBodyStream extends InputStream {
+  
+  public static final String GZIP = "gzip";
+  public static final String DEFLATE = "deflate";
+  
+  private static final byte[] GZIP_HEADER = {
+    0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff
+  };
+  private static final byte[] NO_BYTES = new byte[0];
+  
+  private static int inputBufferSize = 16 * 1024;
+  
+  private final Response response;
+  private final InputStream sourceStream;
+  private final ReadableByteChannel sourceChannel;
+  private final boolean gzip;
+  private final int level;
+  private final byte[] input = new byte[inputBufferSize];
+  private ByteBuffer inputBuffer;
+  private Deflater deflater;
+  private CRC32 crc;
+  private byte[] pending = NO_BYTES; // gzip header or trailer
+  private int pendingPosition = 0;
+  private boolean unflushed = false;
+  private boolean finishing = false;
+  private boolean done = false;
+  private byte[] single;
+
+  /**
+   * @param response response, its `isMoreDataComing()` tells if source 
+   *  returning -1 is finished
+   * @param sourceStream body stream to compress, may be null
+   * @param sourceChannel body channel to compress, read after stream
+   * @param encoding {@link #GZIP} or {@link #DEFLATE}
+   * @param level deflater compression level
+   */
+  public CompressedBodyStream(
+      Response response,
+      InputStream sourceStream,
+      ReadableByteChannel sourceChannel,
+      String encoding,
+      int level) {
+    this.response = response;
+    this.sourceStream = sourceStream;
+    this.sourceChannel = sourceChannel;
+    this.gzip = GZIP.equals(encoding);
+    this.level = level;
+  }
+  
+  @Override
+  public int read() throws IOException {
+    if (this.single == null) {
+      this.single = new byte[1];
+    }
+    
+    int amount;
+    
+    while ((amount = this.read(this.single, 0, 1)) == 0) {
+      Thread.yield(); // source has nothing yet
+    }
+    
+    return amount == -1 ? -1 : this.single[0] & 0xFF;
+  }
+
+  /**
+   * Compresses as much as possible into array.
+   * 
+   * @return amount of bytes put, 0 if source has nothing available now, -1 
+   *  if compressed stream is over or nothing is available now and more data
+   *  is coming
+   */
+  @Override
+  public int read(byte[] bytes, int offset, int length) throws IOException {
+    if (length == 0) {
+      return 0;
+    }
+    
+    if (this.done) { // only trailer could be left
+      int amount = this.readPending(bytes, offset, length);
+      return amount == 0 ? -1 : amount;
+    }
+    
+    if (this.deflater == null) {
+      this.start();
+    }
+    
+    int amount = this.readPending(bytes, offset, length);
+    
+    while (amount < length) {
+      if (this.deflater.finished()) {
+        if (!this.finishing) {
+          break;
+        }
+        
+        this.finishing = false;
+        this.pending = this.gzip ? this.gzipTrailer() : NO_BYTES;
+        this.pendingPosition = 0;
+        this.releaseDeflater();
+        this.done = true;
+        amount += this.readPending(bytes, offset + amount, length - amount);
+        break;
+      }
+      
+      int deflated = this.deflater.deflate(
+          bytes, offset + amount, length - amount);
+      
+      if (deflated > 0) {
+        amount += deflated;
+        continue;
+      }
+      
+      if (this.deflater.finished()) {
+        continue;
+      }
+      
+      if (!this.deflater.needsInput() || this.finishing) {
+        break;
+      }
+      
+      // checked before reading so data added just before finishing is read
+      boolean sourceFinished = 
+          this.response == null || !this.response.isMoreDataComing();
+      
+      int read = this.readSource();
+      
+      if (read > 0) {
+        if (this.crc != null) {
+          this.crc.update(this.input, 0, read);
+        }
+        this.deflater.setInput(this.input, 0, read);
+        this.unflushed = true;
+      } else if (read == -1 && sourceFinished) {
+        this.deflater.finish();
+        this.finishing = true;
+      } else if (read == -1 && !this.response.isMoreDataComing()) {
+        // finished just now, read source once more
+      } else {
+        amount += this.flush(bytes, offset + amount, length - amount);
+        
+        if (amount == 0 && read == -1) {
+          return -1; // more data is coming, nothing to send now
+        }
+        
+        break;
+      }
+    }
+    
+    return amount == 0 && this.done ? -1 : amount;
+  }
+  
+  private void start() {
+    this.deflater = DeflaterPool.acquire(this.level, this.gzip);
+    
+    if (this.gzip) {
+      this.crc = new CRC32();
+      this.pending = GZIP_HEADER;
+      this.pendingPosition = 0;
+    }
+  }
+  
+  private int readPending(byte[] bytes, int offset, int length) {
+    int amount = Math.min(length, this.pending.length - this.pendingPosition);
+    
+    if (amount > 0) {
+      System.arraycopy(this.pending, this.pendingPosition, bytes, offset, amount);
+      this.pendingPosition += amount;
+    }
+    
+    return amount;
+  }
+  
+  private int readSource() throws IOException {
+    int read = -1;
+    
+    if (this.sourceStream != null) {
+      read = this.sourceStream.read(this.input, 0, this.input.length);
+    }
+    
+    if (read == -1 && this.sourceChannel != null) {
+      if (this.inputBuffer == null) {
+        this.inputBuffer = ByteBuffer.wrap(this.input);
+      }
+      
+      this.inputBuffer.clear();
+      read = this.sourceChannel.read(this.inputBuffer);
+    }
+    
+    return read;
+  }
+  
+  /**
+   * Pushes out everything compressed so far, it is done once per input 
+   * given as each flush adds few bytes to output.
+   */
+  private int flush(byte[] bytes, int offset, int length) {
+    if (!this.unflushed) {
+      return 0;
+    }
+    
+    int amount = this.deflater.deflate(
+        bytes, offset, length, Deflater.SYNC_FLUSH);
+    
+    if (amount < length) {
+      this.unflushed = false; // all out, otherwise continue next time
+    }
+    
+    return amount;
+  }
+  
+  private byte[] gzipTrailer() {
+    long value = this.crc.getValue();
+    long size = this.deflater.getBytesRead();
+    byte[] trailer = new byte[8];
+    
+    for (int i = 0; i < 4; i++) {
+      trailer[i] = (byte) (value >>> (i * 8));
+      trailer[i + 4] = (byte) (size >>> (i * 8));
+    }
+    
+    return trailer;
+  }
+  
+  private void releaseDeflater() {
+    if (this.deflater != null) {
+      DeflaterPool.release(this.deflater, this.gzip);
+      this.deflater = null;
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    this.releaseDeflater();
+    this.done = true;
+    
+    try {
+      if (this.sourceStream != null) {
+        this.sourceStream.close();
+      }
+    } finally {
+      if (this.sourceChannel != null) {
+        this.sourceChannel.close();
+      }
+    }
+  }
+  
+  /**
+   * Picks content coding for response from request Accept-Encoding header.
+   * Gzip is preferred when both are accepted with same quality.
+   * 
+   * @param acceptEncoding header value, may be null
+   * @return {@link #GZIP}, {@link #DEFLATE} or null if none is accepted
+   */
+  public static String negotiate(CharSequence acceptEncoding) {
+    if (acceptEncoding == null) {
+      return null;
+    }
+    
+    float gzipQuality = -1;
+    float deflateQuality = -1;
+    float anyQuality = -1;
+    
+    for (String part : acceptEncoding.toString().split(",")) {
+      String coding = part;
+      float quality = 1;
+      int paramsStart = part.indexOf(';');
+      
+      if (paramsStart != -1) {
+        coding = part.substring(0, paramsStart);
+        quality = parseQuality(part.substring(paramsStart + 1));
+      }
+      
+      coding = coding.trim().toLowerCase(Locale.ROOT);
+      
+      if (GZIP.equals(coding) || "x-gzip".equals(coding)) {
+        gzipQuality = quality;
+      } else if (DEFLATE.equals(coding)) {
+        deflateQuality = quality;
+      } else if ("*".equals(coding)) {
+        anyQuality = quality;
+      }
+    }
+    
+    if (gzipQuality < 0) {
+      gzipQuality = anyQuality;
+    }
+    
+    if (deflateQuality < 0) {
+      deflateQuality = anyQuality;
+    }
+    
+    if (gzipQuality > 0 && gzipQuality >= deflateQuality) {
+      return GZIP;
+    } else if (deflateQuality > 0) {
+      return DEFLATE;
+    }
+    
+    return null;
+  }
+  
+  private static float parseQuality(String params) {
+    for (String param : params.split(";")) {
+      param = param.trim();
+      
+      if (param.startsWith("q=") || param.startsWith("Q=")) {
+        try {
+          return Float.parseFloat(param.substring(2).trim());
+        } catch (NumberFormatException ex) {
+          return 0;
+        }
+      }
+    }
+    
+    return 1;
+  }
+
+  /**
+   * @return the inputBufferSize
+   */
+  public static int getInputBufferSize() {
+    return inputBufferSize;
+  }
+
+  /**
+   * Size of array source is read into before compressing, per compressed 
+   * response.
+   * 
+   * @param anInputBufferSize the inputBufferSize to set
+   */
+  public static void setInputBufferSize(int anInputBufferSize) {
+    inputBufferSize = anInputBufferSize;
+  }
+}
@@ -19,7 +19,7 @@
  */
 package com.qubit.topnet;
 
-import static com.qubit.topnet.BytesStream.NO_BYTES_LEFT_VAL;
+import static com.qubit.topnet.ServerBase.HTTP_0_9;
 import static com.qubit.topnet.ServerBase.HTTP_1_1;
 import com.qubit.topnet.errors.ErrorTypes;
 import com.qubit.topnet.utils.Pair;
@@ -27,6 +27,8 @@ import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.SelectionKey;
 import static java.nio.channels.SelectionKey.OP_READ;
 import static java.nio.channels.SelectionKey.OP_WRITE;
@@ -44,6 +46,13 @@ public final class DataHandler {
 
   final static Logger log = Logger.getLogger(DataHandler.class.getName());
 
+  private static final byte[] HEX_DIGITS = {
+    '0', '1', '2', '3', '4', '5', '6', '7',
+    '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'
+  };
+  private static final byte[] CHUNK_CRLF = {'\r', '\n'};
+  private static final byte[] LAST_CHUNK = {'0', '\r', '\n', '\r', '\n'};
+
   public static GeneralGlobalHandlingHooks postPreProcessingHandler;
 
   /**
@@ -72,20 +81,40 @@ public final class DataHandler {
 
   private boolean firstLine = true;
   private String lastHeaderName = null;
-  private String lastHeaderValue = null;
 
   private final byte[] currentHeaderLine;
   private long contentLength = 0; // -1 is used to distinguish cases when no
+  private boolean chunkedBody = false;
+  private ChunkedBodyDecoder chunkedBodyDecoder;
+  private long bodyBytesRead = 0;
+  
+  // bytes of next requests read with current one (pipelining)
+  private ByteBuffer pipelinedBytes;
 
   private Request request;
   private Response response;
   
+  // output buffers, taken from server pool for time of writing
+  private BytesStream outputBytesStream;
   private BufferWrapper currentResponseLoadingBuffer;
   private BufferWrapper currentResponseUnloadingBuffer;
   
+  // file channel sent with transferTo after buffers are flushed
+  private FileChannel fileTransferChannel;
+  private long fileTransferPosition = 0;
+  private long fileTransferLimit = 0;
+  // buffer channel body written to socket after buffers are flushed
+  private ByteBuffer bufferTransfer;
+  // file part read with positioned reads, limit -1 until reading starts
+  private long fileRegionPosition = 0;
+  private long fileRegionLimit = -1;
+  
+  private boolean lastChunkLoaded = false;
+  
   private ErrorTypes errorOccured;
   private Throwable errorException;
   private Handler handlerUsed;
+  private HandlerChain handlerChain;
   private volatile SocketChannel channel = null;
   private SelectionKey selectionKey = null;
 
@@ -99,6 +128,11 @@ public final class DataHandler {
   
   private boolean bufferSizeCalculatedForWriting = false;
   private boolean reqInitialized = false;
+  // blocking channel read() returns only when request is complete
+  private boolean blockingChannel = false;
+  private volatile boolean handling = false;
+  // handlers run on blocking handlers pool
+  private volatile boolean offloaded = false;
   
   int currentBufferWrittenIndex = 0;
   int currentReadingPositionInWrittenBufByWrite = 0;
@@ -125,6 +159,7 @@ public final class DataHandler {
   public void init(ServerBase server, SocketChannel channel) {
     this.channel = channel;
     this.server = server;
+    this.blockingChannel = channel.isBlocking();
     touch = System.currentTimeMillis();
   }
 
@@ -137,6 +172,11 @@ public final class DataHandler {
 
   public void reset() {
     resetForNewRequest();
+    this.releaseOutputBytesStream();
+    this.releaseRequestBuffers();
+    if (this.pipelinedBytes != null) {
+      this.pipelinedBytes.limit(0);
+    }
     server = null;
     selectionKey = null;
   }
@@ -148,14 +188,23 @@ public final class DataHandler {
     this.bodyRequired = false;
     this.firstLine = true;
     this.lastHeaderName = null;
-    this.lastHeaderValue = null;
     this.currentHeaderLineLength = 0;
     this.contentLength = 0;
+    this.chunkedBody = false;
+    this.bodyBytesRead = 0;
 
     if (this.request != null) {
       this.request.reset();
     }
 
+    if (this.handlerChain != null) {
+      // chain may be still used by handler writing asynchronously
+      if (this.response == null || !this.response.isMoreDataComing()) {
+        this.handlerChain.release();
+      }
+      this.handlerChain = null;
+    }
+
     if (this.response != null) {
       this.response.reset();
     }
@@ -165,6 +214,10 @@ public final class DataHandler {
     this.handlerUsed = null;
     this.headersOnly = false;
     this.bufferSizeCalculatedForWriting = false;
+    this.fileTransferChannel = null;
+    this.bufferTransfer = null;
+    this.fileRegionLimit = -1;
+    this.lastChunkLoaded = false;
     this.currentBufferWrittenIndex = 0;
     this.reqInitialized = false;
     this.wasMarkedAsMoreDataIsComing = false;
@@ -196,12 +249,19 @@ public final class DataHandler {
 
     BytesStream bs = request.getBytesStream();
     ByteBuffer buf = bs.getBufferToWrite().getByteBuffer();
+    int rawStart = buf.position();
 
-    while (read != -2 && (read = this.channel.read(buf)) > 0) {
+    // pipelined bytes are consumed first as if read from channel
+    while (read != -2
+        && ((read = this.loadPipelinedBytes(buf)) > 0
+            || (read = this.channel.read(buf)) > 0)) {
 
       if (read > 0) {
         currentSum += read;
         this.size += read;
+        if (this.blockingChannel) {
+          this.touch();
+        }
       } else if (read == -1) {
         // connection closed!
         return -1;
@@ -209,12 +269,18 @@ public final class DataHandler {
 
       // flush only settles headers and check content length to know when to 
       // stop. Data is collected in dynamic buffer chain.
-      if (this.flushReads(bs)) {
+      if (this.flushReads(bs, buf, rawStart)) {
         read = -2; // -1: reading is finished, -2 means done
-        this.handleData();
+        this.handling = true;
+        try {
+          this.handleData();
+        } finally {
+          this.handling = false;
+        }
       } else {
         bs.moveReadTailToEndOrClearBufferIfSpaceUnavailable();
         buf = bs.getBufferToWrite().getByteBuffer();
+        rawStart = buf.position();
       }
     }
 
@@ -236,6 +302,21 @@ public final class DataHandler {
     return touch;
   }
 
+  /**
+   * @return true while handlers process request read by {@link #read()} or
+   *         on blocking handlers pool
+   */
+  public boolean isHandling() {
+    return handling || offloaded;
+  }
+
+  /**
+   * @return true while handlers run on blocking handlers pool
+   */
+  public boolean isOffloaded() {
+    return offloaded;
+  }
+
   protected void touch() {
     this.touch = System.currentTimeMillis();
   }
@@ -258,7 +339,7 @@ public final class DataHandler {
       }
 
       return new String[]{
-        new String(line, 0, idx, headerCharset),
+        HeaderNames.valueOf(line, 0, idx, headerCharset),
         new String(line, valueIdx + 1, len - (valueIdx + 1), headerCharset)
       };
     } else {
@@ -268,17 +349,20 @@ public final class DataHandler {
 
   // returns true if reading is finished. any error 
   // handling should happend after reading finished.
-  private boolean flushReads(BytesStream byteStream)
+  // rawStart is index in buffer where bytes of last read start
+  private boolean flushReads(BytesStream byteStream,
+                             ByteBuffer buffer,
+                             int rawStart)
       throws UnsupportedEncodingException {
 
+    boolean headersJustRead = false;
+    
     if (!this.headersReady) {
-      int current;
-
-      while ((current = byteStream.readByte()) != NO_BYTES_LEFT_VAL) {
-        if (current == '\n'
-            && currentHeaderLine[currentHeaderLineLength - 1] == '\r') {
+      boolean lineReady;
 
-          currentHeaderLineLength -= 1;
+      while ((lineReady = this.readHeaderLine(byteStream))
+          || currentHeaderLineLength == currentHeaderLine.length) {
+        if (lineReady) {
           ErrorTypes error;
 
           if ((error = this.processHeaderLine()) != null) {
@@ -288,6 +372,10 @@ public final class DataHandler {
           }
 
           if (this.headersReady) {
+            headersJustRead = true;
+            // all what is left after headers is body or next requests
+            this.bodyBytesRead = byteStream.availableToRead();
+            
             if (this.contentLength > 0
                 && this.contentLength > byteStream.getSingleBufferChunkSize() * 2) {
               byteStream.setSingleBufferChunkSize(
@@ -309,14 +397,21 @@ public final class DataHandler {
               }
 
               // paths must be ready by headers setup
-              this.handlerUsed
-                  = this.server.getHandlerForPath(
+              this.handlerChain
+                  = this.server.getHandlerChain(
                       this.request.getFullPath(),
                       this.request.getPath(),
-                      this.request.getQueryString());
+                      this.request.getQueryString(),
+                      this.request);
+              
+              this.handlerUsed = this.handlerChain == null
+                  ? null : this.handlerChain.getFirst();
 
               if (this.handlerUsed == null) {
                 this.errorOccured = ErrorTypes.HTTP_NOT_FOUND;
+                if (this.contentLength <= 0 && !this.chunkedBody) {
+                  this.keepPipelinedBytes(this.bodyBytesRead);
+                }
                 return true;
               }
 
@@ -331,7 +426,24 @@ public final class DataHandler {
                       this.request,
                       this.response);
 
-              if (this.bodyRequired) {
+              if (this.chunkedBody) {
+                // body starts where headers parsing stopped
+                BufferWrapper reading = byteStream.getCurrentReadingBuffer();
+                rawStart = byteStream.getCurrentBufferReadPosition();
+                buffer = reading.getByteBuffer();
+                
+                if (rawStart == buffer.position()
+                    && reading != byteStream.getCurrentWritingBuffer()) {
+                  // headers ended with buffer
+                  buffer = byteStream.getCurrentWritingBuffer().getByteBuffer();
+                  rawStart = 0;
+                }
+                
+                if (this.chunkedBodyDecoder == null) {
+                  this.chunkedBodyDecoder = new ChunkedBodyDecoder();
+                }
+                this.chunkedBodyDecoder.reset();
+              } else if (this.bodyRequired) {
                 if (this.contentLength < 0) {
                   this.response.setForcingClosingAfterRequest(true);
                   this.errorOccured = ErrorTypes.BAD_CONTENT_LENGTH;
@@ -344,22 +456,24 @@ public final class DataHandler {
           }
         } else {
           //server.getDefaultHeaderSizeLimit() === currentHeaderLine.length
-          if (currentHeaderLineLength < currentHeaderLine.length) {
-            currentHeaderLine[currentHeaderLineLength++] = (byte) current;
-          } else {
-            this.response.setForcingClosingAfterRequest(true);
-            this.errorOccured = ErrorTypes.HTTP_HEADER_TOO_LARGE;
-            return true;
-          }
+          this.response.setForcingClosingAfterRequest(true);
+          this.errorOccured = ErrorTypes.HTTP_HEADER_TOO_LARGE;
+          return true;
         }
       }
     }
 
     if (this.headersReady) {
-      if (this.contentLength > 0) {
+      if (this.chunkedBody) {
+        return this.decodeChunkedBody(buffer, rawStart);
+      } else if (this.contentLength > 0) {
+        if (!headersJustRead) {
+          this.bodyBytesRead += buffer.position() - rawStart;
+        }
         
         // this also validates this.bodyRequired
-        if (request.getBytesStream().availableToRead() >= this.contentLength) {
+        if (this.bodyBytesRead >= this.contentLength) {
+           this.keepPipelinedBytes(this.bodyBytesRead - this.contentLength);
            if (request.getBytesReadEvent() != null) {
               request.getBytesReadEvent()
                   .handle(this.request, this.response, true);
@@ -373,6 +487,7 @@ public final class DataHandler {
         }
 
       } else {
+        this.keepPipelinedBytes(this.bodyBytesRead);
         if (request.getBytesReadEvent() != null) {
           request.getBytesReadEvent().handle(this.request, this.response, true);
         }
@@ -385,6 +500,173 @@ public final class DataHandler {
     return false;
   }
 
+  /**
+   * Decodes raw bytes read into buffer, BytesReadEvent is triggered after 
+   * each chunk and message size is checked as body grows.
+   * 
+   * @param buffer buffer with raw bytes at its end
+   * @param rawStart where raw bytes start
+   * @return true if reading is finished
+   */
+  private boolean decodeChunkedBody(ByteBuffer buffer, int rawStart) {
+    ChunkedBodyDecoder decoder = this.chunkedBodyDecoder;
+    int rawEnd = buffer.position();
+    int eventIndex = rawStart;
+    boolean chunkRead;
+    
+    decoder.setIndex(rawStart);
+    
+    do {
+      chunkRead = decoder.decode(buffer, rawEnd);
+      // decoded data ends here, raw bytes left are still behind it
+      buffer.position(decoder.getWriteIndex());
+      
+      if (decoder.isMalformed()) {
+        this.response.setForcingClosingAfterRequest(true);
+        this.errorOccured = ErrorTypes.HTTP_BAD_REQUEST;
+        return true;
+      }
+      
+      long maxSize = this.getMaxMessageSize(this.server.getMaxMessageSize());
+      
+      if (maxSize != -1 && decoder.getDecodedSize() > maxSize) {
+        this.response.setForcingClosingAfterRequest(true);
+        this.errorOccured = ErrorTypes.HTTP_PAYLOAD_TOO_LARGE;
+        return true;
+      }
+      
+      boolean finished = decoder.isFinished();
+      
+      if (finished) {
+        this.savePipelinedBytes(buffer, decoder.getReadIndex(), rawEnd);
+      }
+      
+      if (finished || decoder.getWriteIndex() > eventIndex) {
+        eventIndex = decoder.getWriteIndex();
+        if (request.getBytesReadEvent() != null) {
+          request.getBytesReadEvent()
+              .handle(this.request, this.response, finished);
+        }
+      }
+      
+      if (finished) {
+        return true;
+      }
+    } while (chunkRead);
+    
+    return false;
+  }
+
+  /**
+   * Cuts bytes read after current request from end of bytes stream, they 
+   * will be read as next request.
+   * 
+   * @param extra amount of bytes read after request end
+   */
+  private void keepPipelinedBytes(long extra) {
+    // HTTP/0.9 has no persistent connections, rest is read as body
+    if (extra <= 0
+        || this.request.getRequestedHttpProtocol() == HTTP_0_9) {
+      return;
+    }
+    
+    BufferWrapper chunk = this.request.getBytesStream()
+        .getCurrentWritingBuffer();
+    
+    // tail can span chunks, saving goes backwards as saved bytes are put
+    // in front of ones saved before
+    while (extra > 0 && chunk != null && chunk.getByteBuffer() != null) {
+      ByteBuffer buffer = chunk.getByteBuffer();
+      int end = buffer.position();
+      int cut = (int) Math.min(extra, end);
+      
+      this.savePipelinedBytes(buffer, end - cut, end);
+      buffer.position(end - cut);
+      extra -= cut;
+      chunk = chunk.getPrev();
+    }
+  }
+  
+  private void savePipelinedBytes(ByteBuffer source, int from, int to) {
+    int amount = to - from;
+    
+    if (amount <= 0) {
+      return;
+    }
+    
+    ByteBuffer target = this.pipelinedBytes;
+    int stored = target == null ? 0 : target.remaining();
+    
+    if (stored > 0 || target == null || target.capacity() < amount) {
+      target = ByteBuffer.allocate(amount + stored);
+    } else {
+      target.clear();
+    }
+    
+    for (int i = from; i < to; i++) {
+      target.put(source.get(i));
+    }
+    
+    if (stored > 0) { // not loaded yet, they follow new ones
+      target.put(this.pipelinedBytes);
+    }
+    
+    target.flip();
+    this.pipelinedBytes = target;
+  }
+  
+  private int loadPipelinedBytes(ByteBuffer buffer) {
+    if (!this.hasPipelinedBytes()) {
+      return 0;
+    }
+    
+    ByteBuffer source = this.pipelinedBytes;
+    int amount = Math.min(buffer.remaining(), source.remaining());
+    int limit = source.limit();
+    
+    source.limit(source.position() + amount);
+    buffer.put(source);
+    source.limit(limit);
+    
+    return amount;
+  }
+
+  /**
+   * True if next request was already read with previous one (pipelining),
+   * next read() will handle it without reading from channel.
+   * 
+   * @return true if there are bytes of next request waiting
+   */
+  public boolean hasPipelinedBytes() {
+    return this.pipelinedBytes != null && this.pipelinedBytes.hasRemaining();
+  }
+
+  /**
+   * Collects bytes of current header line from byte stream, line stays in
+   * `currentHeaderLine` without CRLF. Bare LF is kept as part of line.
+   * 
+   * @param byteStream request bytes stream
+   * @return true if whole line is ready, false if more bytes are needed or 
+   *         line does not fit in `currentHeaderLine`
+   */
+  private boolean readHeaderLine(BytesStream byteStream) {
+    int copied;
+    
+    while ((copied = byteStream.readUntil(
+        (byte) '\n', currentHeaderLine, currentHeaderLineLength)) > 0) {
+      
+      int len = currentHeaderLineLength += copied;
+
+      if (currentHeaderLine[len - 1] == '\n'
+          && len > 1 && currentHeaderLine[len - 2] == '\r') {
+        currentHeaderLineLength -= 2;
+        return true;
+      }
+    }
+    
+    return false;
+  }
+
   private ErrorTypes processHeaderLine() {
     byte[] line = currentHeaderLine;
     int lineLen = currentHeaderLineLength;
@@ -427,52 +709,52 @@ public final class DataHandler {
           if (line[0] == ('\t') || line[0] == (' ')) { // tab or space
             // multiline header, check if any header was read!
             if (lastHeaderName != null) {
-              // @todo improve performance here
-              if (lineLen > 1) {// lastHeaderValue never null
-                lastHeaderValue = lastHeaderValue + "\n"
-                    + new String(
-                        line, 1, lineLen - 1, this.server.getHeaderCharset());
+              if (lineLen > 1) {
+                this.request.appendToLastHeader(line, 1, lineLen - 1);
               }
             } else {
               return ErrorTypes.HTTP_MALFORMED_HEADERS;
             }
           } else {
 
-            // header flushing block.
-            if (lastHeaderName != null) {
-              this.putHeader(lastHeaderName, lastHeaderValue);
-              lastHeaderName = lastHeaderValue = null;
-            }
+            int idx = DataHandler.indexOf(line, lineLen, ':', 0);
 
-            String[] twoStrings
-                = DataHandler.parseHeader(
-                    line, lineLen, this.server.getHeaderCharset());
-
-            if (twoStrings != null) {
-              lastHeaderName = twoStrings[0];
-              if (!lastHeaderName.isEmpty()) {
-                lastHeaderValue = twoStrings[1]; //never null
-                if (lastHeaderName.length() == 14) {//optimisation
-                  if (lastHeaderName.toLowerCase().equals("content-length")) {
-                    try {
-                      this.contentLength
-                          = Long.parseLong(lastHeaderValue.trim(), 10);
-                    } catch (NullPointerException | NumberFormatException ex) {
-                      // just try, weird stuff ignore in this case...
-                    }
+            if (idx > 0) {
+              int valueIdx = idx + 1;
+              while (valueIdx < lineLen
+                  && (line[valueIdx] == ' ' || line[valueIdx] == '\t')) {
+                valueIdx++;
+              }
+
+              // value stays as bytes until handler reads it
+              lastHeaderName = HeaderNames.valueOf(
+                  line, 0, idx, this.server.getHeaderCharset());
+              this.request.addHeader(
+                  lastHeaderName, line, valueIdx, lineLen - valueIdx);
+
+              if (idx == 14) {//optimisation
+                if (lastHeaderName.equalsIgnoreCase(
+                    HeaderNames.CONTENT_LENGTH)) {
+                  long value = parseLong(line, valueIdx, lineLen);
+                  // just try, weird stuff ignore in this case...
+                  if (value != Long.MIN_VALUE) {
+                    this.contentLength = value;
                   }
                 }
+              } else if (idx == 17) {
+                if (lastHeaderName.equalsIgnoreCase(
+                    HeaderNames.TRANSFER_ENCODING)) {
+                  // chunked takes precedence over content length
+                  this.chunkedBody = 
+                      indexOfIgnoreCase(line, valueIdx, lineLen, CHUNKED) != -1;
+                }
               }
             } else {
               return ErrorTypes.HTTP_MALFORMED_HEADERS;
             }
           }
         } else {
-          // header flushing block.
-          if (lastHeaderName != null) {
-            this.putHeader(lastHeaderName, lastHeaderValue);
-            lastHeaderName = lastHeaderValue = null;
-          }
+          lastHeaderName = null;
           this.headersReady = true;
           headersReadyHandler(this);
         }
@@ -485,6 +767,18 @@ public final class DataHandler {
   public int write() throws IOException {
     this.markWriting();
 
+    if (this.offloaded) {
+      // handlers still run on blocking handlers pool, owning thread is 
+      // told when they finish
+      return 0;
+    }
+
+    if (this.response != null
+        && !this.response.isTooLateToChangeHeaders()
+        && this.server.isCompressingResponses()) {
+      this.negotiateCompression();
+    }
+
     ResponseReader responseReader;
     if (this.headersOnly) {
       responseReader = this.getInputStreamForResponse()
@@ -510,12 +804,15 @@ public final class DataHandler {
       this.response.setTooLateToChangeHeaders(true);
     }
 
-    BytesStream bytesStream = request.getBytesStream();
+    BytesStream bytesStream = this.outputBytesStream;
 
-    // adjust dynamicly buf size for future reads
+    // adjust dynamicly buf size for future writes
     if (!this.bufferSizeCalculatedForWriting) {
       this.bufferSizeCalculatedForWriting = true;
-      if (response.getContentLength() > 0) {
+      // files sent with transferTo do not need large buffers
+      if (response.getContentLength() > 0
+          && !this.isFileTransferSource(responseReader.getByteChannel())
+          && !this.isBufferTransferSource(responseReader.getByteChannel())) {
         long bufSize = response.getContentLength() - bytesStream.dataSize();
         if (bufSize <= BytesStream.getDefaultBufferChunkSize()) {
           bufSize = BytesStream.getDefaultBufferChunkSize();
@@ -527,46 +824,72 @@ public final class DataHandler {
     }
 
     int written = 0;
-    int readResult = 0;
+    int readResult = -1; // stays so when loop below is skipped
     int writtenFromBuffer;
+    // buffers are flushed already, skip to file transfer
+    boolean flushed = (this.fileTransferChannel != null
+        || this.bufferTransfer != null)
+        && this.currentResponseUnloadingBuffer == null;
 
-    do {
+    if (!flushed) {
+      do {
 
-      writtenFromBuffer = 0;
+        writtenFromBuffer = 0;
 
-      // load data to send
-      readResult = this.loadIntoWholeBuffer(responseReader, bytesStream);
+        // load data to send
+        readResult = this.loadIntoWholeBuffer(responseReader, bytesStream);
 
-      // flip em all
-      this.flipAll(bytesStream);
+        // flip em all
+        this.flipAll(bytesStream);
 
-      // writing to socket section
-      do {
-        ByteBuffer writeBuffer = this.currentResponseUnloadingBuffer.getByteBuffer();
+        // writing to socket section
+        do {
+          ByteBuffer writeBuffer = 
+              this.currentResponseUnloadingBuffer.getByteBuffer();
 
-        writtenFromBuffer = this.channel.write(writeBuffer);
-        written += writtenFromBuffer;
-
-        // buffer must be filled and fully read 
-        if (!writeBuffer.hasRemaining()) { // emptied
-          if (bytesStream.getCurrentWritingBuffer().getByteBuffer()
-              == writeBuffer) { // last buf that was to read
-            this.currentResponseUnloadingBuffer = null; // exit
-            break;
-          } else {
-            // get next buf in queue
-            this.currentResponseUnloadingBuffer = 
-                this.currentResponseUnloadingBuffer.getNext();
+          writtenFromBuffer = this.channel.write(writeBuffer);
+          written += writtenFromBuffer;
 
-            if (this.currentResponseUnloadingBuffer == null) { // last ? exit
+          // buffer must be filled and fully read 
+          if (!writeBuffer.hasRemaining()) { // emptied
+            if (bytesStream.getCurrentWritingBuffer().getByteBuffer()
+                == writeBuffer) { // last buf that was to read
+              this.currentResponseUnloadingBuffer = null; // exit
               break;
+            } else {
+              // get next buf in queue
+              this.currentResponseUnloadingBuffer = 
+                  this.currentResponseUnloadingBuffer.getNext();
+
+              if (this.currentResponseUnloadingBuffer == null) { // last ? exit
+                break;
+              }
             }
           }
-        }
           
+        } while (writtenFromBuffer > 0);
+
       } while (writtenFromBuffer > 0);
+    }
 
-    } while (writtenFromBuffer > 0 );
+    // headers and any stream data must be flushed before file is sent
+    if (this.fileTransferChannel != null
+        && this.currentResponseUnloadingBuffer == null
+        && readResult == -1) {
+      written += this.transferFile();
+      
+      if (this.fileTransferPosition < this.fileTransferLimit) {
+        readResult = 0;
+      }
+    } else if (this.bufferTransfer != null
+        && this.currentResponseUnloadingBuffer == null
+        && readResult == -1) {
+      written += this.channel.write(this.bufferTransfer);
+      
+      if (this.bufferTransfer.hasRemaining()) {
+        readResult = 0;
+      }
+    }
 
     if (written > 0) {
       this.touch();
@@ -596,6 +919,26 @@ public final class DataHandler {
     }
   }
 
+  /**
+   * Asks response to compress body if request accepts gzip or deflate and
+   * content type is one of compressed ones.
+   */
+  private void negotiateCompression() {
+    if (!this.server.isCompressedContentType(this.response.getContentType())) {
+      return;
+    }
+    
+    String encoding = CompressedBodyStream.negotiate(
+        this.request.getHeaderView(HeaderNames.ACCEPT_ENCODING));
+    
+    if (encoding != null) {
+      this.response.setCompression(
+          encoding,
+          this.server.getCompressionLevel(),
+          this.server.getCompressionMinSize());
+    }
+  }
+
   private void flipAll(BytesStream bytesStream) {
     
     if (this.currentResponseUnloadingBuffer == null) {
@@ -619,15 +962,13 @@ public final class DataHandler {
 
     if (this.currentResponseUnloadingBuffer == null) {
       bytesStream.reset(); /// reset no needed
-      this.currentResponseLoadingBuffer = bytesStream.getFirst();
-      if (this.currentResponseLoadingBuffer == null) {
-        bytesStream.getBufferToWrite();
-        this.currentResponseLoadingBuffer = bytesStream.getFirst();
-      }
+      // first buffer of new stream is allocated lazily
+      this.currentResponseLoadingBuffer = bytesStream.getBufferToWrite();
     }
 
     int readResult = 0;
     int amount = 0;
+    boolean chunkedBody = this.response.isChunked() && !this.headersOnly;
     
     // loading section into buffer
     while (this.currentResponseLoadingBuffer != null) {
@@ -637,21 +978,10 @@ public final class DataHandler {
       // fill buffer with data
       int pos = writeBuffer.position();
 
-      if (!response.isReadingChannelResponseOnly()) {
-        while (writeBuffer.hasRemaining()
-            && (readResult = responseReader.read()) != -1) {
-          writeBuffer.put((byte) readResult);
-        }
-      }
-
-      if (readResult == -1) {
-        if (responseReader.getByteChannel() != null) {
-          readResult = responseReader.getByteChannel().read(writeBuffer);
-          
-          if (readResult == 0 && writeBuffer.hasRemaining()) {
-            this.setAgainTrayingInShortTime(true);
-          }
-        }
+      if (chunkedBody) {
+        readResult = this.loadChunk((ResponseStream) responseReader, writeBuffer);
+      } else {
+        readResult = this.load(responseReader, writeBuffer, false);
       }
 
       amount += writeBuffer.position() - pos;
@@ -660,6 +990,10 @@ public final class DataHandler {
       if (readResult == -1 || server.getMaxResponseBufferFillSize() <= amount) {
         this.currentResponseLoadingBuffer = null;
         break;
+      } else if (readResult == 0 && writeBuffer.hasRemaining()) {
+        // source has nothing available now, send what is loaded
+        this.currentResponseLoadingBuffer = null;
+        break;
       } else if (!writeBuffer.hasRemaining()) { // buffer filled
         this.currentResponseLoadingBuffer = bytesStream.getBufferToWrite();
         if (!this.currentResponseLoadingBuffer.getByteBuffer().hasRemaining()) {
@@ -671,6 +1005,215 @@ public final class DataHandler {
     return readResult;
   }
 
+  private int load(
+                  ResponseReader responseReader,
+                  ByteBuffer writeBuffer,
+                  boolean singleRead)
+            throws IOException {
+    int readResult = 0;
+
+    if (!response.isReadingChannelResponseOnly()) {
+      // bulk read, old readers fall back to per byte read()
+      while (writeBuffer.hasRemaining()
+          && (readResult = responseReader.read(writeBuffer)) > 0) {
+        if (singleRead) {
+          break;
+        }
+      }
+    } else {
+      readResult = -1;
+    }
+
+    if (readResult == -1) {
+      ReadableByteChannel byteChannel = responseReader.getByteChannel();
+
+      if (this.isFileTransferSource(byteChannel)) {
+        // file will be sent directly with transferTo by write()
+        if (this.fileTransferChannel == null) {
+          this.fileTransferChannel = (FileChannel) byteChannel;
+          
+          if (this.response.getChannelLength() >= 0) {
+            this.fileTransferPosition = this.response.getChannelPosition();
+            this.fileTransferLimit = Math.min(
+                this.fileTransferChannel.size(),
+                this.fileTransferPosition + this.response.getChannelLength());
+          } else {
+            this.fileTransferPosition = this.fileTransferChannel.position();
+            this.fileTransferLimit = this.fileTransferChannel.size();
+          }
+        }
+      } else if (this.isBufferTransferSource(byteChannel)) {
+        // buffer will be written directly to socket by write()
+        if (this.bufferTransfer == null) {
+          this.bufferTransfer = ((ByteBufferChannel) byteChannel).getSource();
+        }
+      } else if (byteChannel != null) {
+        if (this.response.getChannelLength() >= 0
+            && byteChannel instanceof FileChannel) {
+          readResult = this.readFileRegion((FileChannel) byteChannel, writeBuffer);
+        } else {
+          readResult = byteChannel.read(writeBuffer);
+        }
+
+        if (readResult == 0 && writeBuffer.hasRemaining()) {
+          this.setAgainTrayingInShortTime(true);
+        }
+      }
+    }
+
+    return readResult;
+  }
+
+  /**
+   * Loads headers as they are and body as single chunk of chunked transfer
+   * encoding. Chunk size is written after data is loaded, into space reserved
+   * before it (zero padded).
+   * 
+   * @param responseStream response stream
+   * @param writeBuffer buffer to load into
+   * @return read result as in load()
+   * @throws IOException 
+   */
+  private int loadChunk(ResponseStream responseStream, ByteBuffer writeBuffer)
+            throws IOException {
+    if (!responseStream.isReadingBody()) {
+      int readResult = responseStream.getHeadersOnlyResponseReader()
+          .read(writeBuffer);
+      
+      if (readResult != -1) {
+        return readResult;
+      }
+      
+      responseStream.setReadingBody(true);
+    }
+    
+    if (this.lastChunkLoaded) {
+      return -1;
+    }
+    
+    int start = writeBuffer.position();
+    int limit = writeBuffer.limit();
+    int sizeDigits = hexDigits(limit - start);
+    int dataStart = start + sizeDigits + CHUNK_CRLF.length;
+    int dataLimit = limit - CHUNK_CRLF.length - LAST_CHUNK.length;
+    
+    if (dataStart >= dataLimit) {
+      writeBuffer.limit(start); // no space for chunk, mark buffer as filled
+      return 0;
+    }
+    
+    // checked before reading so data added just before finishing is not lost
+    boolean finished = !this.response.isMoreDataComing();
+    
+    writeBuffer.position(dataStart);
+    writeBuffer.limit(dataLimit);
+    
+    int readResult = this.load(
+        responseStream,
+        writeBuffer,
+        responseStream.getBodyStream() instanceof ChunksInputStream);
+    
+    int size = writeBuffer.position() - dataStart;
+    writeBuffer.limit(limit);
+    
+    if (size > 0) {
+      for (int i = sizeDigits - 1, s = size; i >= 0; i--, s >>>= 4) {
+        writeBuffer.put(start + i, HEX_DIGITS[s & 0xF]);
+      }
+      writeBuffer.put(start + sizeDigits, CHUNK_CRLF[0]);
+      writeBuffer.put(start + sizeDigits + 1, CHUNK_CRLF[1]);
+      writeBuffer.put(CHUNK_CRLF);
+    } else {
+      writeBuffer.position(start);
+    }
+    
+    if (readResult == -1 && finished) {
+      writeBuffer.put(LAST_CHUNK);
+      this.lastChunkLoaded = true;
+    }
+    
+    return readResult;
+  }
+  
+  /**
+   * Reads file part set on response with positioned reads.
+   * 
+   * @return read result as in load()
+   */
+  private int readFileRegion(FileChannel channel, ByteBuffer writeBuffer)
+      throws IOException {
+    if (this.fileRegionLimit < 0) {
+      this.fileRegionPosition = this.response.getChannelPosition();
+      this.fileRegionLimit = 
+          this.fileRegionPosition + this.response.getChannelLength();
+    }
+    
+    long left = this.fileRegionLimit - this.fileRegionPosition;
+    
+    if (left <= 0) {
+      return -1;
+    }
+    
+    int limit = writeBuffer.limit();
+    
+    if (writeBuffer.remaining() > left) {
+      writeBuffer.limit(writeBuffer.position() + (int) left);
+    }
+    
+    int read = channel.read(writeBuffer, this.fileRegionPosition);
+    writeBuffer.limit(limit);
+    
+    if (read > 0) {
+      this.fileRegionPosition += read;
+    }
+    
+    return read;
+  }
+  
+  private static int hexDigits(int value) {
+    return Math.max(1, (35 - Integer.numberOfLeadingZeros(value)) >> 2);
+  }
+
+  private boolean isFileTransferSource(ReadableByteChannel byteChannel) {
+    return byteChannel instanceof FileChannel
+        && this.server.isTransferringFileChannels()
+        && !this.response.isChunked();
+  }
+
+  private boolean isBufferTransferSource(ReadableByteChannel byteChannel) {
+    return byteChannel instanceof ByteBufferChannel
+        && this.server.isTransferringFileChannels()
+        && !this.response.isChunked();
+  }
+
+  /**
+   * Sends file channel directly to socket (zero copy where OS supports it).
+   * Position is kept between calls so partial writes can be continued.
+   *
+   * @return amount of bytes written
+   * @throws IOException
+   */
+  private int transferFile() throws IOException {
+    long transferred = 0;
+    long amount;
+
+    while (this.fileTransferPosition < this.fileTransferLimit) {
+      amount = this.fileTransferChannel.transferTo(
+          this.fileTransferPosition,
+          this.fileTransferLimit - this.fileTransferPosition,
+          this.channel);
+
+      if (amount <= 0) {
+        break; // socket is full, try later
+      }
+
+      this.fileTransferPosition += amount;
+      transferred += amount;
+    }
+
+    return (int) Math.min(transferred, Integer.MAX_VALUE);
+  }
+
   /**
    * @unused
    * Simple writer.
@@ -824,6 +1367,45 @@ public final class DataHandler {
       handler = getErrorHandler(handler);
     }
 
+    if (this.errorOccured == null
+        && this.handlerChain != null
+        && this.handlerChain.isBlocking()
+        && this.server.isOffloadingBlockingHandlers()) {
+      return this.offloadHandlers(handler);
+    }
+
+    return this.processHandlers(handler);
+  }
+
+  private ErrorTypes offloadHandlers(final Handler handler) {
+    this.offloaded = true;
+
+    boolean accepted = this.server.getBlockingHandlersPool().submit(() -> {
+      try {
+        this.processHandlers(handler);
+      } finally {
+        this.offloaded = false;
+        AbstractHandlingThread owner = this.owningThread;
+        if (owner != null) {
+          owner.jobReady(this);
+        } else if (this.selectionKey != null) {
+          this.selectionKey.selector().wakeup();
+        }
+      }
+    });
+
+    if (accepted) {
+      return null;
+    }
+
+    // pool is saturated, fail fast
+    this.offloaded = false;
+    this.errorOccured = ErrorTypes.HTTP_SERVICE_UNAVAILABLE;
+    this.processHandlers(getErrorHandler(handler));
+    return this.errorOccured;
+  }
+
+  private ErrorTypes processHandlers(Handler handler) {
     beforeHandlingReadyHandler(this);
 
     if (handler != null) {
@@ -890,6 +1472,10 @@ public final class DataHandler {
         case HTTP_UNSET_METHOD:
         case HTTP_BAD_REQUEST:
           return 400;
+        case HTTP_PAYLOAD_TOO_LARGE:
+          return 413;
+        case HTTP_SERVICE_UNAVAILABLE:
+          return 503;
         case IO_ERROR:
         case HTTP_SERVER_ERROR:
         case HTTP_UNKNOWN_ERROR:
@@ -912,7 +1498,8 @@ public final class DataHandler {
 
     if (finishedWriting) {
       long cl = this.response.getContentLength();
-      if (cl == -1) {
+      // unknown length ends with connection close unless chunked
+      if (cl == -1 && !this.response.isChunked()) {
         return true;
       }
     }
@@ -921,13 +1508,11 @@ public final class DataHandler {
       return false;
     }
 
-    String connection = this.getHeader("Connection");
+    CharSequence connection = 
+        this.request.getHeaderView(HeaderNames.CONNECTION);
 
-    if (connection != null) {
-      switch (connection) {
-        case "keep-alive":
-          return false;
-      }
+    if (connection != null && "keep-alive".contentEquals(connection)) {
+      return false;
     }
 
     return true;
@@ -1054,6 +1639,8 @@ public final class DataHandler {
         finishedAndClosedHandler(this);
       } finally {
         cleanupAfterProcessing();
+        // closed connection will not read anymore, input goes back to pool
+        this.releaseRequestBuffers();
       }
     }
   }
@@ -1160,10 +1747,34 @@ public final class DataHandler {
   private void markWriting() throws ClosedChannelException {
     if (!this.writingResponse) {
       this.bufferSizeCalculatedForWriting = false;
-      request.getBytesStream().reset(); //--> now done in write function
+      
+      if (this.outputBytesStream == null) {
+        this.outputBytesStream = 
+            this.server.getOutputBytesStreamPool().acquire();
+      }
+      
+      this.outputBytesStream.reset();
       this.writingResponse = true; // running writing
     }
   }
+  
+  private void releaseOutputBytesStream() {
+    if (this.outputBytesStream != null) {
+      if (this.server != null && this.server.isCachingBuffers()) {
+        this.server.getOutputBytesStreamPool()
+            .release(this.outputBytesStream);
+      } else {
+        this.outputBytesStream.releaseBuffers();
+      }
+      this.outputBytesStream = null;
+    }
+  }
+
+  private void releaseRequestBuffers() {
+    if (this.request != null) {
+      this.request.getBytesStream().releaseBuffers();
+    }
+  }
 
   private int getFinishedWritingResponse() throws ClosedChannelException {
     this.cleanupAfterProcessing();
@@ -1175,19 +1786,6 @@ public final class DataHandler {
     return Math.min(this.maxFromContentSizeBufferChunkSize, (int) (cl / 2));
   }
 
-  private String getHeader(String name) {
-    for (String[] header : this.request.getHeaders()) {
-      if (header[0].equals(name)) {
-        return header[1];
-      }
-    }
-    return null;
-  }
-
-  private void putHeader(String lastHeaderName, String string) {
-    this.request.getHeaders().add(new String[]{lastHeaderName, string});
-  }
-
   private boolean checkIfBodyRequired(byte[] line, int idx) {
     // strictly private method and we assume line length much longer than 
     // checks provided in here (its obvious)
@@ -1219,6 +1817,71 @@ public final class DataHandler {
     return true;
   }
 
+  private static final byte[] CHUNKED = 
+      new byte[]{'c', 'h', 'u', 'n', 'k', 'e', 'd'};
+
+  /**
+   * Finds lower case ASCII bytes in line ignoring case.
+   * 
+   * @param line bytes
+   * @param from start index
+   * @param to end index (exclusive)
+   * @param lowerCase bytes to find, lower case
+   * @return index or -1
+   */
+  static int indexOfIgnoreCase(
+      byte[] line, int from, int to, byte[] lowerCase) {
+    for (int i = from; i <= to - lowerCase.length; i++) {
+      int j = 0;
+      while (j < lowerCase.length
+          && (line[i + j] | 0x20) == lowerCase[j]) {
+        j++;
+      }
+      if (j == lowerCase.length) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Parses decimal number surrounded by optional whitespace.
+   * 
+   * @param line bytes
+   * @param from start index
+   * @param to end index (exclusive)
+   * @return parsed value or Long.MIN_VALUE if bytes are not a number
+   */
+  static long parseLong(byte[] line, int from, int to) {
+    while (from < to && line[from] <= ' ') {
+      from++;
+    }
+    while (to > from && line[to - 1] <= ' ') {
+      to--;
+    }
+    
+    boolean negative = false;
+    if (from < to && (line[from] == '-' || line[from] == '+')) {
+      negative = line[from] == '-';
+      from++;
+    }
+    
+    if (from == to || to - from > 18) {
+      return Long.MIN_VALUE;
+    }
+    
+    long value = 0;
+    for (int i = from; i < to; i++) {
+      int digit = line[i] - '0';
+      if (digit < 0 || digit > 9) {
+        return Long.MIN_VALUE;
+      }
+      value = value * 10 + digit;
+    }
+    
+    return negative ? -value : value;
+  }
+
   public static int indexOf(byte[] line, int len, char c, int from) {
     for (int i = from; i < len; i++) {
       if (line[i] == c) {
@@ -1236,7 +1899,7 @@ public final class DataHandler {
   }
 
   public void switchToWritingInterest() throws ClosedChannelException {
-    if (this.selectionKey == null) {
+    if (this.selectionKey != null) {
       this.selectionKey.interestOps(OP_WRITE);
     }
   }
@@ -1247,6 +1910,15 @@ public final class DataHandler {
     }
   }
 
+  /**
+   * Stops selecting channel events, for time when job can't progress on IO.
+   */
+  public void clearInterest() {
+    if (this.selectionKey != null) {
+      this.selectionKey.interestOps(0);
+    }
+  }
+
   /**
    * @return the requestStartedTime
    */
@@ -1280,10 +1952,13 @@ public final class DataHandler {
     if (this.writingResponse) {
       this.writingResponse = false; // finished writing
       this.currentResponseUnloadingBuffer = null;
+      this.fileTransferChannel = null;
+      this.bufferTransfer = null;
       // this.currentResponseLoadingBuffer = null; // unnecessary as 
       // currentResponseUnloadingBuffer equal null will cause it
       // Reading input is over, stream was used so close it:
       DataHandler.closeResponseReaderStream(this.response);
+      this.releaseOutputBytesStream();
       // requerst uses growing buffer to store data and for larger inputs
       // handlers should controll handlingh and closing.
     } else {
@@ -0,0 +1,166 @@
+/*
+ * topNET
+ * Fast HTTP Server Solution.
+ * Copyright 2016, Qubit Group <www.qubit.com>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  
+ * If not, see <https://www.gnu.org/licenses/lgpl-3.0.en.html>
+ * 
+ * Author: Peter Fronc <peter.fronc@qubitdigital.com>
+ */
+package com.qubit.topnet;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+/**
+ * Per thread cache of deflaters used for compressing responses. Deflater 
+ * holds native memory and is expensive to create, so each handling thread 
+ * keeps few of them and reuses them for following responses. Thread 
+ * handling many connections at once takes one deflater per compressed
+ * response being written. Deflaters not fitting thread cache, or left by
+ * finishing threads, wait in small global pool.
+ * 
+ * @author Peter Fronc <peter.fronc@qubitdigital.com>
+ */
+public class DeflaterPool {
+  
+  private static int maxThreadCachedDeflaters = 4;
+  private static int maxPooledDeflaters = 64;
+  
+  private static final AtomicInteger pooledDeflaters = new AtomicInteger(0);
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private static final ConcurrentLinkedQueue<Deflater>[] globalPools = 
+      new ConcurrentLinkedQueue[]{
+        new ConcurrentLinkedQueue<>(), new ConcurrentLinkedQueue<>()};
+  
+  // index 0 - zlib format (deflate), index 1 - raw (nowrap, for gzip)
+  private static final ThreadLocal<ArrayDeque<Deflater>[]> threadPools = 
+      new ThreadLocal<ArrayDeque<Deflater>[]>() {
+    @Override
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    protected ArrayDeque<Deflater>[] initialValue() {
+      return new ArrayDeque[]{new ArrayDeque<>(), new ArrayDeque<>()};
+    }
+  };
+
+  private DeflaterPool() {}
+  
+  /**
+   * @param level compression level
+   * @param nowrap true for raw deflate stream (no zlib header and checksum)
+   * @return deflater ready to use
+   */
+  public static Deflater acquire(int level, boolean nowrap) {
+    int kind = nowrap ? 1 : 0;
+    Deflater deflater = threadPools.get()[kind].pollFirst();
+    
+    if (deflater == null) {
+      deflater = globalPools[kind].poll();
+      if (deflater != null) {
+        pooledDeflaters.decrementAndGet();
+      }
+    }
+    
+    if (deflater == null) {
+      return new Deflater(level, nowrap);
+    }
+    
+    deflater.setLevel(level);
+    return deflater;
+  }
+  
+  /**
+   * Returns deflater to current thread cache or global pool, it is ended if
+   * both are full.
+   * 
+   * @param deflater deflater taken with `acquire`
+   * @param nowrap same as given to `acquire`
+   */
+  public static void release(Deflater deflater, boolean nowrap) {
+    int kind = nowrap ? 1 : 0;
+    ArrayDeque<Deflater> local = threadPools.get()[kind];
+    
+    deflater.reset();
+    
+    if (local.size() < maxThreadCachedDeflaters) {
+      local.addFirst(deflater);
+    } else {
+      releaseToGlobalPool(deflater, kind);
+    }
+  }
+  
+  private static void releaseToGlobalPool(Deflater deflater, int kind) {
+    if (pooledDeflaters.incrementAndGet() > maxPooledDeflaters) {
+      pooledDeflaters.decrementAndGet();
+      deflater.end();
+    } else {
+      globalPools[kind].offer(deflater);
+    }
+  }
+  
+  /**
+   * Moves deflaters cached by current thread to global pool, to be called 
+   * by threads before they finish.
+   */
+  public static void releaseThreadCache() {
+    ArrayDeque<Deflater>[] pools = threadPools.get();
+    
+    for (int kind = 0; kind < pools.length; kind++) {
+      Deflater deflater;
+      
+      while ((deflater = pools[kind].pollFirst()) != null) {
+        releaseToGlobalPool(deflater, kind);
+      }
+    }
+    
+    threadPools.remove();
+  }
+
+  /**
+   * @return the maxThreadCachedDeflaters
+   */
+  public static int getMaxThreadCachedDeflaters() {
+    return maxThreadCachedDeflaters;
+  }
+
+  /**
+   * @param aMaxThreadCachedDeflaters the maxThreadCachedDeflaters to set
+   */
+  public static void setMaxThreadCachedDeflaters(
+      int aMaxThreadCachedDeflaters) {
+    maxThreadCachedDeflaters = aMaxThreadCachedDeflaters;
+  }
+
+  /**
+   * @return the maxPooledDeflaters
+   */
+  public static int getMaxPooledDeflaters() {
+    return maxPooledDeflaters;
+  }
+
+  /**
+   * @param aMaxPooledDeflaters idle deflaters kept in global pool
+   */
+  public static void setMaxPooledDeflaters(int aMaxPooledDeflaters) {
+    maxPooledDeflaters = aMaxPooledDeflaters;
+  }
+
+  /**
+   * @return amount of deflaters waiting in global pool
+   */
+  public static int getPooledDeflaters() {
+    return pooledDeflaters.get();
+  }
+}
@@ -0,0 +1,274 @@
+/*
+ * topNET
+ * Fast HTTP Server Solution.
+ * Copyright 2016, Qubit Group <www.qubit.com>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  
+ * If not, see <https://www.gnu.org/licenses/lgpl-3.0.en.html>
+ * 
+ * Author: Peter Fronc <peter.fronc@qubitdigital.com>
+ */
+
+package com.qubit.topnet;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Allocator for direct buffers used by bytes streams. Sizes are rounded up to
+ * power of two size classes, released buffers are kept first in small per 
+ * thread caches and then in global queues, so connections coming and going
+ * reuse same off-heap memory instead of leaving it for GC to clean up.
+ * 
+ * Total amount of direct bytes allocated can be limited with 
+ * `setMaxDirectBytes`, when limit is reached heap buffers are returned
+ * instead - those are never pooled.
+ * 
+ * @author Peter Fronc <peter.fronc@qubitdigital.com>
+ */
+public class DirectBufferPool {
+
+  private static final int MIN_CLASS_SHIFT = 12; // 4KB
+  private static final int MAX_CLASS_SHIFT = 22; // 4MB
+  private static final int CLASSES = MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1;
+
+  // purposely static - direct memory is shared by all servers in process
+  private static long maxDirectBytes = -1;
+  private static long maxPooledBytes = 64 * 1024 * 1024;
+  private static int maxThreadCachedBuffers = 4;
+
+  private static final AtomicLong allocatedBytes = new AtomicLong(0);
+  private static final AtomicLong pooledBytes = new AtomicLong(0);
+  private static final AtomicLong heapFallbacks = new AtomicLong(0);
+
+  private static final ConcurrentLinkedQueue<ByteBuffer>[] globalPools;
+
+  static {
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    ConcurrentLinkedQueue<ByteBuffer>[] pools = 
+        new ConcurrentLinkedQueue[CLASSES];
+    for (int i = 0; i < CLASSES; i++) {
+      pools[i] = new ConcurrentLinkedQueue<>();
+    }
+    globalPools = pools;
+  }
+
+  private static final ThreadLocal<ArrayDeque<ByteBuffer>[]> threadPools = 
+      new ThreadLocal<ArrayDeque<ByteBuffer>[]>() {
+    @Override
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    protected ArrayDeque<ByteBuffer>[] initialValue() {
+      ArrayDeque<ByteBuffer>[] pools = new ArrayDeque[CLASSES];
+      for (int i = 0; i < CLASSES; i++) {
+        pools[i] = new ArrayDeque<>();
+      }
+      return pools;
+    }
+  };
+
+  private DirectBufferPool() {}
+
+  /**
+   * Returns cleared buffer with capacity of at least `size` bytes. Buffer 
+   * comes from current thread cache, global pool or is newly allocated.
+   * 
+   * @param size minimum capacity
+   * @return buffer, direct unless max direct bytes limit is reached
+   */
+  public static ByteBuffer acquire(int size) {
+    int sizeClass = sizeClassOf(size);
+
+    if (sizeClass < 0) { // too large for pooling
+      return allocate(size);
+    }
+
+    ByteBuffer buffer = threadPools.get()[sizeClass].pollFirst();
+
+    if (buffer == null) {
+      buffer = globalPools[sizeClass].poll();
+      if (buffer != null) {
+        pooledBytes.addAndGet(-buffer.capacity());
+      }
+    }
+
+    if (buffer == null) {
+      return allocate(1 << (sizeClass + MIN_CLASS_SHIFT));
+    }
+
+    buffer.clear();
+    return buffer;
+  }
+
+  /**
+   * Returns buffer to pool. Buffer must not be used after it is released.
+   * Heap buffers are ignored, direct buffers that do not fit pool limits 
+   * are dropped and left for GC.
+   * 
+   * @param buffer buffer taken with `acquire`
+   */
+  public static void release(ByteBuffer buffer) {
+    if (buffer == null || !buffer.isDirect()) {
+      return;
+    }
+
+    int capacity = buffer.capacity();
+    int sizeClass = sizeClassOf(capacity);
+
+    if (sizeClass < 0 || (1 << (sizeClass + MIN_CLASS_SHIFT)) != capacity) {
+      allocatedBytes.addAndGet(-capacity);
+      return;
+    }
+
+    ArrayDeque<ByteBuffer> local = threadPools.get()[sizeClass];
+
+    if (local.size() < maxThreadCachedBuffers) {
+      local.addFirst(buffer);
+      return;
+    }
+
+    releaseToGlobalPool(buffer, sizeClass);
+  }
+
+  private static void releaseToGlobalPool(ByteBuffer buffer, int sizeClass) {
+    int capacity = buffer.capacity();
+    
+    if (pooledBytes.addAndGet(capacity) > maxPooledBytes) {
+      pooledBytes.addAndGet(-capacity);
+      allocatedBytes.addAndGet(-capacity);
+      return; // let it go
+    }
+
+    globalPools[sizeClass].offer(buffer);
+  }
+
+  /**
+   * Moves buffers cached by current thread to global pool. Threads using 
+   * pool must call it before they finish, otherwise their cached buffers 
+   * stay counted as allocated and are never reused.
+   */
+  public static void releaseThreadCache() {
+    ArrayDeque<ByteBuffer>[] pools = threadPools.get();
+    
+    for (int i = 0; i < CLASSES; i++) {
+      ByteBuffer buffer;
+      
+      while ((buffer = pools[i].pollFirst()) != null) {
+        releaseToGlobalPool(buffer, i);
+      }
+    }
+    
+    threadPools.remove();
+  }
+
+  private static ByteBuffer allocate(int size) {
+    long allocated = allocatedBytes.addAndGet(size);
+
+    if (maxDirectBytes >= 0 && allocated > maxDirectBytes) {
+      allocatedBytes.addAndGet(-size);
+      heapFallbacks.incrementAndGet();
+      return ByteBuffer.allocate(size);
+    }
+
+    return ByteBuffer.allocateDirect(size);
+  }
+
+  /**
+   * @param size amount of bytes
+   * @return size class index or -1 if size is above largest class
+   */
+  static int sizeClassOf(int size) {
+    if (size <= (1 << MIN_CLASS_SHIFT)) {
+      return 0;
+    }
+
+    int shift = 32 - Integer.numberOfLeadingZeros(size - 1);
+
+    if (shift > MAX_CLASS_SHIFT) {
+      return -1;
+    }
+
+    return shift - MIN_CLASS_SHIFT;
+  }
+
+  /**
+   * @return the maxDirectBytes
+   */
+  public static long getMaxDirectBytes() {
+    return maxDirectBytes;
+  }
+
+  /**
+   * Hard limit of direct bytes allocated by pool, including buffers in use.
+   * Negative value means no limit.
+   * 
+   * @param aMaxDirectBytes the maxDirectBytes to set
+   */
+  public static void setMaxDirectBytes(long aMaxDirectBytes) {
+    maxDirectBytes = aMaxDirectBytes;
+  }
+
+  /**
+   * @return the maxPooledBytes
+   */
+  public static long getMaxPooledBytes() {
+    return maxPooledBytes;
+  }
+
+  /**
+   * Limit of idle bytes kept in global pool.
+   * 
+   * @param aMaxPooledBytes the maxPooledBytes to set
+   */
+  public static void setMaxPooledBytes(long aMaxPooledBytes) {
+    maxPooledBytes = aMaxPooledBytes;
+  }
+
+  /**
+   * @return the maxThreadCachedBuffers
+   */
+  public static int getMaxThreadCachedBuffers() {
+    return maxThreadCachedBuffers;
+  }
+
+  /**
+   * Amount of buffers per size class each thread keeps for itself before 
+   * returning them to global pool.
+   * 
+   * @param aMaxThreadCachedBuffers the maxThreadCachedBuffers to set
+   */
+  public static void setMaxThreadCachedBuffers(int aMaxThreadCachedBuffers) {
+    maxThreadCachedBuffers = aMaxThreadCachedBuffers;
+  }
+
+  /**
+   * @return direct bytes currently allocated by pool (in use and idle)
+   */
+  public static long getAllocatedBytes() {
+    return allocatedBytes.get();
+  }
+
+  /**
+   * @return direct bytes waiting in global pool
+   */
+  public static long getPooledBytes() {
+    return pooledBytes.get();
+  }
+
+  /**
+   * @return amount of heap buffers returned due to max direct bytes limit
+   */
+  public static long getHeapFallbacks() {
+    return heapFallbacks.get();
+  }
+}
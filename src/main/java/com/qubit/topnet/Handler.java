@@ -36,7 +36,6 @@ public abstract class Handler {
   
   private Handler next;
 
-  // consider per thread instance handlers sets
   /**
    * Function defining how handler instance is created by topNET engine for 
    * each request processing chain.
@@ -47,6 +46,11 @@ public abstract class Handler {
    * 
    * This function is shared among all worker threads in topNET.
    * 
+   * Chains are cached per worker thread and reused for requests with the 
+   * same route only if all their handlers opt in with {@link #isReusable()},
+   * see {@link #reset()}. If returned instance is same as this handler it is
+   * treated as shared - chain will not change its next link.
+   * 
    * @return instance of handler to be used in request processing.
    */
   public Handler getInstance() {
@@ -169,6 +173,23 @@ public abstract class Handler {
     return true;
   }
 
+  /**
+   * Declares path prefix of all paths this handler can match. When not null,
+   * handler registered with 
+   * {@link ServerBase#registerMatchingHandler(Handler handler)} is indexed
+   * by the prefix and {@link #matches(String, String, String)} is called only
+   * for paths starting with it. Null (default) means handler is asked for 
+   * every request.
+   * 
+   * Value is read when server routing is rebuilt after handlers registration
+   * change, it should not change later.
+   * 
+   * @return path prefix or null
+   */
+  public String getPathPrefix() {
+    return null;
+  }
+
   public InputStream getErrorInputStream(ErrorTypes errorOccured) {
     return null;
   }
@@ -205,6 +226,42 @@ public abstract class Handler {
   
   public void onError(Throwable t) {}
 
+  /**
+   * Called when request processing is finished and handler instance is 
+   * returned with its chain to worker thread cache. Handlers keeping per
+   * request state must clear it here, next request for same route will be
+   * processed by same instance.
+   */
+  public void reset() {}
+
+  /**
+   * Tells if handler blocks while processing (waits for database, remote 
+   * service etc.). Request with blocking handler in its chain is processed
+   * on server {@link BlockingHandlersPool} so IO handling thread can serve 
+   * other connections meanwhile.
+   * 
+   * Default value is false.
+   * 
+   * @return true if handler blocks
+   */
+  public boolean isBlocking() {
+    return false;
+  }
+
+  /**
+   * Tells if handler instance can be reused for next requests after 
+   * {@link #reset()}. Override to return true if handler keeps no per 
+   * request state or clears it in {@link #reset()}, otherwise new instance
+   * is taken from {@link #getInstance()} for each request.
+   * 
+   * Default value is false.
+   * 
+   * @return true if instance can be reused
+   */
+  public boolean isReusable() {
+    return false;
+  }
+
   /**
    * Returns next handler to be used in handling chain or null if none is to be used.
    * @return the next
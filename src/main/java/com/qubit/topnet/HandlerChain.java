@@ -0,0 +1,377 @@
+/*
+ * topNET
+ * Fast HTTP Server Solution.
+ * Copyright 2016, Qubit Group <www.qubit.com>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  
+ * If not, see <https://www.gnu.org/licenses/lgpl-3.0.en.html>
+ * 
+ * Author: Peter Fronc <peter.fronc@qubitdigital.com>
+ */
+
+package com.qubit.topnet;
+
+import com.qubit.topnet.errors.ErrorTypes;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Handling chain resolved for one route - set of matched handlers and plain
+ * handler. Chain owns its handler instances and their next links, handlers
+ * shared between requests (their getInstance() returns registered instance)
+ * are wrapped so links of shared instances are never changed.
+ * 
+ * Chains of reusable handlers (see {@link Handler#isReusable()}) are cached
+ * per handling thread: when request is finished chain is released, every 
+ * handler gets {@link Handler#reset()} called, links are restored and chain
+ * waits for next request with same route on that thread.
+ * 
+ * @author Peter Fronc <peter.fronc@qubitdigital.com>
+ */
+public final class HandlerChain {
+
+  private static final Logger log = 
+      Logger.getLogger(HandlerChain.class.getName());
+
+  private final Handler[] handlers;
+  private final Key key;
+  private final ThreadLocal<Cache> caches;
+  private final boolean reusable;
+  private final boolean blocking;
+
+  private HandlerChain(Handler[] handlers, Key key, ThreadLocal<Cache> caches) {
+    this.handlers = handlers;
+    this.key = key;
+    this.caches = caches;
+    
+    boolean allReusable = caches != null;
+    boolean anyBlocking = false;
+    for (Handler handler : handlers) {
+      allReusable &= handler.isReusable();
+      anyBlocking |= handler.isBlocking();
+    }
+    this.reusable = allReusable;
+    this.blocking = anyBlocking;
+    
+    this.link();
+  }
+
+  /**
+   * @return first handler in chain
+   */
+  public Handler getFirst() {
+    return this.handlers[0];
+  }
+
+  /**
+   * @return true if any handler in chain is blocking
+   */
+  public boolean isBlocking() {
+    return this.blocking;
+  }
+
+  /**
+   * Returns chain to cache of current thread. Chain must not be used after.
+   */
+  public void release() {
+    if (!this.reusable) {
+      return;
+    }
+
+    for (Handler handler : this.handlers) {
+      try {
+        handler.reset();
+      } catch (Throwable t) {
+        log.log(Level.SEVERE, "Error resetting handler, chain dropped.", t);
+        return;
+      }
+    }
+
+    this.link(); // handlers could change links while processing
+    this.caches.get().offer(this);
+  }
+
+  private void link() {
+    for (int i = 0; i < this.handlers.length; i++) {
+      this.handlers[i].setNext(
+          i + 1 < this.handlers.length ? this.handlers[i + 1] : null);
+    }
+  }
+
+  /**
+   * Builds new chain for handlers matched, chain is not cached.
+   * 
+   * @param trie trie which matched handlers
+   * @param matched matched handlers bit set
+   * @param plainHandler plain handler or null
+   * @return chain or null if there are no handlers
+   */
+  static HandlerChain build(
+      RoutingTrie trie, long[] matched, Handler plainHandler) {
+    return build(trie, matched, plainHandler, null, null);
+  }
+
+  private static HandlerChain build(
+      RoutingTrie trie,
+      long[] matched,
+      Handler plainHandler,
+      Key key,
+      ThreadLocal<Cache> caches) {
+    List<Handler> handlers = new ArrayList<>();
+
+    for (int w = 0; w < matched.length; w++) {
+      long word = matched[w];
+      while (word != 0) {
+        int i = (w << 6) + Long.numberOfTrailingZeros(word);
+        word &= word - 1;
+        handlers.add(instanceOf(trie.getMatchingHandler(i)));
+      }
+    }
+
+    if (plainHandler != null) {
+      handlers.add(instanceOf(plainHandler));
+    }
+
+    if (handlers.isEmpty()) {
+      return null;
+    }
+
+    return new HandlerChain(
+        handlers.toArray(new Handler[handlers.size()]), key, caches);
+  }
+
+  private static Handler instanceOf(Handler registered) {
+    Handler instance = registered.getInstance();
+    if (instance == registered) {
+      return new SharedHandlerLink(instance);
+    }
+    return instance;
+  }
+
+  /**
+   * Creates per thread chains cache.
+   * 
+   * @return thread local with cache for each thread
+   */
+  static ThreadLocal<Cache> newCaches() {
+    return new ThreadLocal<Cache>() {
+      @Override
+      protected Cache initialValue() {
+        return new Cache(this);
+      }
+    };
+  }
+
+  /**
+   * Chains of single handling thread, by route. Accessed only by its thread.
+   */
+  static final class Cache {
+    private static final int MAX_ROUTES = 256;
+    private static final int MAX_CHAINS_PER_ROUTE = 16;
+
+    private final ThreadLocal<Cache> caches;
+    private final Map<Key, ArrayDeque<HandlerChain>> chains = new HashMap<>();
+    private final Key probe = new Key();
+    private long version = -1;
+
+    private Cache(ThreadLocal<Cache> caches) {
+      this.caches = caches;
+    }
+
+    /**
+     * Takes free chain for route from cache or builds new one.
+     * 
+     * @param version routing table version
+     * @param trie routing trie of that version
+     * @param matched matched handlers bit set
+     * @param plainHandler plain handler or null
+     * @return chain or null if there are no handlers
+     */
+    HandlerChain acquire(
+        long version, RoutingTrie trie, long[] matched, Handler plainHandler) {
+      if (this.version != version) {
+        this.chains.clear(); // routing changed
+        this.version = version;
+      }
+
+      this.probe.set(version, matched, plainHandler);
+      ArrayDeque<HandlerChain> free = this.chains.get(this.probe);
+
+      if (free != null) {
+        HandlerChain chain = free.pollFirst();
+        if (chain != null) {
+          return chain;
+        }
+      }
+
+      return build(trie, matched, plainHandler, this.probe.copy(), this.caches);
+    }
+
+    private void offer(HandlerChain chain) {
+      if (chain.key.version != this.version) {
+        return; // chain of old routing
+      }
+
+      ArrayDeque<HandlerChain> free = this.chains.get(chain.key);
+
+      if (free == null) {
+        if (this.chains.size() >= MAX_ROUTES) {
+          return;
+        }
+        free = new ArrayDeque<>();
+        this.chains.put(chain.key, free);
+      }
+
+      if (free.size() < MAX_CHAINS_PER_ROUTE) {
+        free.addFirst(chain);
+      }
+    }
+  }
+
+  private static final class Key {
+    private long version;
+    private long[] matched;
+    private Handler plainHandler;
+    private int hash;
+
+    void set(long version, long[] matched, Handler plainHandler) {
+      this.version = version;
+      this.matched = matched;
+      this.plainHandler = plainHandler;
+      this.hash = 31 * Arrays.hashCode(matched) 
+          + System.identityHashCode(plainHandler);
+    }
+
+    Key copy() {
+      Key key = new Key();
+      key.version = this.version;
+      key.matched = this.matched.clone();
+      key.plainHandler = this.plainHandler;
+      key.hash = this.hash;
+      return key;
+    }
+
+    @Override
+    public int hashCode() {
+      return this.hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) obj;
+      return this.version == other.version
+          && this.plainHandler == other.plainHandler
+          && Arrays.equals(this.matched, other.matched);
+    }
+  }
+
+  /**
+   * Chain element for handler instance shared by many chains, it keeps own
+   * next link and passes everything else to shared handler.
+   */
+  static final class SharedHandlerLink extends Handler {
+    private final Handler handler;
+
+    SharedHandlerLink(Handler handler) {
+      this.handler = handler;
+    }
+
+    /**
+     * @return the shared handler
+     */
+    public Handler getHandler() {
+      return handler;
+    }
+
+    @Override
+    public Handler getInstance() {
+      return this.handler.getInstance();
+    }
+
+    @Override
+    public boolean init(Request request, Response response) {
+      return this.handler.init(request, response);
+    }
+
+    @Override
+    public boolean process(Request request, Response response, DataHandler dh)
+        throws Exception {
+      return this.handler.process(request, response, dh);
+    }
+
+    @Override
+    public boolean process(Request request, Response response) 
+        throws Exception {
+      return this.handler.process(request, response);
+    }
+
+    @Override
+    public boolean matches(String fullPath, String path, String params) {
+      return this.handler.matches(fullPath, path, params);
+    }
+
+    @Override
+    public String getPathPrefix() {
+      return this.handler.getPathPrefix();
+    }
+
+    @Override
+    public InputStream getErrorInputStream(ErrorTypes errorOccured) {
+      return this.handler.getErrorInputStream(errorOccured);
+    }
+
+    @Override
+    public Handler getErrorHandler() {
+      return this.handler.getErrorHandler();
+    }
+
+    @Override
+    public long getMaxIncomingDataSize() {
+      return this.handler.getMaxIncomingDataSize();
+    }
+
+    @Override
+    public int getMaxIdle() {
+      return this.handler.getMaxIdle();
+    }
+
+    @Override
+    public void onError(Throwable t) {
+      this.handler.onError(t);
+    }
+
+    @Override
+    public boolean isReusable() {
+      return true; // same instance serves every request anyway
+    }
+
+    @Override
+    public boolean isBlocking() {
+      return this.handler.isBlocking();
+    }
+
+    @Override
+    public void reset() {
+      // shared instance is not owned by chain
+    }
+  }
+}
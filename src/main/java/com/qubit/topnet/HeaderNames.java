@@ -0,0 +1,152 @@
+/*
+ * topNET
+ * Fast HTTP Server Solution.
+ * Copyright 2016, Qubit Group <www.qubit.com>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  
+ * If not, see <https://www.gnu.org/licenses/lgpl-3.0.en.html>
+ * 
+ * Author: Peter Fronc <peter.fronc@qubitdigital.com>
+ */
+
+package com.qubit.topnet;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Well known header names. Header names parsed from requests that match one
+ * of those constants (in canonical or lower case form) share the constant 
+ * instead of allocating new string for every request.
+ * 
+ * @author Peter Fronc <peter.fronc@qubitdigital.com>
+ */
+public final class HeaderNames {
+
+  public static final String ACCEPT = "Accept";
+  public static final String ACCEPT_CHARSET = "Accept-Charset";
+  public static final String ACCEPT_ENCODING = "Accept-Encoding";
+  public static final String ACCEPT_LANGUAGE = "Accept-Language";
+  public static final String AUTHORIZATION = "Authorization";
+  public static final String CACHE_CONTROL = "Cache-Control";
+  public static final String CONNECTION = "Connection";
+  public static final String CONTENT_ENCODING = "Content-Encoding";
+  public static final String CONTENT_LENGTH = "Content-Length";
+  public static final String CONTENT_TYPE = "Content-Type";
+  public static final String COOKIE = "Cookie";
+  public static final String EXPECT = "Expect";
+  public static final String HOST = "Host";
+  public static final String IF_MATCH = "If-Match";
+  public static final String IF_MODIFIED_SINCE = "If-Modified-Since";
+  public static final String IF_NONE_MATCH = "If-None-Match";
+  public static final String IF_RANGE = "If-Range";
+  public static final String IF_UNMODIFIED_SINCE = "If-Unmodified-Since";
+  public static final String ORIGIN = "Origin";
+  public static final String PRAGMA = "Pragma";
+  public static final String RANGE = "Range";
+  public static final String REFERER = "Referer";
+  public static final String TRANSFER_ENCODING = "Transfer-Encoding";
+  public static final String UPGRADE = "Upgrade";
+  public static final String USER_AGENT = "User-Agent";
+  public static final String X_FORWARDED_FOR = "X-Forwarded-For";
+  public static final String X_FORWARDED_PROTO = "X-Forwarded-Proto";
+  public static final String X_REQUESTED_WITH = "X-Requested-With";
+
+  private static final String[] KNOWN = {
+    ACCEPT, ACCEPT_CHARSET, ACCEPT_ENCODING, ACCEPT_LANGUAGE, AUTHORIZATION,
+    CACHE_CONTROL, CONNECTION, CONTENT_ENCODING, CONTENT_LENGTH, CONTENT_TYPE,
+    COOKIE, EXPECT, HOST, IF_MATCH, IF_MODIFIED_SINCE, IF_NONE_MATCH, IF_RANGE,
+    IF_UNMODIFIED_SINCE, ORIGIN, PRAGMA, RANGE, REFERER, TRANSFER_ENCODING,
+    UPGRADE, USER_AGENT, X_FORWARDED_FOR, X_FORWARDED_PROTO, X_REQUESTED_WITH
+  };
+
+  // candidates by name length, canonical and lower case forms
+  private static final String[][] BY_LENGTH;
+
+  static {
+    int maxLength = 0;
+    for (String name : KNOWN) {
+      maxLength = Math.max(maxLength, name.length());
+    }
+
+    List<List<String>> byLength = new ArrayList<>();
+    for (int i = 0; i <= maxLength; i++) {
+      byLength.add(new ArrayList<String>());
+    }
+
+    for (String name : KNOWN) {
+      List<String> candidates = byLength.get(name.length());
+      candidates.add(name);
+      candidates.add(name.toLowerCase().intern());
+    }
+
+    BY_LENGTH = new String[maxLength + 1][];
+    for (int i = 0; i <= maxLength; i++) {
+      BY_LENGTH[i] = byLength.get(i).toArray(new String[0]);
+    }
+  }
+
+  private HeaderNames() {}
+
+  /**
+   * Returns header name for bytes given. Known names are returned as 
+   * constants, others are decoded with charset.
+   * 
+   * @param bytes source bytes
+   * @param offset name start
+   * @param len name length
+   * @param charset charset used for unknown names
+   * @return header name
+   */
+  public static String valueOf(
+      byte[] bytes, int offset, int len, Charset charset) {
+    if (len < BY_LENGTH.length) {
+      for (String name : BY_LENGTH[len]) {
+        if (matches(name, bytes, offset, len)) {
+          return name;
+        }
+      }
+    }
+
+    return new String(bytes, offset, len, charset);
+  }
+
+  private static boolean matches(
+      String name, byte[] bytes, int offset, int len) {
+    for (int i = 0; i < len; i++) {
+      if (bytes[offset + i] != name.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Case insensitive hash for ASCII header names, names equal ignoring case
+   * have same hash.
+   * 
+   * @param name header name
+   * @return hash
+   */
+  static int hashIgnoreCase(String name) {
+    int hash = 0;
+    for (int i = 0; i < name.length(); i++) {
+      char c = name.charAt(i);
+      if (c >= 'A' && c <= 'Z') {
+        c += 'a' - 'A';
+      }
+      hash = 31 * hash + c;
+    }
+    return hash;
+  }
+}
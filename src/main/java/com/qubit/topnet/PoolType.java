@@ -36,5 +36,12 @@ public enum PoolType {
   /**
    * Same as {@link QUEUE} type but all threads share same concurrent queue.
    */
-  QUEUE_SHARED
+  QUEUE_SHARED,
+  /**
+   * Pool type where each thread owns a selector with its connections 
+   * registered, thread waits for read and write readiness in select(). 
+   * Main selector thread only accepts connections. Supported by event type
+   * servers only.
+   */
+  SELECTOR
 }
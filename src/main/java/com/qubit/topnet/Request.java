@@ -32,8 +32,10 @@ import com.qubit.topnet.exceptions.OutputStreamAlreadySetException;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -77,6 +79,17 @@ public class Request {
       new byte[]{'H', 'T', 'T', 'P', '/', '1', '.', 'x'};
   
   private List<String[]> headers = new ArrayList<>();
+  // open addressing table of headers positions (+1), keyed by name ignoring
+  // case, first header of each name is indexed
+  private int[] headersIndex = new int[32];
+  private int indexedHeaders = 0;
+  // raw header values, decoded only when asked for. Headers parsed from 
+  // request have null value in headers list until then.
+  private static final int HEADER_BYTES_SIZE = 2048;
+  private byte[] headerBytes = new byte[HEADER_BYTES_SIZE];
+  private int headerBytesLength = 0;
+  private int[] headerValueSlices = new int[64]; // offset, length pairs
+  private int rawHeaders = 0;
   private String bodyStringCache;
   private final BytesStream bytesStream = new BytesStream();
   private String path;
@@ -86,6 +99,7 @@ public class Request {
   private Throwable associatedException;
   private Object attachment;
   private Map<String, Object> attributes;
+  private Map<String, String> pathParameters;
   private long createdTime;
   private Runnable writeFinishedHandler;
   // expected values, nulls are meaningful here:
@@ -132,9 +146,21 @@ public class Request {
     if (this.bytesStream != null) {
       this.bytesStream.shrinkLessMore();
       this.bytesStream.reset();
+      // large body must not change sizing for next requests
+      this.bytesStream.setSingleBufferChunkSize(
+          BytesStream.getDefaultBufferChunkSize());
     }
     
     this.headers.clear();
+    if (this.indexedHeaders > 0) {
+      Arrays.fill(this.headersIndex, 0);
+      this.indexedHeaders = 0;
+    }
+    this.headerBytesLength = 0;
+    this.rawHeaders = 0;
+    if (this.headerBytes.length > 8 * HEADER_BYTES_SIZE) {
+      this.headerBytes = new byte[HEADER_BYTES_SIZE]; // do not keep large
+    }
     this.bodyStringCache = null;
     this.dataHandler = null;
     this.path = null;
@@ -163,14 +189,22 @@ public class Request {
       this.attributes.clear();
     }
     
+    this.pathParameters = null;
+    
     this.createdTime = 0;
     this.writeFinishedHandler = null;
   }
   
   /**
+   * Returns headers list, all header values are decoded before list is 
+   * returned.
+   * 
    * @return the headers list
    */
   public List<String[]> getHeaders() {
+    for (int i = 0; i < this.headers.size(); i++) {
+      this.getHeaderValue(i);
+    }
     return headers;
   }
   
@@ -186,11 +220,8 @@ public class Request {
       }
       
       if (charset == null) {
-        String contentType = this.getHeader("Content-Type");
-
-        if (contentType == null) {
-          contentType = this.getLowerCaseHeader("content-type");
-        }
+        String contentType = 
+            this.getHeaderIgnoreCase(HeaderNames.CONTENT_TYPE);
         
         if (contentType != null) {
           int idx = contentType.indexOf("charset=");
@@ -216,25 +247,234 @@ public class Request {
     return this.bodyStringCache;
   }
 
+  /**
+   * Adds header and indexes it for lookups.
+   * 
+   * @param name header name
+   * @param value header value
+   */
+  protected void addHeader(String name, String value) {
+    this.headers.add(new String[]{name, value});
+    this.indexHeaders();
+  }
+
+  /**
+   * Adds header with value kept as raw bytes, value is decoded when read
+   * for first time.
+   * 
+   * @param name header name
+   * @param bytes source of value
+   * @param offset value start
+   * @param len value length
+   */
+  protected void addHeader(String name, byte[] bytes, int offset, int len) {
+    int i = this.headers.size() * 2;
+    
+    if (i + 2 > this.headerValueSlices.length) {
+      this.headerValueSlices = 
+          Arrays.copyOf(this.headerValueSlices, (i + 2) * 2);
+    }
+    
+    this.headerValueSlices[i] = this.headerBytesLength;
+    this.headerValueSlices[i + 1] = len;
+    this.putHeaderBytes(bytes, offset, len);
+    
+    this.headers.add(new String[]{name, null});
+    this.rawHeaders = this.headers.size();
+    this.indexHeaders();
+  }
+
+  /**
+   * Appends continuation line of multiline header to last header value,
+   * lines are joined with LF.
+   * 
+   * @param bytes source of continuation
+   * @param offset continuation start
+   * @param len continuation length
+   * @return false if last header was not added with raw value
+   */
+  protected boolean appendToLastHeader(byte[] bytes, int offset, int len) {
+    int last = this.headers.size() - 1;
+    
+    if (last < 0 || last >= this.rawHeaders 
+        || this.headers.get(last)[1] != null) {
+      return false;
+    }
+    
+    // value of last header is always at the end of header bytes
+    this.ensureHeaderBytes(1);
+    this.headerBytes[this.headerBytesLength++] = '\n';
+    this.putHeaderBytes(bytes, offset, len);
+    this.headerValueSlices[last * 2 + 1] += len + 1;
+    
+    return true;
+  }
+
+  private void putHeaderBytes(byte[] bytes, int offset, int len) {
+    this.ensureHeaderBytes(len);
+    System.arraycopy(bytes, offset, this.headerBytes, this.headerBytesLength, 
+        len);
+    this.headerBytesLength += len;
+  }
+
+  private void ensureHeaderBytes(int len) {
+    int required = this.headerBytesLength + len;
+    
+    if (required > this.headerBytes.length) {
+      this.headerBytes = Arrays.copyOf(this.headerBytes, 
+          Math.max(required, this.headerBytes.length * 2));
+    }
+  }
+
+  private String getHeaderValue(int i) {
+    String[] header = this.headers.get(i);
+    
+    if (header[1] == null && i < this.rawHeaders) {
+      header[1] = new String(
+          this.headerBytes,
+          this.headerValueSlices[i * 2],
+          this.headerValueSlices[i * 2 + 1],
+          this.getHeaderCharset());
+    }
+    
+    return header[1];
+  }
+
+  private Charset getHeaderCharset() {
+    if (this.server != null) {
+      return this.server.getHeaderCharset();
+    } else {
+      return StandardCharsets.ISO_8859_1;
+    }
+  }
+
+  private void indexHeaders() {
+    int size = this.headers.size();
+    
+    if (size * 2 > this.headersIndex.length) {
+      this.headersIndex = new int[Integer.highestOneBit(size * 2) * 2];
+      this.indexedHeaders = 0;
+    } else if (size < this.indexedHeaders) { // list changed from outside
+      Arrays.fill(this.headersIndex, 0);
+      this.indexedHeaders = 0;
+    }
+    
+    int mask = this.headersIndex.length - 1;
+    
+    for (int i = this.indexedHeaders; i < size; i++) {
+      String name = this.headers.get(i)[0];
+      int slot = HeaderNames.hashIgnoreCase(name) & mask;
+      int pos;
+      
+      while ((pos = this.headersIndex[slot]) != 0
+          && !this.headers.get(pos - 1)[0].equalsIgnoreCase(name)) {
+        slot = (slot + 1) & mask;
+      }
+      
+      if (pos == 0) {
+        this.headersIndex[slot] = i + 1;
+      }
+    }
+    
+    this.indexedHeaders = size;
+  }
+
+  private int findHeader(String name) {
+    if (this.indexedHeaders != this.headers.size()) {
+      this.indexHeaders();
+    }
+    
+    int mask = this.headersIndex.length - 1;
+    int slot = HeaderNames.hashIgnoreCase(name) & mask;
+    int pos;
+    
+    while ((pos = this.headersIndex[slot]) != 0) {
+      if (this.headers.get(pos - 1)[0].equalsIgnoreCase(name)) {
+        return pos - 1;
+      }
+      slot = (slot + 1) & mask;
+    }
+    
+    return -1;
+  }
+
+  /**
+   * Returns first header value with name exactly as given.
+   * 
+   * @param name header name, case sensitive
+   * @return header value or null
+   */
   public String getHeader(String name) {
-    for (String[] header : this.headers) {
-      if (header[0].equals(name)) return header[1];
+    int i = this.findHeader(name);
+    
+    if (i == -1) {
+      return null;
+    }
+    
+    if (this.headers.get(i)[0].equals(name)) {
+      return this.getHeaderValue(i);
+    }
+    
+    // same name in different case was first, rare case
+    for (i = 0; i < this.headers.size(); i++) {
+      if (this.headers.get(i)[0].equals(name)) return this.getHeaderValue(i);
     }
     return null;
   }
 
-  public String getLowerCaseHeader(String name) {
-    for (String[] header : this.headers) {
-      if (header[0].toLowerCase().equals(name)) return header[1];
+  /**
+   * Returns first header value with name matching ignoring case.
+   * 
+   * @param name header name
+   * @return header value or null
+   */
+  public String getHeaderIgnoreCase(String name) {
+    int i = this.findHeader(name);
+    return i == -1 ? null : this.getHeaderValue(i);
+  }
+
+  /**
+   * Returns first header value with name matching ignoring case as char 
+   * sequence. Value that was not decoded yet is returned as view over 
+   * request header bytes, valid until request is reset - nothing is decoded
+   * for comparisons like `"keep-alive".contentEquals(value)`.
+   * 
+   * @param name header name
+   * @return header value or null
+   */
+  public CharSequence getHeaderView(String name) {
+    int i = this.findHeader(name);
+    
+    if (i == -1) {
+      return null;
     }
-    return null;
+    
+    String value = this.headers.get(i)[1];
+    
+    if (value != null || i >= this.rawHeaders) {
+      return value;
+    }
+    
+    return new ByteSlice(
+        this.headerBytes,
+        this.headerValueSlices[i * 2],
+        this.headerValueSlices[i * 2 + 1],
+        this.getHeaderCharset());
+  }
+
+  /**
+   * @param name lower case header name
+   * @return header value or null
+   */
+  public String getLowerCaseHeader(String name) {
+    return this.getHeaderIgnoreCase(name);
   }
   
   public List<String> getHeaders(String name) {
     List<String> ret = new ArrayList<>();
-    for (String[] header : this.headers) {
-      if (header[0].equals(name)) {
-        ret.add(header[1]);
+    for (int i = 0; i < this.headers.size(); i++) {
+      if (this.headers.get(i)[0].equals(name)) {
+        ret.add(this.getHeaderValue(i));
       }
     }
     return ret;
@@ -319,6 +559,37 @@ public class Request {
     return this.attributes;
   }
 
+  /**
+   * Path parameters captured by handler registered with parameters in path,
+   * for "/users/{id}" and request path "/users/7" map contains "id" -> "7".
+   * 
+   * @return the pathParameters, empty if none
+   */
+  public Map<String, String> getPathParameters() {
+    if (this.pathParameters == null) {
+      return Collections.emptyMap();
+    }
+    return this.pathParameters;
+  }
+
+  /**
+   * @param name parameter name as in registered path
+   * @return parameter value or null
+   */
+  public String getPathParameter(String name) {
+    if (this.pathParameters == null) {
+      return null;
+    }
+    return this.pathParameters.get(name);
+  }
+
+  /**
+   * @param pathParameters the pathParameters to set
+   */
+  protected void setPathParameters(Map<String, String> pathParameters) {
+    this.pathParameters = pathParameters;
+  }
+
   public Object getAttribute(String name) {
     return this.getAttributes().get(name);
   }
@@ -717,7 +988,7 @@ public class Request {
       return true; // no headers
     }
     
-    this.method = new String(line, 0, method_closing_idx);
+    this.method = getMethodFromLine(line, method_closing_idx);
     int path_idx = method_closing_idx + 1;
     int protocol_idx = DataHandler.indexOf(line, len, ' ', path_idx);
     
@@ -728,10 +999,8 @@ public class Request {
           protocol_idx - path_idx,
           this.server.getUrlCharset());
       
-      byte[] requestHttpProtocolBytes = 
-          Arrays.copyOfRange(line, protocol_idx + 1, len);
       // we reply with 1.0 or 1.1, whatever client tries to choose
-      if (Arrays.equals(requestHttpProtocolBytes, BHTTP_1_1)) {
+      if (bytesEqual(line, protocol_idx + 1, len, BHTTP_1_1)) {
         // HTTP_1_0 is default with value 0
         this.requestedHttpProtocol = HTTP_1_1;
       }
@@ -750,6 +1019,40 @@ public class Request {
     }
   }
   
+  private static final String[] METHODS = {
+    "GET", "POST", "HEAD", "PUT", "DELETE", "OPTIONS", "PATCH", "TRACE", 
+    "CONNECT"
+  };
+  private static final byte[][] BMETHODS = new byte[METHODS.length][];
+  
+  static {
+    for (int i = 0; i < METHODS.length; i++) {
+      BMETHODS[i] = METHODS[i].getBytes(StandardCharsets.US_ASCII);
+    }
+  }
+  
+  private static String getMethodFromLine(byte[] line, int len) {
+    for (int i = 0; i < BMETHODS.length; i++) {
+      if (bytesEqual(line, 0, len, BMETHODS[i])) {
+        return METHODS[i];
+      }
+    }
+    return new String(line, 0, len, StandardCharsets.ISO_8859_1);
+  }
+  
+  private static boolean bytesEqual(
+      byte[] line, int from, int to, byte[] expected) {
+    if (to - from != expected.length) {
+      return false;
+    }
+    for (int i = 0; i < expected.length; i++) {
+      if (line[from + i] != expected[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+  
   public static int getDefaultProtocol() {
     return HTTP_1_0;
   }
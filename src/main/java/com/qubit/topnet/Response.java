@@ -23,16 +23,19 @@ package com.qubit.topnet;
 import static com.qubit.topnet.Request.getDefaultProtocol;
 import static com.qubit.topnet.ServerBase.HTTP_0_9;
 import static com.qubit.topnet.ServerBase.HTTP_1_0;
+import static com.qubit.topnet.ServerBase.HTTP_1_1;
 import static com.qubit.topnet.ServerBase.getCharsetForName;
 import static com.qubit.topnet.ServerTime.getCachedTime;
 import com.qubit.topnet.exceptions.ResponseBuildingStartedException;
 import com.qubit.topnet.exceptions.TooLateToChangeHeadersException;
 import java.io.ByteArrayInputStream;
 import java.io.InputStream;
+import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.logging.Level;
@@ -75,12 +78,17 @@ public class Response {
    */
   public static void setServerName(String aServerName) {
     serverName = aServerName;
+    // cached status lines include server header
+    Arrays.fill(headersBufferWithoutEOLCache, null);
+    Arrays.fill(headersBytesWithoutEOLCache, null);
   }
   
   private int httpCode = 200;
   List<String[]> headers = new ArrayList<>();
   private ResponseStream responseStream;
   private ReadableByteChannel channelToReadFrom;
+  private long channelPosition = -1;
+  private long channelLength = -1;
   private boolean tooLateToChangeHeaders;
   private long contentLength = -1;
   private String contentType = "text/html";
@@ -89,8 +97,14 @@ public class Response {
   private boolean tellingConnectionClose = false;
   private volatile boolean moreDataComing = false;
   private boolean readingChannelResponseOnly = false;
+  private boolean chunked = false;
+  private String compressionEncoding;
+  private int compressionLevel;
+  private long compressionMinSize;
 
   private StringBuilder stringBuffer = null;
+  private final ResponseHeadersStream headersStream = 
+      new ResponseHeadersStream();
   private InputStream streamToReadFrom;
   private Object attachment;
   private int httpProtocol = HTTP_1_0;
@@ -130,7 +144,11 @@ public class Response {
     this.stringBuffer = null;
     this.streamToReadFrom = null;
     this.channelToReadFrom = null;
+    this.channelPosition = -1;
+    this.channelLength = -1;
     this.readingChannelResponseOnly = false;
+    this.chunked = false;
+    this.compressionEncoding = null;
     this.attachment = null;
     this.httpProtocol = 1;
   }
@@ -164,7 +182,7 @@ public class Response {
     StringBuilder buffer = getHeadersBufferToResponse();
 
     ByteArrayInputStream stream
-            = new ByteArrayInputStream(
+            = new BytesArrayInputStream(
                     buffer.toString().getBytes(StandardCharsets.ISO_8859_1));
 
     return stream;
@@ -214,6 +232,38 @@ public class Response {
     return headersBufferWithoutEOLCache[index];
   }
 
+  private static byte[][] headersBytesWithoutEOLCache = new byte[1024 << 2][];
+  
+  /**
+   * Same as {@link #getHeadersBufferWithoutEOL(int, int)} but ISO-8859-1
+   * encoded, ready to be put into output buffers.
+   * 
+   * @param httpCode response code
+   * @param httpProtocol protocol number
+   * @return status line with server header
+   */
+  public static byte[] getHeadersBytesWithoutEOL(
+          int httpCode, int httpProtocol) {
+    int index = (httpCode << 2) | httpProtocol;
+    byte[] bytes;
+    
+    if (index < headersBytesWithoutEOLCache.length) {
+      bytes = headersBytesWithoutEOLCache[index];
+      if (bytes != null) {
+        return bytes;
+      }
+    }
+    
+    bytes = getHeadersBufferWithoutEOL(httpCode, httpProtocol)
+        .getBytes(StandardCharsets.ISO_8859_1);
+    
+    if (index < headersBytesWithoutEOLCache.length) {
+      headersBytesWithoutEOLCache[index] = bytes;
+    }
+    
+    return bytes;
+  }
+
   private void addStandardHeadersToBuffer(StringBuilder buffer)
           throws TooLateToChangeHeadersException {
     // add date!
@@ -322,7 +372,7 @@ public class Response {
           this.setContentLength(bytes.length);
         }
         
-        ByteArrayInputStream bodyStream = new ByteArrayInputStream(bytes);
+        ByteArrayInputStream bodyStream = new BytesArrayInputStream(bytes);
 
         try {
 
@@ -357,13 +407,93 @@ public class Response {
       this.getResponseStream().setReadingBody(true);
     } else {
       if (this.getResponseStream().getHeadersStream() == null) {
+        this.prepareCompression();
         this.buildContentTypeWithCharset();        
         this.prepareContentLengthHeader();  // only once
-        this.getResponseStream().setHeadersStream(getHeadersToSend());
+        this.prepareTransferEncodingHeader();
+        // headers are encoded directly to output buffers when read
+        this.headersStream.reset(this);
+        this.getResponseStream().setHeadersStream(this.headersStream);
       }
     }
   }
 
+  /**
+   * Wraps body with compressing stream if compression was asked for and 
+   * response is worth compressing. Content length is unknown after.
+   */
+  private void prepareCompression() {
+    if (this.compressionEncoding == null
+        || this.readingChannelResponseOnly
+        || !this.isBodyAllowed()
+        || this.httpCode == 206 // ranges refer to uncompressed body
+        || this.channelLength >= 0
+        || (this.contentLength >= 0 
+            && this.contentLength < this.compressionMinSize)
+        || this.getHeader("Content-Encoding") != null) {
+      this.compressionEncoding = null;
+      return;
+    }
+    
+    ResponseStream stream = this.getResponseStream();
+    
+    if (stream.getBodyStream() == null && stream.getByteChannel() == null) {
+      this.compressionEncoding = null;
+      return;
+    }
+    
+    try {
+      this.addHeader("Content-Encoding", this.compressionEncoding);
+      
+      String vary = this.getHeader("Vary");
+      if (vary == null) {
+        this.addHeader("Vary", "Accept-Encoding");
+      } else if (!vary.contains("Accept-Encoding") && !vary.equals("*")) {
+        this.removeHeader("Vary");
+        this.addHeader("Vary", vary + ", Accept-Encoding");
+      }
+    } catch (TooLateToChangeHeadersException ex) {
+      log.warning("Content encoding header set too late.");
+      this.compressionEncoding = null;
+      return;
+    }
+    
+    stream.setBodyStream(new CompressedBodyStream(
+        this,
+        stream.getBodyStream(),
+        stream.getByteChannel(),
+        this.compressionEncoding,
+        this.compressionLevel));
+    stream.setByteChannel(null);
+    this.contentLength = -1;
+  }
+
+  /**
+   * Asks for body to be compressed when response is prepared for writing. 
+   * Responses with body shorter than minSize (if length is known), without
+   * body, partial or already encoded are sent as they are. 
+   * 
+   * @param encoding {@link CompressedBodyStream#GZIP} or 
+   *  {@link CompressedBodyStream#DEFLATE}, null for no compression
+   * @param level deflater compression level
+   * @param minSize min content length to compress
+   */
+  public void setCompression(String encoding, int level, long minSize) {
+    this.compressionEncoding = encoding;
+    this.compressionLevel = level;
+    this.compressionMinSize = minSize;
+  }
+
+  /**
+   * Content coding body is compressed with, known after response reader is
+   * prepared.
+   * 
+   * @return the compressionEncoding, null if body is not compressed
+   */
+  public String getCompressionEncoding() {
+    return compressionEncoding;
+  }
+
   /**
    * @return the contentLength
    */
@@ -380,7 +510,8 @@ public class Response {
 
   public void prepareContentLengthHeader() {
     try {
-      if (this.contentLength >= 0) {
+      // 304 has no body, length of it would be taken as length of resource
+      if (this.contentLength >= 0 && this.httpCode != 304) {
         this.addHeader("Content-Length", Long.toString(this.contentLength));
       } else {
         this.removeHeader("Content-Length");
@@ -391,6 +522,42 @@ public class Response {
     
   }
 
+  /**
+   * Decides if body will be sent with chunked transfer encoding - only for
+   * HTTP/1.1 responses with unknown content length.
+   */
+  public void prepareTransferEncodingHeader() {
+    if (ServerBase.isChunkingResponses()
+        && this.contentLength < 0
+        && this.httpProtocol == HTTP_1_1
+        && !this.readingChannelResponseOnly
+        && this.isBodyAllowed()
+        && this.getHeader("Transfer-Encoding") == null) {
+      try {
+        this.addHeader("Transfer-Encoding", "chunked");
+        this.chunked = true;
+      } catch (TooLateToChangeHeadersException ex) {
+        log.warning("Transfer encoding header set too late.");
+      }
+    }
+  }
+
+  private boolean isBodyAllowed() {
+    return this.httpCode >= 200 
+        && this.httpCode != 204
+        && this.httpCode != 304;
+  }
+
+  /**
+   * True if body is sent with chunked transfer encoding, it is known after 
+   * response reader is prepared.
+   * 
+   * @return the chunked
+   */
+  public boolean isChunked() {
+    return chunked;
+  }
+
   /**
    * @return the contentType
    */
@@ -468,6 +635,38 @@ public class Response {
     }
   }
   
+  /**
+   * Sets part of file to be sent as body - length bytes starting at 
+   * position. File part is sent with transferTo like whole files, or read 
+   * with positioned reads if transferring is off.
+   * 
+   * @param channel file channel
+   * @param position first byte to send
+   * @param length amount of bytes to send
+   * @throws ResponseBuildingStartedException 
+   */
+  public void setChannelToReadFrom(
+      FileChannel channel, long position, long length)
+      throws ResponseBuildingStartedException {
+    this.setChannelToReadFrom(channel);
+    this.channelPosition = position;
+    this.channelLength = length;
+  }
+
+  /**
+   * @return the channelPosition, -1 if whole channel is read
+   */
+  public long getChannelPosition() {
+    return channelPosition;
+  }
+
+  /**
+   * @return the channelLength, -1 if whole channel is read
+   */
+  public long getChannelLength() {
+    return channelLength;
+  }
+  
   public boolean waitForData() {
     return false;
   }
@@ -591,6 +790,14 @@ public class Response {
       case 204:
         buffer.append(OK_204);
         break;
+      case 206:
+        buffer.append("206 Partial Content");
+        buffer.append(CRLF);
+        break;
+      case 304:
+        buffer.append("304 Not Modified");
+        buffer.append(CRLF);
+        break;
       case 404:
         buffer.append("404 Not Found");
         buffer.append(CRLF);
@@ -599,6 +806,14 @@ public class Response {
         buffer.append("400 Bad Request");
         buffer.append(CRLF);
         break;
+      case 413:
+        buffer.append("413 Payload Too Large");
+        buffer.append(CRLF);
+        break;
+      case 416:
+        buffer.append("416 Range Not Satisfiable");
+        buffer.append(CRLF);
+        break;
       case 503:
         buffer.append("503 Server Error");
         buffer.append(CRLF);
@@ -0,0 +1,243 @@
+/*
+ * topNET
+ * Fast HTTP Server Solution.
+ * Copyright 2016, Qubit Group <www.qubit.com>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  
+ * If not, see <https://www.gnu.org/licenses/lgpl-3.0.en.html>
+ * 
+ * Author: Peter Fronc <peter.fronc@qubitdigital.com>
+ */
+package com.qubit.topnet;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Header block of a {@link Response} exposed as a stream. Nothing is built
+ * up front - status line, date and headers are encoded directly into the
+ * buffer passed to {@link #read(ByteBuffer)}, using cached ISO-8859-1 bytes
+ * where possible. Instance is owned by response and reused between requests.
+ * 
+ * @author Peter Fronc <peter.fronc@qubitdigital.com>
+ */
+public class ResponseHeadersStream extends InputStream
+    implements ByteBufferReadable {
+
+  private static final byte[] EMPTY = new byte[0];
+  private static final byte[] CRLF = {'\r', '\n'};
+  private static final byte[] SEPARATOR = {':', ' '};
+  private static final byte[] DATE_NAME = toBytes("Date: ");
+  
+  private static final Map<String, byte[]> commonHeaderNames = new HashMap<>();
+  
+  static {
+    String[] names = {
+      "Content-Length",
+      "Content-Type",
+      "Content-Encoding",
+      "Content-Range",
+      "Transfer-Encoding",
+      "Connection",
+      "Keep-Alive",
+      "Cache-Control",
+      "Expires",
+      "Pragma",
+      "Location",
+      "Set-Cookie",
+      "ETag",
+      "Last-Modified",
+      "Accept-Ranges",
+      "Vary",
+      "Access-Control-Allow-Origin"
+    };
+    
+    for (String name : names) {
+      commonHeaderNames.put(name, toBytes(name + ": "));
+    }
+  }
+  
+  private static byte[] toBytes(String string) {
+    return string.getBytes(StandardCharsets.ISO_8859_1);
+  }
+  
+  private byte[] statusLine;
+  private byte[] date;
+  private List<String[]> headers;
+  
+  private int segment = 0;
+  private int offset = 0;
+  private boolean nameCached;
+  
+  // current segment, one of them is set by loadSegment()
+  private byte[] segmentBytes;
+  private String segmentString;
+
+  /**
+   * Prepares stream to read headers of response passed. Headers list is not
+   * copied - it must not change until stream is read.
+   * 
+   * @param response response to read headers from
+   */
+  public void reset(Response response) {
+    this.statusLine = Response.getHeadersBytesWithoutEOL(
+        response.getHttpCode(), response.getHttpProtocol());
+    this.date = ServerTime.getCachedTimeBytes();
+    this.headers = response.getHeaders();
+    this.segment = 0;
+    this.offset = 0;
+    this.nameCached = false;
+  }
+  
+  /**
+   * Segments are: status line (with server header), "Date: ", date, CRLF, 
+   * then 4 per header: name, separator, value, CRLF and final CRLF.
+   * 
+   * @return false if all segments are read
+   */
+  private boolean loadSegment() {
+    this.segmentBytes = null;
+    this.segmentString = null;
+    
+    switch (this.segment) {
+      case 0:
+        this.segmentBytes = this.statusLine;
+        return true;
+      case 1:
+        this.segmentBytes = DATE_NAME;
+        return true;
+      case 2:
+        this.segmentBytes = this.date;
+        return true;
+      case 3:
+        this.segmentBytes = CRLF;
+        return true;
+    }
+    
+    int index = (this.segment - 4) >> 2;
+    int part = (this.segment - 4) & 3;
+    
+    if (index < this.headers.size()) {
+      String[] header = this.headers.get(index);
+      
+      switch (part) {
+        case 0:
+          this.segmentBytes = commonHeaderNames.get(header[0]);
+          this.nameCached = this.segmentBytes != null;
+          if (!this.nameCached) {
+            this.segmentString = header[0];
+          }
+          break;
+        case 1:
+          this.segmentBytes = this.nameCached ? EMPTY : SEPARATOR;
+          break;
+        case 2:
+          this.segmentString = header[1];
+          break;
+        default:
+          this.segmentBytes = CRLF;
+      }
+      
+      return true;
+    } else if (index == this.headers.size() && part == 0) {
+      this.segmentBytes = CRLF; // headers are done
+      return true;
+    }
+    
+    return false;
+  }
+  
+  private int segmentLength() {
+    if (this.segmentBytes != null) {
+      return this.segmentBytes.length;
+    } else {
+      return this.segmentString.length();
+    }
+  }
+  
+  private void nextSegmentIfDone(int length) {
+    if (this.offset >= length) {
+      this.segment++;
+      this.offset = 0;
+    }
+  }
+  
+  private static byte toByte(char c) {
+    // ISO-8859-1, unmappable characters as in String.getBytes
+    return c < 256 ? (byte) c : (byte) '?';
+  }
+
+  /**
+   * Encodes as many header bytes as possible into buffer.
+   * 
+   * @param buffer destination buffer
+   * @return amount of bytes put or -1 if all headers are read
+   */
+  @Override
+  public int read(ByteBuffer buffer) {
+    if (!buffer.hasRemaining()) {
+      return 0;
+    }
+    
+    int start = buffer.position();
+    
+    while (buffer.hasRemaining() && this.loadSegment()) {
+      int length = this.segmentLength();
+      int amount = Math.min(length - this.offset, buffer.remaining());
+      
+      if (this.segmentBytes != null) {
+        buffer.put(this.segmentBytes, this.offset, amount);
+      } else {
+        for (int i = 0; i < amount; i++) {
+          buffer.put(toByte(this.segmentString.charAt(this.offset + i)));
+        }
+      }
+      
+      this.offset += amount;
+      this.nextSegmentIfDone(length);
+    }
+    
+    int amount = buffer.position() - start;
+    
+    return amount == 0 ? -1 : amount;
+  }
+
+  @Override
+  public int read() {
+    while (this.loadSegment()) {
+      int length = this.segmentLength();
+      
+      if (this.offset < length) {
+        byte b;
+        
+        if (this.segmentBytes != null) {
+          b = this.segmentBytes[this.offset];
+        } else {
+          b = toByte(this.segmentString.charAt(this.offset));
+        }
+        
+        this.offset++;
+        this.nextSegmentIfDone(length);
+        
+        return b & 0xFF;
+      }
+      
+      this.nextSegmentIfDone(length);
+    }
+    
+    return -1;
+  }
+}
@@ -20,7 +20,9 @@
 
 package com.qubit.topnet;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.channels.ReadableByteChannel;
 
 /**
@@ -31,6 +33,34 @@ public abstract class ResponseReader extends InputStream {
   
   private ReadableByteChannel byteChannel;
   
+  /**
+   * Bulk reading function used by write loop to fill output buffers. It puts 
+   * as many bytes as possible into buffer.
+   * 
+   * Default implementation falls back to {@link #read()} byte by byte so
+   * custom readers implementing only read() keep working - override it to 
+   * provide faster transfer.
+   * 
+   * @param buffer buffer to fill
+   * @return amount of bytes put into buffer or -1 if there is nothing left to
+   *  read
+   * @throws IOException 
+   */
+  public int read(ByteBuffer buffer) throws IOException {
+    int amount = 0;
+    int ch;
+    
+    while (buffer.hasRemaining()) {
+      if ((ch = this.read()) == -1) {
+        return amount == 0 ? -1 : amount;
+      }
+      buffer.put((byte) ch);
+      amount++;
+    }
+    
+    return amount;
+  }
+  
   /**
    * @return the byteChannel
    */
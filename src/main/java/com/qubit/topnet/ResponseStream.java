@@ -22,6 +22,7 @@ package com.qubit.topnet;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 /**
  *
@@ -29,9 +30,12 @@ import java.io.InputStream;
  */
 public class ResponseStream extends ResponseReader {
 
+  private static int transferCacheSize = 8 * 1024;
+  
   private InputStream headersStream;
   private InputStream bodyStream;
   protected boolean readingBody = false;
+  private byte[] transferCache = null;
 
   public ResponseStream() {
   }
@@ -64,6 +68,77 @@ public class ResponseStream extends ResponseReader {
     return ch;
   }
 
+  /**
+   * Bulk version of {@link #read()}, headers are read first and then body.
+   *
+   * @param buffer buffer to fill
+   * @return amount of bytes put into buffer or -1 if nothing left to read
+   * @throws IOException
+   */
+  @Override
+  public int read(ByteBuffer buffer) throws IOException {
+    if (!this.readingBody) {
+      int amount = this.readStream(getHeadersStream(), buffer);
+      
+      if (amount != -1) {
+        return amount;
+      }
+      
+      this.readingBody = true;
+    }
+    
+    return this.readStream(getBodyStream(), buffer);
+  }
+
+  /**
+   * Reads input stream into buffer in bulk. {@link ByteBufferReadable} 
+   * streams are copied directly, other streams go through 
+   * {@link InputStream#read(byte[], int, int)}.
+   * 
+   * @param stream stream to read from, null means nothing to read
+   * @param buffer buffer to fill
+   * @return amount of bytes put into buffer or -1 if stream is finished
+   * @throws IOException 
+   */
+  protected int readStream(InputStream stream, ByteBuffer buffer)
+      throws IOException {
+    if (stream == null) {
+      return -1;
+    }
+    
+    if (stream instanceof ByteBufferReadable) {
+      return ((ByteBufferReadable) stream).read(buffer);
+    }
+    
+    int amount;
+    
+    if (buffer.hasArray()) {
+      amount = stream.read(
+          buffer.array(),
+          buffer.arrayOffset() + buffer.position(),
+          buffer.remaining());
+      
+      if (amount > 0) {
+        buffer.position(buffer.position() + amount);
+      }
+    } else {
+      if (this.transferCache == null) {
+        this.transferCache = new byte[transferCacheSize];
+      }
+      
+      amount = stream.read(
+          this.transferCache,
+          0,
+          Math.min(buffer.remaining(), this.transferCache.length));
+      
+      if (amount > 0) {
+        buffer.put(this.transferCache, 0, amount);
+      }
+    }
+    
+    return amount;
+  }
+
   /**
    * @return the bodyStream
    */
@@ -108,6 +183,12 @@ public class ResponseStream extends ResponseReader {
         public int read() throws IOException {
           return ResponseStream.this.headersStream.read();
         }
+
+        @Override
+        public int read(ByteBuffer buffer) throws IOException {
+          return ResponseStream.this
+              .readStream(ResponseStream.this.headersStream, buffer);
+        }
       };
     }
     
@@ -125,6 +206,23 @@ public class ResponseStream extends ResponseReader {
     this.readingBody = readingBody;
   }
   
+  /**
+   * @return the transferCacheSize
+   */
+  public static int getTransferCacheSize() {
+    return transferCacheSize;
+  }
+
+  /**
+   * Size of temporary array used to move bytes from plain input streams into 
+   * direct output buffers.
+   * 
+   * @param aTransferCacheSize the transferCacheSize to set
+   */
+  public static void setTransferCacheSize(int aTransferCacheSize) {
+    transferCacheSize = aTransferCacheSize;
+  }
+  
   /**
    * This method will close all stream within this objects.
    * @throws IOException 
@@ -0,0 +1,173 @@
+/*
+ * topNET
+ * Fast HTTP Server Solution.
+ * Copyright 2016, Qubit Group <www.qubit.com>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  
+ * If not, see <https://www.gnu.org/licenses/lgpl-3.0.en.html>
+ * 
+ * Author: Peter Fronc <peter.fronc@qubitdigital.com>
+ */
+
+package com.qubit.topnet;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable snapshot of registered handlers together with routing trie 
+ * compiled from them. Every registration change creates new table with 
+ * higher version, server publishes it atomically so IO threads always route
+ * with complete and consistent table without any locking.
+ * 
+ * @author Peter Fronc <peter.fronc@qubitdigital.com>
+ */
+public final class RoutingTable {
+
+  private final long version;
+  private final Map<String, Handler> plainPathHandlers;
+  private final List<Handler> matchingHandlers;
+  private final RoutingTrie trie;
+
+  public RoutingTable() {
+    this(0, new HashMap<String, Handler>(), new ArrayList<Handler>());
+  }
+
+  private RoutingTable(
+      long version,
+      Map<String, Handler> plainPathHandlers,
+      List<Handler> matchingHandlers) {
+    this.version = version;
+    this.plainPathHandlers = Collections.unmodifiableMap(plainPathHandlers);
+    this.matchingHandlers = Collections.unmodifiableList(matchingHandlers);
+    this.trie = new RoutingTrie(plainPathHandlers, matchingHandlers);
+  }
+
+  /**
+   * @param path path, can contain parameters
+   * @param handler handler instance
+   * @return new table with handler registered to path
+   */
+  public RoutingTable withPlainHandler(String path, Handler handler) {
+    Map<String, Handler> plain = new HashMap<>(this.plainPathHandlers);
+    plain.put(path, handler);
+    return this.next(plain, this.matchingHandlers);
+  }
+
+  /**
+   * @param path path used to register handler
+   * @return new table without handler registered to path
+   */
+  public RoutingTable withoutPlainHandler(String path) {
+    if (!this.plainPathHandlers.containsKey(path)) {
+      return this;
+    }
+    Map<String, Handler> plain = new HashMap<>(this.plainPathHandlers);
+    plain.remove(path);
+    return this.next(plain, this.matchingHandlers);
+  }
+
+  /**
+   * Adds matching handler as last, handler of same class registered before
+   * is removed.
+   * 
+   * @param handler registered handler
+   * @param instance instance to use in table
+   * @return new table
+   */
+  public RoutingTable withMatchingHandler(Handler handler, Handler instance) {
+    List<Handler> matching = new ArrayList<>(this.matchingHandlers);
+    for (Iterator<Handler> it = matching.iterator(); it.hasNext();) {
+      Handler matchingPathHandler = it.next();
+      if (handler == matchingPathHandler || 
+          matchingPathHandler.getClass().equals(handler.getClass())) {
+        it.remove();
+      }
+    }
+    matching.add(instance);
+    return this.next(this.plainPathHandlers, matching);
+  }
+
+  /**
+   * @param handler matching handler instance
+   * @return new table without the matching handler
+   */
+  public RoutingTable withoutMatchingHandler(Handler handler) {
+    if (!this.matchingHandlers.contains(handler)) {
+      return this;
+    }
+    List<Handler> matching = new ArrayList<>(this.matchingHandlers);
+    matching.remove(handler);
+    return this.next(this.plainPathHandlers, matching);
+  }
+
+  /**
+   * Removes handler from matching handlers and all plain paths registered
+   * with handler of same class.
+   * 
+   * @param handler handler instance
+   * @return new table
+   */
+  public RoutingTable withoutHandler(Handler handler) {
+    List<Handler> matching = new ArrayList<>(this.matchingHandlers);
+    matching.remove(handler);
+    
+    Map<String, Handler> plain = new HashMap<>(this.plainPathHandlers);
+    for (Iterator<Map.Entry<String, Handler>> it = plain.entrySet().iterator();
+        it.hasNext();) {
+      Map.Entry<String, Handler> cur = it.next();
+      if (handler == cur.getValue()
+          || cur.getValue().getClass().equals(handler.getClass())) {
+        it.remove();
+      }
+    }
+    
+    return this.next(plain, matching);
+  }
+
+  private RoutingTable next(
+      Map<String, Handler> plain, List<Handler> matching) {
+    return new RoutingTable(this.version + 1, plain, matching);
+  }
+
+  /**
+   * @return the version, increased with every change
+   */
+  public long getVersion() {
+    return version;
+  }
+
+  /**
+   * @return the plainPathHandlers, read only
+   */
+  public Map<String, Handler> getPlainPathHandlers() {
+    return plainPathHandlers;
+  }
+
+  /**
+   * @return the matchingHandlers, read only
+   */
+  public List<Handler> getMatchingHandlers() {
+    return matchingHandlers;
+  }
+
+  /**
+   * @return the trie
+   */
+  public RoutingTrie getTrie() {
+    return trie;
+  }
+}
@@ -0,0 +1,391 @@
+/*
+ * topNET
+ * Fast HTTP Server Solution.
+ * Copyright 2016, Qubit Group <www.qubit.com>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  
+ * If not, see <https://www.gnu.org/licenses/lgpl-3.0.en.html>
+ * 
+ * Author: Peter Fronc <peter.fronc@qubitdigital.com>
+ */
+
+package com.qubit.topnet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiled form of registered handlers used to find handlers for request
+ * path. Trie is built once from handlers registered on server and is only
+ * read afterwards.
+ * 
+ * Plain paths without parameters are resolved with single hash lookup, paths
+ * with parameters (like "/users/{id}") are kept in radix trie. Matching 
+ * handlers declaring {@link Handler#getPathPrefix()} are indexed by their 
+ * prefix in same trie, so only handlers with prefix of request path and 
+ * handlers without prefix are asked with 
+ * {@link Handler#matches(String, String, String)}. Registration order of 
+ * matching handlers is kept.
+ * 
+ * @author Peter Fronc <peter.fronc@qubitdigital.com>
+ */
+public final class RoutingTrie {
+
+  private static final Node[] NO_CHILDREN = new Node[0];
+  
+  private static final ThreadLocal<long[]> candidatesScratch = 
+      new ThreadLocal<>();
+
+  private final Node root = new Node("");
+  private final Map<String, Handler> plainHandlers = new HashMap<>();
+  private final Handler[] matchingHandlers;
+  // matching handlers without prefix, always asked
+  private final long[] opaqueHandlers;
+  private boolean parameterRoutes = false;
+
+  /**
+   * Builds trie from registered handlers.
+   * 
+   * @param plainPathHandlers handlers by path, path can have parameters
+   * @param matchingHandlers ordered matching handlers
+   */
+  public RoutingTrie(
+      Map<String, Handler> plainPathHandlers,
+      List<Handler> matchingHandlers) {
+    this.matchingHandlers = matchingHandlers.toArray(new Handler[0]);
+    this.opaqueHandlers = new long[words(this.matchingHandlers.length)];
+
+    for (Map.Entry<String, Handler> entry : plainPathHandlers.entrySet()) {
+      String path = entry.getKey();
+      if (path.indexOf('{') == -1) {
+        this.plainHandlers.put(path, entry.getValue());
+      } else {
+        Node node = this.insert(path, false);
+        node.handler = entry.getValue();
+        this.parameterRoutes = true;
+      }
+    }
+
+    for (int i = 0; i < this.matchingHandlers.length; i++) {
+      String prefix = this.matchingHandlers[i].getPathPrefix();
+      long[] mask;
+      
+      if (prefix == null) {
+        mask = this.opaqueHandlers;
+      } else {
+        Node node = this.insert(prefix, true);
+        if (node.prefixHandlers == null) {
+          node.prefixHandlers = new long[this.opaqueHandlers.length];
+        }
+        mask = node.prefixHandlers;
+      }
+      
+      mask[i >>> 6] |= 1L << i;
+    }
+  }
+
+  /**
+   * Finds handler registered for path, plain or with parameters.
+   * 
+   * @param path request path
+   * @param request request to set path parameters on, can be null
+   * @return handler or null if none
+   */
+  public Handler findPlainHandler(String path, Request request) {
+    Handler handler = this.plainHandlers.get(path);
+
+    if (handler != null || !this.parameterRoutes) {
+      return handler;
+    }
+
+    List<String> parameters = new ArrayList<>(4);
+    handler = find(this.root, path, 0, parameters);
+
+    if (handler != null && request != null) {
+      Map<String, String> map = new HashMap<>();
+      for (int i = 0; i < parameters.size(); i += 2) {
+        map.put(parameters.get(i), parameters.get(i + 1));
+      }
+      request.setPathParameters(map);
+    }
+
+    return handler;
+  }
+
+  /**
+   * Builds handling chain of matching handlers accepting path, in order they
+   * were registered.
+   * 
+   * @param fullPath full path
+   * @param path path without query string
+   * @param params query string
+   * @param last handler to put at the end of chain, can be null
+   * @return chain start or null if no handlers match
+   */
+  public Handler buildChain(
+      String fullPath, String path, String params, Handler last) {
+    Handler first = null;
+    Handler handler = null;
+    long[] matched = this.match(fullPath, path, params);
+
+    for (int w = 0; w < matched.length; w++) {
+      long word = matched[w];
+      while (word != 0) {
+        int i = (w << 6) + Long.numberOfTrailingZeros(word);
+        word &= word - 1;
+
+        Handler instance = this.matchingHandlers[i].getInstance();
+        if (handler == null) {
+          first = instance;
+        } else {
+          handler.setNext(instance);
+        }
+        handler = instance;
+      }
+    }
+
+    if (last != null) {
+      if (handler == null) {
+        first = last;
+      } else {
+        handler.setNext(last);
+      }
+    }
+
+    return first;
+  }
+
+  /**
+   * Finds matching handlers accepting path. Returned bit set is reused by
+   * calling thread and valid until next call.
+   * 
+   * @param fullPath full path
+   * @param path path without query string
+   * @param params query string
+   * @return bit set of matching handlers indexes, see 
+   *         {@link #getMatchingHandler(int)}
+   */
+  public long[] match(String fullPath, String path, String params) {
+    long[] candidates = this.collectCandidates(path);
+
+    for (int w = 0; w < candidates.length; w++) {
+      long word = candidates[w];
+      while (word != 0) {
+        int i = (w << 6) + Long.numberOfTrailingZeros(word);
+        word &= word - 1;
+
+        if (!this.matchingHandlers[i].matches(fullPath, path, params)) {
+          candidates[w] &= ~(1L << i);
+        }
+      }
+    }
+
+    return candidates;
+  }
+
+  /**
+   * @param i index of handler
+   * @return matching handler registered at index
+   */
+  public Handler getMatchingHandler(int i) {
+    return this.matchingHandlers[i];
+  }
+
+  private long[] collectCandidates(String path) {
+    long[] candidates = candidatesScratch.get();
+
+    if (candidates == null || candidates.length != this.opaqueHandlers.length) {
+      candidates = new long[this.opaqueHandlers.length];
+      candidatesScratch.set(candidates);
+    }
+
+    System.arraycopy(this.opaqueHandlers, 0, candidates, 0, candidates.length);
+
+    // walk static edges as long as they are prefix of path
+    Node node = this.root;
+    int i = 0;
+
+    while (true) {
+      if (node.prefixHandlers != null) {
+        long[] mask = node.prefixHandlers;
+        for (int w = 0; w < mask.length; w++) {
+          candidates[w] |= mask[w];
+        }
+      }
+
+      if (i == path.length()) {
+        break;
+      }
+
+      Node child = node.getChild(path.charAt(i));
+      if (child == null || !path.startsWith(child.label, i)) {
+        break;
+      }
+
+      i += child.label.length();
+      node = child;
+    }
+
+    return candidates;
+  }
+
+  private static Handler find(
+      Node node, String path, int i, List<String> parameters) {
+    if (i == path.length()) {
+      return node.handler;
+    }
+
+    Node child = node.getChild(path.charAt(i));
+
+    if (child != null && path.startsWith(child.label, i)) {
+      Handler handler = find(child, path, i + child.label.length(), parameters);
+      if (handler != null) {
+        return handler;
+      }
+    }
+
+    if (node.parameter != null) {
+      int end = path.indexOf('/', i);
+      if (end == -1) {
+        end = path.length();
+      }
+
+      if (end > i) {
+        parameters.add(node.parameter.parameterName);
+        parameters.add(path.substring(i, end));
+
+        Handler handler = find(node.parameter, path, end, parameters);
+        if (handler != null) {
+          return handler;
+        }
+
+        parameters.remove(parameters.size() - 1);
+        parameters.remove(parameters.size() - 1);
+      }
+    }
+
+    return null;
+  }
+
+  private Node insert(String pattern, boolean literal) {
+    Node node = this.root;
+    int i = 0;
+
+    while (i < pattern.length()) {
+      if (!literal && pattern.charAt(i) == '{') {
+        int end = pattern.indexOf('}', i);
+        if (end == -1) {
+          throw new IllegalArgumentException(
+              "Path parameter not closed in: " + pattern);
+        }
+
+        String name = pattern.substring(i + 1, end);
+
+        if (node.parameter == null) {
+          node.parameter = new Node("");
+          node.parameter.parameterName = name;
+        } else if (!node.parameter.parameterName.equals(name)) {
+          throw new IllegalArgumentException(
+              "Path parameter {" + name + "} conflicts with {" 
+                  + node.parameter.parameterName + "} in: " + pattern);
+        }
+
+        node = node.parameter;
+        i = end + 1;
+      } else {
+        int end = literal ? -1 : pattern.indexOf('{', i);
+        if (end == -1) {
+          end = pattern.length();
+        }
+        node = insertStatic(node, pattern.substring(i, end));
+        i = end;
+      }
+    }
+
+    return node;
+  }
+
+  private static Node insertStatic(Node node, String run) {
+    while (!run.isEmpty()) {
+      Node child = node.getChild(run.charAt(0));
+
+      if (child == null) {
+        child = new Node(run);
+        node.addChild(child);
+        return child;
+      }
+
+      int common = 0;
+      int max = Math.min(child.label.length(), run.length());
+      while (common < max && child.label.charAt(common) == run.charAt(common)) {
+        common++;
+      }
+
+      if (common < child.label.length()) {
+        // split edge, upper part takes place of child
+        Node upper = new Node(child.label.substring(0, common));
+        child.label = child.label.substring(common);
+        upper.addChild(child);
+        node.replaceChild(child, upper);
+        child = upper;
+      }
+
+      node = child;
+      run = run.substring(common);
+    }
+
+    return node;
+  }
+
+  private static int words(int bits) {
+    return Math.max(1, (bits + 63) >>> 6);
+  }
+
+  private static final class Node {
+    private String label;
+    private Node[] children = NO_CHILDREN;
+    private Node parameter;
+    private String parameterName;
+    private Handler handler;
+    private long[] prefixHandlers;
+
+    Node(String label) {
+      this.label = label;
+    }
+
+    Node getChild(char c) {
+      for (Node child : this.children) {
+        if (child.label.charAt(0) == c) {
+          return child;
+        }
+      }
+      return null;
+    }
+
+    void addChild(Node child) {
+      this.children = Arrays.copyOf(this.children, this.children.length + 1);
+      this.children[this.children.length - 1] = child;
+    }
+
+    void replaceChild(Node child, Node replacement) {
+      for (int i = 0; i < this.children.length; i++) {
+        if (this.children[i] == child) {
+          this.children[i] = replacement;
+          return;
+        }
+      }
+    }
+  }
+}
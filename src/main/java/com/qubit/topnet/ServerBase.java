@@ -31,13 +31,21 @@ import java.nio.channels.SocketChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.IllegalCharsetNameException;
 import java.nio.charset.UnsupportedCharsetException;
+import java.util.AbstractList;
+import java.util.AbstractMap;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.ListIterator;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.Deflater;
 
 /**
  *
@@ -68,6 +76,7 @@ public abstract class ServerBase {
   public static final int HTTP_1_X = 3;
 
   private static boolean tellingConnectionClose = false;
+  private static boolean chunkingResponses = true;
   private static final int THREAD_JOBS_SIZE;
   private static final int THREADS_POOL_SIZE;
   
@@ -80,6 +89,8 @@ public abstract class ServerBase {
   public static final int MAX_IDLE_TOUT = 15 * 1000; // miliseconds
   public static final int SCALING_UNLIMITED = 0;
   public static final long DEFAULT_MAX_MESSAGE_SIZE = 16 * 1024 * 1024;
+  // max miliseconds stop() waits for blocking handlers to finish
+  private static final long BLOCKING_HANDLERS_STOP_WAIT = 5000;
 
   /**
    * Runs DataHandler.setGeneralGlobalHandlingHooks(...)
@@ -103,6 +114,7 @@ public abstract class ServerBase {
   private Charset urlCharset = getCharsetForName("ISO-8859-1");
 
   private long maxResponseBufferFillSize = 8 * 32 * 1024;
+  private final BytesStreamPool outputBytesStreamPool = new BytesStreamPool();
   private int port = -1;
   
   private InetSocketAddress listenAddress = null;
@@ -123,6 +135,22 @@ public abstract class ServerBase {
   private boolean stoppingNow = false;
   private boolean started = false;
   private boolean cachingBuffers = true;
+  private boolean transferringFileChannels = true;
+  private boolean cachingHandlerChains = true;
+  private boolean offloadingBlockingHandlers = true;
+  private int blockingHandlersThreadsAmount = 32;
+  private int blockingHandlersQueueSize = 256;
+  private volatile BlockingHandlersPool blockingHandlersPool;
+  private WaitStrategy waitStrategy;
+  private boolean compressingResponses = false;
+  private long compressionMinSize = 1024;
+  private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+  private Set<String> compressedContentTypes = new HashSet<>(Arrays.asList(
+      "text/*",
+      "application/json",
+      "application/javascript",
+      "application/xml",
+      "image/svg+xml"));
   
   private LimitsHandler limitsHandler;
   
@@ -152,16 +180,80 @@ public abstract class ServerBase {
   private int protocol = -1;
   private Selector channelSelector;
 
+  // current routing, replaced as a whole on any registration change
+  private final AtomicReference<RoutingTable> routingTable = 
+      new AtomicReference<>(new RoutingTable());
+  // handling chains reused by each worker thread
+  private final ThreadLocal<HandlerChain.Cache> handlerChains = 
+      HandlerChain.newCaches();
+
   /**
-   * HashMap containing plain path mapping to handlers.
+   * Read only view of current plain path mapping to handlers.
    * Example of a pair: <"/echo", new EchoHandler()>
+   * Use registration methods to change it.
    */
-  public final Map<String, Handler> plainPathHandlers = new HashMap<>();
+  public final Map<String, Handler> plainPathHandlers = 
+      new AbstractMap<String, Handler>() {
+    @Override
+    public Set<Map.Entry<String, Handler>> entrySet() {
+      return routingTable.get().getPlainPathHandlers().entrySet();
+    }
+
+    @Override
+    public Handler get(Object key) {
+      return routingTable.get().getPlainPathHandlers().get(key);
+    }
+  };
   /**
-   * Ordered list containing handlers used to include handlers by their 
+   * Read only view of current ordered list containing handlers used to 
+   * include handlers by their 
    * {@link Handler#matches(String fullPath, String path, String params)} function response.
-   */
-  public final List<Handler> matchingHandlers = new ArrayList<>();
+   * Use registration methods to change it. Each iteration works on one
+   * routing table, use {@link #getMatchingHandlers()} to keep a snapshot for
+   * indexed access.
+   */
+  public final List<Handler> matchingHandlers = new AbstractList<Handler>() {
+    @Override
+    public Handler get(int index) {
+      return routingTable.get().getMatchingHandlers().get(index);
+    }
+
+    @Override
+    public int size() {
+      return routingTable.get().getMatchingHandlers().size();
+    }
+
+    @Override
+    public Iterator<Handler> iterator() {
+      return routingTable.get().getMatchingHandlers().iterator();
+    }
+
+    @Override
+    public ListIterator<Handler> listIterator() {
+      return routingTable.get().getMatchingHandlers().listIterator();
+    }
+
+    @Override
+    public ListIterator<Handler> listIterator(int index) {
+      return routingTable.get().getMatchingHandlers().listIterator(index);
+    }
+
+    @Override
+    public List<Handler> subList(int fromIndex, int toIndex) {
+      return routingTable.get().getMatchingHandlers()
+          .subList(fromIndex, toIndex);
+    }
+
+    @Override
+    public Object[] toArray() {
+      return routingTable.get().getMatchingHandlers().toArray();
+    }
+
+    @Override
+    public <T> T[] toArray(T[] a) {
+      return routingTable.get().getMatchingHandlers().toArray(a);
+    }
+  };
 
   /**
    * Make sure in any server implementation to keep all worker threads
@@ -211,6 +303,26 @@ public abstract class ServerBase {
     tellingConnectionClose = aTellingConnectionClose;
   }
 
+  /**
+   * Property is telling topNET if HTTP/1.1 responses with unknown content 
+   * length should be sent with chunked transfer encoding. Chunked responses 
+   * keep connection alive, otherwise connection is closed to mark end of 
+   * response.
+   * 
+   * Default true.
+   * @return the chunkingResponses
+   */
+  public static boolean isChunkingResponses() {
+    return chunkingResponses;
+  }
+
+  /**
+   * @param aChunkingResponses the chunkingResponses to set
+   */
+  public static void setChunkingResponses(boolean aChunkingResponses) {
+    chunkingResponses = aChunkingResponses;
+  }
+
   /**
    * Returns server port that is used.
    * @return the port
@@ -357,7 +469,19 @@ public abstract class ServerBase {
    */
   public SocketChannel accept()
       throws IOException {
-    SocketChannel channel = this.getServerChannel().accept();
+    return this.accept(this.getServerChannel());
+  }
+
+  /**
+   * Accepts connection on server channel given, used when server listens 
+   * with more than one channel.
+   * @param serverChannel channel to accept on
+   * @return accepted channel configured for server or null
+   * @throws IOException 
+   */
+  public SocketChannel accept(ServerSocketChannel serverChannel)
+      throws IOException {
+    SocketChannel channel = serverChannel.accept();
 
     if (channel != null) {
 
@@ -451,6 +575,251 @@ public abstract class ServerBase {
     this.cachingBuffers = cacheBuffers;
   }
 
+  /**
+   * @return the cachingHandlerChains
+   */
+  public boolean isCachingHandlerChains() {
+    return cachingHandlerChains;
+  }
+
+  /**
+   * If handling chains should be reused by worker threads for requests with
+   * same route. When false, new handler instances are taken with 
+   * {@link Handler#getInstance()} for each request. Default is true.
+   * @param cachingHandlerChains true to reuse handling chains
+   */
+  public void setCachingHandlerChains(boolean cachingHandlerChains) {
+    this.cachingHandlerChains = cachingHandlerChains;
+  }
+
+  /**
+   * @return the offloadingBlockingHandlers
+   */
+  public boolean isOffloadingBlockingHandlers() {
+    return offloadingBlockingHandlers;
+  }
+
+  /**
+   * If requests with blocking handlers (see {@link Handler#isBlocking()}) 
+   * should be processed on blocking handlers pool instead of IO handling 
+   * thread. Default is true.
+   * @param offloadingBlockingHandlers true to use blocking handlers pool
+   */
+  public void setOffloadingBlockingHandlers(
+      boolean offloadingBlockingHandlers) {
+    this.offloadingBlockingHandlers = offloadingBlockingHandlers;
+  }
+
+  /**
+   * @return the blockingHandlersThreadsAmount
+   */
+  public int getBlockingHandlersThreadsAmount() {
+    return blockingHandlersThreadsAmount;
+  }
+
+  /**
+   * Threads amount of blocking handlers pool. Default is 32. Applied when
+   * pool is created.
+   * @param blockingHandlersThreadsAmount the threads amount to set
+   */
+  public void setBlockingHandlersThreadsAmount(
+      int blockingHandlersThreadsAmount) {
+    this.blockingHandlersThreadsAmount = blockingHandlersThreadsAmount;
+  }
+
+  /**
+   * @return the blockingHandlersQueueSize
+   */
+  public int getBlockingHandlersQueueSize() {
+    return blockingHandlersQueueSize;
+  }
+
+  /**
+   * Max requests waiting for blocking handlers pool thread, requests over 
+   * the limit are answered with 503. Default is 256. Applied when pool is 
+   * created.
+   * @param blockingHandlersQueueSize the queue size to set
+   */
+  public void setBlockingHandlersQueueSize(int blockingHandlersQueueSize) {
+    this.blockingHandlersQueueSize = blockingHandlersQueueSize;
+  }
+
+  /**
+   * Returns pool running blocking handlers, pool is created on first use.
+   * @return the blockingHandlersPool
+   */
+  public BlockingHandlersPool getBlockingHandlersPool() {
+    BlockingHandlersPool pool = this.blockingHandlersPool;
+    
+    if (pool == null) {
+      synchronized (this) {
+        pool = this.blockingHandlersPool;
+        if (pool == null) {
+          pool = new BlockingHandlersPool(
+              this.blockingHandlersThreadsAmount,
+              this.blockingHandlersQueueSize);
+          this.blockingHandlersPool = pool;
+        }
+      }
+    }
+    
+    return pool;
+  }
+
+  /**
+   * Stops blocking handlers pool threads and waits for handlers running to 
+   * finish, so connections are not closed while pool still uses them. Next
+   * offloaded request after restart creates new pool.
+   */
+  protected void shutdownBlockingHandlersPool() {
+    BlockingHandlersPool pool;
+    
+    synchronized (this) {
+      pool = this.blockingHandlersPool;
+      this.blockingHandlersPool = null;
+    }
+    
+    if (pool != null) {
+      pool.shutdown();
+      // handlers ignoring interruption may still run after, their jobs
+      // are closed by owning threads when they finish
+      pool.awaitTermination(BLOCKING_HANDLERS_STOP_WAIT);
+    }
+  }
+
+  /**
+   * @param blockingHandlersPool the blockingHandlersPool to set
+   */
+  public void setBlockingHandlersPool(
+      BlockingHandlersPool blockingHandlersPool) {
+    this.blockingHandlersPool = blockingHandlersPool;
+  }
+
+  /**
+   * @return the waitStrategy, null if server type default is used
+   */
+  public WaitStrategy getWaitStrategy() {
+    return waitStrategy;
+  }
+
+  /**
+   * Strategy handling threads use when idle. Default is null, which means
+   * server type default: event server threads park straight away and wait
+   * server threads spin over jobs for a while before parking.
+   * @param waitStrategy the waitStrategy to set
+   */
+  public void setWaitStrategy(WaitStrategy waitStrategy) {
+    this.waitStrategy = waitStrategy;
+  }
+
+  /**
+   * @return the compressingResponses
+   */
+  public boolean isCompressingResponses() {
+    return compressingResponses;
+  }
+
+  /**
+   * If responses should be compressed with gzip or deflate, as negotiated 
+   * with request Accept-Encoding header. Only responses with content type 
+   * listed in compressed content types and not smaller than compression 
+   * min size are compressed. Default is false.
+   * @param compressingResponses true to compress responses
+   */
+  public void setCompressingResponses(boolean compressingResponses) {
+    this.compressingResponses = compressingResponses;
+  }
+
+  /**
+   * @return the compressionMinSize
+   */
+  public long getCompressionMinSize() {
+    return compressionMinSize;
+  }
+
+  /**
+   * Responses with known content length smaller than this are not 
+   * compressed. Default is 1024.
+   * @param compressionMinSize the compressionMinSize to set
+   */
+  public void setCompressionMinSize(long compressionMinSize) {
+    this.compressionMinSize = compressionMinSize;
+  }
+
+  /**
+   * @return the compressionLevel
+   */
+  public int getCompressionLevel() {
+    return compressionLevel;
+  }
+
+  /**
+   * @param compressionLevel deflater level, 1 (fastest) to 9 (best)
+   */
+  public void setCompressionLevel(int compressionLevel) {
+    this.compressionLevel = compressionLevel;
+  }
+
+  /**
+   * @return the compressedContentTypes
+   */
+  public Set<String> getCompressedContentTypes() {
+    return compressedContentTypes;
+  }
+
+  /**
+   * Content types allowed to be compressed, lower case and without 
+   * parameters. Type ending with "/*" matches all its subtypes.
+   * @param compressedContentTypes the compressedContentTypes to set
+   */
+  public void setCompressedContentTypes(Set<String> compressedContentTypes) {
+    this.compressedContentTypes = compressedContentTypes;
+  }
+
+  /**
+   * @param contentType response content type, parameters are ignored
+   * @return true if content type is listed in compressed content types
+   */
+  public boolean isCompressedContentType(String contentType) {
+    if (contentType == null) {
+      return false;
+    }
+    
+    int paramsStart = contentType.indexOf(';');
+    if (paramsStart != -1) {
+      contentType = contentType.substring(0, paramsStart);
+    }
+    
+    contentType = contentType.trim().toLowerCase(Locale.ROOT);
+    
+    if (this.compressedContentTypes.contains(contentType)) {
+      return true;
+    }
+    
+    int slash = contentType.indexOf('/');
+    
+    return slash != -1 && this.compressedContentTypes
+        .contains(contentType.substring(0, slash) + "/*");
+  }
+
+  /**
+   * @return the transferringFileChannels
+   */
+  public boolean isTransferringFileChannels() {
+    return transferringFileChannels;
+  }
+
+  /**
+   * If response channels that are files should be sent with 
+   * FileChannel.transferTo directly to socket instead of being copied via
+   * response buffers. Same applies to {@link ByteBufferChannel} bodies,
+   * which are written from their buffer. Default is true.
+   * @param transferringFileChannels true to use transferTo for files
+   */
+  public void setTransferringFileChannels(boolean transferringFileChannels) {
+    this.transferringFileChannels = transferringFileChannels;
+  }
+
   /**
    * Applies only for WaitTypeServer where accept loop is designed to wait for
    * read events from selector. If set to false, jobs will be added IMMEDIATELY 
@@ -880,6 +1249,11 @@ public abstract class ServerBase {
    *
    * This method of registration does not use wild card characters like "*". To
    * use advanced matching - use {@link registerPathMatchingHandler()} method.
+   * 
+   * Path can contain parameters as whole or part of path segment, for 
+   * example "/users/{id}" or "/users/{id}/files/{name}". Parameter matches 
+   * any non empty text up to next "/", paths without parameters are matched 
+   * first. Values are available with {@link Request#getPathParameter(String)}.
    *
    * Handlers matched with match function have priority over plain path
    * handlers. If there is handler registered to "*" then it will be put before
@@ -889,7 +1263,10 @@ public abstract class ServerBase {
    * @param handler a {@link com.qubit.topnet.Handler} instance.
    */
   public void registerHandlerByPath(String path, Handler handler) {
-    plainPathHandlers.put(path, handler.getInstance());
+    Handler instance = handler.getInstance();
+    // bad path parameters throw here and routing stays as it was
+    this.routingTable.updateAndGet(
+        (RoutingTable table) -> table.withPlainHandler(path, instance));
   }
 
   /**
@@ -910,14 +1287,9 @@ public abstract class ServerBase {
    * @param handler
    */
   public void registerMatchingHandler(Handler handler) {
-    for (Iterator<Handler> it = matchingHandlers.iterator();it.hasNext();) {
-      Handler matchingPathHandler = it.next();
-      if (handler == matchingPathHandler || 
-          matchingPathHandler.getClass().equals(handler.getClass())) {
-        it.remove();
-      }
-    }
-    matchingHandlers.add(handler.getInstance());
+    Handler instance = handler.getInstance();
+    this.routingTable.updateAndGet(
+        (RoutingTable table) -> table.withMatchingHandler(handler, instance));
   }
 
   /**
@@ -925,7 +1297,8 @@ public abstract class ServerBase {
    * @param path path string used to register handler.
    */
   public void unregisterHandlerByPath(String path) {
-    plainPathHandlers.remove(path);
+    this.routingTable.updateAndGet(
+        (RoutingTable table) -> table.withoutPlainHandler(path));
   }
 
   /**
@@ -936,16 +1309,8 @@ public abstract class ServerBase {
    * @param handler handler instance
    */
   public void unregisterHandler(Handler handler) {
-    unregisterMatchingHandler(handler);
-
-    for (Iterator<Map.Entry<String, Handler>> it
-        = plainPathHandlers.entrySet().iterator();
-        it.hasNext();) {
-      Map.Entry<String, Handler> cur = it.next();
-      if (handler == cur || cur.getValue().getClass().equals(handler.getClass())) {
-        it.remove();
-      }
-    }
+    this.routingTable.updateAndGet(
+        (RoutingTable table) -> table.withoutHandler(handler));
   }
 
   /**
@@ -956,7 +1321,38 @@ public abstract class ServerBase {
    * @param handler handler instance to be unregistered
    */
   public void unregisterMatchingHandler(Handler handler) {
-    matchingHandlers.remove(handler);
+    this.routingTable.updateAndGet(
+        (RoutingTable table) -> table.withoutMatchingHandler(handler));
+  }
+
+  /**
+   * Current routing table. Table is immutable, registration changes publish
+   * new table with higher version.
+   * 
+   * @return the routingTable
+   */
+  public RoutingTable getRoutingTable() {
+    return this.routingTable.get();
+  }
+
+  /**
+   * Current plain path mapping to handlers. Map is immutable, registration 
+   * changes do not affect returned map.
+   * 
+   * @return the plainPathHandlers, read only
+   */
+  public Map<String, Handler> getPlainPathHandlers() {
+    return this.routingTable.get().getPlainPathHandlers();
+  }
+
+  /**
+   * Current ordered matching handlers. List is immutable, registration 
+   * changes do not affect returned list.
+   * 
+   * @return the matchingHandlers, read only
+   */
+  public List<Handler> getMatchingHandlers() {
+    return this.routingTable.get().getMatchingHandlers();
   }
 
   /**
@@ -975,30 +1371,58 @@ public abstract class ServerBase {
    * @return handler starting handling chain
    */
   public Handler getHandlerForPath(String fullPath, String path, String params) {
-    Handler handler = null;
-
-    for (Handler matchingHandler : matchingHandlers) {
-      if (matchingHandler.matches(fullPath, path, params)) {
-        Handler instance = matchingHandler.getInstance();
-        if (handler == null) {
-          handler = instance;
-        } else {
-          handler.setNext(instance);
-          handler = instance;
-        }
-      }
-    }
+    return this.getHandlerForPath(fullPath, path, params, null);
+  }
 
-    Handler plainHandler = plainPathHandlers.get(path);
-    if (plainHandler != null) {
-      if (handler == null) {
-        handler = plainHandler.getInstance();
-      } else {
-        handler.setNext(plainHandler.getInstance());
-      }
+  /**
+   * Function finds handler for the path, same as 
+   * {@link #getHandlerForPath(String, String, String)}. If plain handler is
+   * registered with path parameters (like "/users/{id}"), parameters are set
+   * on request given.
+   * 
+   * @param fullPath full path woth parameters (before )"?", "?", and after "?"
+   * @param path url path part without parameters (before "?")
+   * @param params URL parameters part without path (after "?")
+   * @param request request to set path parameters on, can be null
+   * @return handler starting handling chain
+   */
+  public Handler getHandlerForPath(
+      String fullPath, String path, String params, Request request) {
+    RoutingTrie trie = this.routingTable.get().getTrie();
+    Handler plainHandler = trie.findPlainHandler(path, request);
+    
+    return trie.buildChain(
+        fullPath,
+        path,
+        params,
+        plainHandler == null ? null : plainHandler.getInstance());
+  }
+
+  /**
+   * Function finds handling chain for the path, chain is taken from current
+   * thread cache if possible. Chain must be released with 
+   * {@link HandlerChain#release()} when request handling is finished, 
+   * handlers may be used for next request after.
+   * 
+   * @param fullPath full path woth parameters (before )"?", "?", and after "?"
+   * @param path url path part without parameters (before "?")
+   * @param params URL parameters part without path (after "?")
+   * @param request request to set path parameters on, can be null
+   * @return handling chain or null if no handlers are found
+   */
+  public HandlerChain getHandlerChain(
+      String fullPath, String path, String params, Request request) {
+    RoutingTable table = this.routingTable.get();
+    RoutingTrie trie = table.getTrie();
+    Handler plainHandler = trie.findPlainHandler(path, request);
+    long[] matched = trie.match(fullPath, path, params);
+
+    if (!this.cachingHandlerChains) {
+      return HandlerChain.build(trie, matched, plainHandler);
     }
 
-    return handler;
+    return this.handlerChains.get()
+        .acquire(table.getVersion(), trie, matched, plainHandler);
   }
 
   /**
@@ -1037,4 +1461,14 @@ public abstract class ServerBase {
     return maxResponseBufferFillSize;
   }
 
+  /**
+   * Pool of output buffers - each connection takes one for time of writing
+   * response, separately from buffers used to read requests.
+   * 
+   * @return the outputBytesStreamPool
+   */
+  public BytesStreamPool getOutputBytesStreamPool() {
+    return outputBytesStreamPool;
+  }
+
 }
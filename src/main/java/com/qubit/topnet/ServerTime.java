@@ -20,6 +20,7 @@
 
 package com.qubit.topnet;
 
+import java.nio.charset.StandardCharsets;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
@@ -45,6 +46,7 @@ class ServerTime {
   
   static volatile private long lastRead = 0;
   static private volatile String cachedTime = null;
+  static private volatile byte[] cachedTimeBytes = null;
   
   private static final ThreadLocal<ServerTime> serverTime;
 
@@ -61,11 +63,21 @@ class ServerTime {
     long now = System.currentTimeMillis();
     if (cachedTime == null || (lastRead + 499) < now) {
       lastRead = now;
-      cachedTime = serverTime.get().getTime();
+      String time = serverTime.get().getTime();
+      cachedTimeBytes = time.getBytes(StandardCharsets.ISO_8859_1);
+      cachedTime = time;
     }
     return cachedTime;
   }
   
+  /**
+   * @return cached time ISO-8859-1 encoded, refreshed as getCachedTime()
+   */
+  public static byte[] getCachedTimeBytes() {
+    getCachedTime();
+    return cachedTimeBytes;
+  }
+  
   public String getTime() {
     return dateFormat.format(new Date());
   }
@@ -0,0 +1,163 @@
+/*
+ * topNET
+ * Fast HTTP Server Solution.
+ * Copyright 2016, Qubit Group <www.qubit.com>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  
+ * If not, see <https://www.gnu.org/licenses/lgpl-3.0.en.html>
+ * 
+ * Author: Peter Fronc <peter.fronc@qubitdigital.com>
+ */
+package com.qubit.topnet;
+
+/**
+ * Decides what handling thread does when it has nothing to do. Thread asks 
+ * strategy each time it goes idle, passing number of idle rounds in a row 
+ * (reset to 0 when thread makes progress), and spins, yields or parks as 
+ * told. Parking is ended early when thread gets woken up, for example when
+ * new job is added to it.
+ * 
+ * Spinning gives lowest latency at cost of full CPU core per thread, 
+ * parking frees CPU but thread needs time to be scheduled again.
+ * 
+ * @author Peter Fronc <peter.fronc@qubitdigital.com>
+ */
+public interface WaitStrategy {
+  
+  /**
+   * Return nothing, just check for work again.
+   */
+  public static final long SPIN = 0;
+  
+  /**
+   * Give processor away with {@link Thread#yield()}.
+   */
+  public static final long YIELD = -1;
+  
+  /**
+   * Park until woken up or until max time thread allows to wait.
+   */
+  public static final long PARK = Long.MAX_VALUE;
+  
+  /**
+   * Always checks for work again, never leaves processor.
+   */
+  public static final WaitStrategy BUSY_SPIN = (int idleRounds) -> SPIN;
+  
+  /**
+   * Always yields.
+   */
+  public static final WaitStrategy YIELDING = (int idleRounds) -> YIELD;
+  
+  /**
+   * Parks straight away, until woken up.
+   */
+  public static final WaitStrategy BLOCKING = (int idleRounds) -> PARK;
+  
+  /**
+   * @param idleRounds how many times in a row thread was idle before
+   * @return {@link #SPIN}, {@link #YIELD} or nanoseconds to park for, 
+   *  {@link #PARK} to park until woken up
+   */
+  long idle(int idleRounds);
+  
+  /**
+   * Spins given amount of idle rounds and parks after.
+   * 
+   * @param spins idle rounds to spin
+   * @return strategy
+   */
+  public static WaitStrategy spinning(int spins) {
+    return new Backoff(spins, 0, PARK, PARK);
+  }
+  
+  /**
+   * Spins, then yields and then parks for time growing twice every idle 
+   * round from minParkNanos up to maxParkNanos.
+   * 
+   * @param spins idle rounds to spin
+   * @param yields idle rounds to yield after spinning
+   * @param minParkNanos first park time
+   * @param maxParkNanos max park time, {@link #PARK} to park until woken up
+   * @return strategy
+   */
+  public static WaitStrategy backoff(
+      int spins, int yields, long minParkNanos, long maxParkNanos) {
+    return new Backoff(spins, yields, minParkNanos, maxParkNanos);
+  }
+  
+  public static class Backoff implements WaitStrategy {
+    private final int spins;
+    private final int yields;
+    private final long minParkNanos;
+    private final long maxParkNanos;
+
+    public Backoff(
+        int spins, int yields, long minParkNanos, long maxParkNanos) {
+      this.spins = spins;
+      this.yields = yields;
+      this.minParkNanos = Math.max(1, minParkNanos);
+      this.maxParkNanos = Math.max(this.minParkNanos, maxParkNanos);
+    }
+
+    @Override
+    public long idle(int idleRounds) {
+      if (idleRounds < this.spins) {
+        return SPIN;
+      }
+      
+      idleRounds -= this.spins;
+      
+      if (idleRounds < this.yields) {
+        return YIELD;
+      }
+      
+      idleRounds -= this.yields;
+      
+      long park = this.minParkNanos;
+      
+      while (idleRounds-- > 0 && park < this.maxParkNanos) {
+        park = park > (this.maxParkNanos >> 1) ? this.maxParkNanos : park << 1;
+      }
+      
+      return park;
+    }
+
+    /**
+     * @return the spins
+     */
+    public int getSpins() {
+      return spins;
+    }
+
+    /**
+     * @return the yields
+     */
+    public int getYields() {
+      return yields;
+    }
+
+    /**
+     * @return the minParkNanos
+     */
+    public long getMinParkNanos() {
+      return minParkNanos;
+    }
+
+    /**
+     * @return the maxParkNanos
+     */
+    public long getMaxParkNanos() {
+      return maxParkNanos;
+    }
+  }
+}
@@ -0,0 +1,132 @@
+/*
+ * topNET
+ * Fast HTTP Server Solution.
+ * Copyright 2016, Qubit Group <www.qubit.com>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  
+ * If not, see <https://www.gnu.org/licenses/lgpl-3.0.en.html>
+ * 
+ * Author: Peter Fronc <peter.fronc@qubitdigital.com>
+ */
+package com.qubit.topnet;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Makes handling thread idle as {@link WaitStrategy} decides and counts 
+ * how thread waited. Each handling thread has own waiter, only 
+ * {@link #signal()} can be called from other threads.
+ * 
+ * @author Peter Fronc <peter.fronc@qubitdigital.com>
+ */
+public class Waiter {
+  
+  private final Thread thread;
+  private volatile boolean signalled = false;
+  private volatile boolean parked = false;
+  
+  private volatile long spins = 0;
+  private volatile long yields = 0;
+  private volatile long parks = 0;
+  private volatile long parkedNanos = 0;
+
+  public Waiter(Thread thread) {
+    this.thread = thread;
+  }
+  
+  /**
+   * Spins, yields or parks thread.
+   * 
+   * @param strategy strategy to ask
+   * @param idleRounds idle rounds in a row so far
+   * @param maxParkNanos max time to park, 0 if thread can wait till woken up
+   */
+  public void idle(WaitStrategy strategy, int idleRounds, long maxParkNanos) {
+    long decision = strategy.idle(idleRounds);
+    
+    if (decision == WaitStrategy.SPIN) {
+      this.spins++;
+    } else if (decision == WaitStrategy.YIELD) {
+      this.yields++;
+      Thread.yield();
+    } else {
+      if (maxParkNanos > 0 && maxParkNanos < decision) {
+        decision = maxParkNanos;
+      }
+      
+      long start = System.nanoTime();
+      this.park(decision == WaitStrategy.PARK ? 0 : decision);
+      this.parks++;
+      this.parkedNanos += System.nanoTime() - start;
+    }
+  }
+  
+  /**
+   * Parks thread till signalled or till time passes. Override to park 
+   * differently, {@link #signal()} must be overridden too then.
+   * 
+   * @param nanos time to park, 0 to park till signalled
+   */
+  protected void park(long nanos) {
+    this.parked = true;
+    try {
+      if (!this.signalled) {
+        if (nanos > 0) {
+          LockSupport.parkNanos(this, nanos);
+        } else {
+          LockSupport.park(this);
+        }
+      }
+    } finally {
+      this.parked = false;
+      this.signalled = false;
+    }
+  }
+  
+  /**
+   * Wakes up thread if parked, or makes its next park return straight away.
+   */
+  public void signal() {
+    this.signalled = true;
+    if (this.parked) {
+      LockSupport.unpark(this.thread);
+    }
+  }
+
+  /**
+   * @return the spins
+   */
+  public long getSpins() {
+    return spins;
+  }
+
+  /**
+   * @return the yields
+   */
+  public long getYields() {
+    return yields;
+  }
+
+  /**
+   * @return the parks
+   */
+  public long getParks() {
+    return parks;
+  }
+
+  /**
+   * @return the parkedNanos
+   */
+  public long getParkedNanos() {
+    return parkedNanos;
+  }
+}
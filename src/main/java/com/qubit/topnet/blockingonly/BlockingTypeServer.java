@@ -0,0 +1,334 @@
+/*
+ * topNET
+ * Fast HTTP Server Solution.
+ * Copyright 2016, Qubit Group <www.qubit.com>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  
+ * If not, see <https://www.gnu.org/licenses/lgpl-3.0.en.html>
+ * 
+ * Author: Peter Fronc <peter.fronc@qubitdigital.com>
+ */
+package com.qubit.topnet.blockingonly;
+
+import com.qubit.topnet.AbstractHandlingThread;
+import com.qubit.topnet.DataHandler;
+import com.qubit.topnet.ServerBase;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Server running each connection on its own thread with blocking reads and
+ * writes. On java 21+ connection threads are virtual threads, so blocking
+ * handlers (sleeping, waiting for database etc.) do not need handling 
+ * threads pool sizing - every connection simply waits on its own thread.
+ * On older java platform threads are used.
+ * 
+ * Jobs per thread and threads scaling settings are not used by this server.
+ * 
+ * @author Peter Fronc <peter.fronc@qubitdigital.com>
+ */
+public class BlockingTypeServer extends ServerBase {
+
+  private final static Logger log = 
+      Logger.getLogger(BlockingTypeServer.class.getName());
+
+  private static final AbstractHandlingThread[] NO_THREADS = 
+      new AbstractHandlingThread[0];
+
+  // how often idle and too large connections are checked
+  private static long limitsCheckPeriod = 500;
+
+  /**
+   * @return the limitsCheckPeriod
+   */
+  public static long getLimitsCheckPeriod() {
+    return limitsCheckPeriod;
+  }
+
+  /**
+   * @param aLimitsCheckPeriod the limitsCheckPeriod to set
+   */
+  public static void setLimitsCheckPeriod(long aLimitsCheckPeriod) {
+    limitsCheckPeriod = aLimitsCheckPeriod;
+  }
+
+  private final Set<ConnectionJob> connections = ConcurrentHashMap.newKeySet();
+  private final AtomicLong connectionsCounter = new AtomicLong();
+  private boolean usingVirtualThreads = true;
+  private ThreadFactory threadFactory;
+  private volatile boolean running = false;
+  private Thread acceptThread;
+  private Thread limitsThread;
+
+  public BlockingTypeServer(String address, int port) {
+    super(address, port);
+    // connection threads can block themselves
+    this.setOffloadingBlockingHandlers(false);
+  }
+
+  public void start() throws IOException {
+
+    if (this.isStarted()) {
+      log.info("Server already started.");
+      return;
+    }
+
+    this.setStarted(true);
+
+    this.setServerChannel(ServerSocketChannel.open());
+    this.getServerChannel().configureBlocking(true);
+
+    this.setServerSocket(getServerChannel().socket());
+
+    this.getServerSocket().setPerformancePreferences(
+        this.getConnectionTimePerformancePref(),
+        this.getLatencyPerformancePref(),
+        this.getBandwithPerformancePref());
+
+    if (this.getChannelReceiveBufferSize() > 0) {
+      this.getServerSocket()
+          .setReceiveBufferSize(this.getChannelReceiveBufferSize());
+    }
+
+    this.getServerSocket().bind(getListenAddress());
+
+    ThreadFactory virtualThreads = null;
+    if (this.usingVirtualThreads) {
+      virtualThreads = virtualThreadFactory();
+      if (virtualThreads == null) {
+        log.warning("Virtual threads are not supported by this JVM, "
+            + "connections will be handled by platform threads.");
+      }
+    }
+
+    if (virtualThreads != null) {
+      this.threadFactory = virtualThreads;
+    } else {
+      this.threadFactory = this::newPlatformThread;
+    }
+
+    this.running = true;
+
+    this.acceptThread = new Thread(this::acceptConnections, "topnet-accept");
+    this.acceptThread.start();
+
+    this.limitsThread = new Thread(this::checkLimits, "topnet-limits");
+    this.limitsThread.setDaemon(true);
+    this.limitsThread.start();
+
+    log.log(Level.INFO,
+        "Server starting at {0} on port {1}\nVirtual threads: {2}",
+        new Object[]{
+          getListenAddress().getHostName(),
+          this.getPort(),
+          virtualThreads != null});
+  }
+
+  public void stop() throws IOException {
+    if (!this.isStarted()) {
+      log.info("Server is not started.");
+      return;
+    }
+    if (this.isStoppingNow()) {
+      log.info("Server is being stopped. Please wait.");
+      return;
+    }
+
+    this.setStoppingNow(true);
+
+    try {
+      this.running = false;
+      this.getServerChannel().close(); // releases accepting thread
+      this.limitsThread.interrupt();
+
+      for (ConnectionJob connection : this.connections) {
+        connection.close();
+      }
+      
+      this.shutdownBlockingHandlersPool();
+    } finally {
+      this.acceptThread = null;
+      this.limitsThread = null;
+      this.setStoppingNow(false);
+      this.setStarted(false);
+    }
+  }
+
+  private void acceptConnections() {
+    while (this.running) {
+      try {
+        SocketChannel channel = this.accept();
+
+        if (channel == null) {
+          continue;
+        }
+
+        channel.configureBlocking(true);
+
+        ConnectionJob job = 
+            new ConnectionJob(this, channel, System.currentTimeMillis());
+        this.connections.add(job);
+        this.connectionsCounter.incrementAndGet();
+
+        try {
+          this.threadFactory.newThread(job).start();
+        } catch (Throwable t) {
+          this.connections.remove(job);
+          job.close();
+          throw t;
+        }
+      } catch (IOException ex) {
+        if (this.running) {
+          log.log(Level.SEVERE, "Exception in accept loop.", ex);
+        }
+      } catch (Throwable t) {
+        log.log(Level.SEVERE, "Exception in accept loop.", t);
+      }
+    }
+  }
+
+  private void checkLimits() {
+    while (this.running) {
+      try {
+        Thread.sleep(limitsCheckPeriod);
+      } catch (InterruptedException ex) {
+        continue;
+      }
+
+      for (ConnectionJob connection : this.connections) {
+        try {
+          if (this.exceedsLimits(connection.getDataHandler())) {
+            connection.close();
+          }
+        } catch (Throwable t) {
+          log.log(Level.SEVERE, "Exception checking connection limits.", t);
+        }
+      }
+    }
+  }
+
+  private boolean exceedsLimits(DataHandler dataHandler) {
+    if (dataHandler.isHandling()) {
+      return false; // blocking handlers can take their time
+    }
+
+    //check if connection is not open too long! Prevent DDoS
+    long idle = dataHandler.getMaxIdle(this.getDefaultIdleTime());
+    if (idle != 0 && 
+        (System.currentTimeMillis() - dataHandler.getTouch()) > idle) {
+      if (this.getLimitsHandler() != null) {
+        return this.getLimitsHandler().handleTimeout(null, idle, dataHandler);
+      } else {
+        return true;
+      }
+    }
+
+    // check if not too large
+    long maxSize = dataHandler.getMaxMessageSize(this.getMaxMessageSize());
+
+    if (maxSize != -1 && dataHandler.getSize() >= maxSize) {
+      if (this.getLimitsHandler() != null) {
+        return this.getLimitsHandler()
+            .handleSizeLimit(null, idle, dataHandler);
+      } else {
+        log.log(Level.INFO, "Max size reached - closing: {0}",
+            dataHandler.getSize());
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  void connectionFinished(ConnectionJob job) {
+    this.connections.remove(job);
+  }
+
+  private Thread newPlatformThread(Runnable runnable) {
+    Thread thread = new Thread(runnable);
+    thread.setDaemon(true);
+    return thread;
+  }
+
+  /**
+   * Virtual threads are available since java 21, factory is created with 
+   * reflection so server still runs on java 8.
+   * 
+   * @return virtual threads factory or null if not supported
+   */
+  static ThreadFactory virtualThreadFactory() {
+    try {
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      builder = builderClass.getMethod("name", String.class, long.class)
+          .invoke(builder, "topnet-connection-", 0L);
+      Method factory = builderClass.getMethod("factory");
+      return (ThreadFactory) factory.invoke(builder);
+    } catch (ReflectiveOperationException | RuntimeException ex) {
+      return null;
+    }
+  }
+
+  @Override
+  public void removeThread(AbstractHandlingThread thread) {
+    // connections run on own threads, there is no threads pool
+  }
+
+  @Override
+  public boolean hasThreads() {
+    return this.running;
+  }
+
+  @Override
+  public AbstractHandlingThread[] getAllHandlingThreads() {
+    return NO_THREADS;
+  }
+
+  /**
+   * @return the amount of currently open connections
+   */
+  public int getConnectionsAmount() {
+    return this.connections.size();
+  }
+
+  /**
+   * @return the amount of all connections accepted since server created
+   */
+  public long getConnectionsCounter() {
+    return this.connectionsCounter.get();
+  }
+
+  /**
+   * @return the usingVirtualThreads
+   */
+  public boolean isUsingVirtualThreads() {
+    return usingVirtualThreads;
+  }
+
+  /**
+   * If connections should be handled by virtual threads, when supported by 
+   * JVM. When false, or not supported, each connection gets platform thread. 
+   * Default is true. Applied on start.
+   * @param usingVirtualThreads true to use virtual threads
+   */
+  public void setUsingVirtualThreads(boolean usingVirtualThreads) {
+    this.usingVirtualThreads = usingVirtualThreads;
+  }
+}
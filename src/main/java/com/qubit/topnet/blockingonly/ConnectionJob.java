@@ -0,0 +1,128 @@
+/*
+ * topNET
+ * Fast HTTP Server Solution.
+ * Copyright 2016, Qubit Group <www.qubit.com>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  
+ * If not, see <https://www.gnu.org/licenses/lgpl-3.0.en.html>
+ * 
+ * Author: Peter Fronc <peter.fronc@qubitdigital.com>
+ */
+package com.qubit.topnet.blockingonly;
+
+import com.qubit.topnet.AbstractHandlingThread;
+import com.qubit.topnet.DataHandler;
+import static com.qubit.topnet.DataHandler.bodyReadyHandler;
+import com.qubit.topnet.ServerBase;
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Single connection handling loop, run by connection own thread. Channel is
+ * in blocking mode so reading waits for whole request and writing for all
+ * response data to be sent.
+ * 
+ * @author Peter Fronc <peter.fronc@qubitdigital.com>
+ */
+class ConnectionJob implements Runnable {
+
+  private static final Logger log = 
+      Logger.getLogger(ConnectionJob.class.getName());
+
+  // wait for asynchronously written response data
+  private static final long WAIT_FOR_DATA_NANOS = 1000 * 1000;
+
+  private final BlockingTypeServer server;
+  private final SocketChannel channel;
+  private final DataHandler dataHandler;
+
+  ConnectionJob(BlockingTypeServer server,
+                SocketChannel channel,
+                long acceptTime) {
+    this.server = server;
+    this.channel = channel;
+    this.dataHandler = new DataHandler(server, channel);
+    this.dataHandler.setAcceptAndRunHandleStarted(acceptTime);
+  }
+
+  @Override
+  public void run() {
+    try {
+      while (this.channel.isOpen()) {
+        int many = this.dataHandler.read();
+
+        if (many == -2) {
+          bodyReadyHandler(this.dataHandler);
+          if (!this.writeResponse()) {
+            break;
+          }
+        } else if (many < 0) {
+          break; // connection closed by peer or request is broken
+        }
+      }
+    } catch (IOException ioe) {
+      log.log(Level.FINE, "Exception during handling data.", ioe);
+    } catch (Throwable es) {
+      log.log(Level.SEVERE, "Exception during handling data.", es);
+    } finally {
+      try {
+        this.close();
+        this.dataHandler.connectionClosedHandler();
+      } finally {
+        // thread ends with connection, its caches would never be used again
+        AbstractHandlingThread.releaseThreadCaches();
+        this.server.connectionFinished(this);
+      }
+    }
+  }
+
+  /**
+   * Writes whole response.
+   * 
+   * @return true if connection should be kept for next request
+   * @throws IOException 
+   */
+  private boolean writeResponse() throws IOException {
+    while (true) {
+      int written = this.dataHandler.write();
+
+      if (written == -1) {
+        this.dataHandler.requestFinishedHandler();
+        return !this.dataHandler.finishedOrWaitForMoreRequests(true);
+      }
+
+      if (written == 0) {
+        // response data is written by other thread and is not ready yet
+        this.dataHandler.setAgainTrayingInShortTime(false);
+        LockSupport.parkNanos(WAIT_FOR_DATA_NANOS);
+
+        if (!this.channel.isOpen()) {
+          return false;
+        }
+      }
+    }
+  }
+
+  void close() {
+    ServerBase.close(this.channel);
+  }
+
+  /**
+   * @return the dataHandler
+   */
+  DataHandler getDataHandler() {
+    return dataHandler;
+  }
+}
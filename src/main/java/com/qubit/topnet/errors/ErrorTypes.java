@@ -33,5 +33,7 @@ public enum ErrorTypes {
   HTTP_UNKNOWN_ERROR,
   HTTP_SERVER_ERROR,
   HTTP_HEADER_TOO_LARGE,
-  HTTP_BAD_REQUEST
+  HTTP_BAD_REQUEST,
+  HTTP_PAYLOAD_TOO_LARGE,
+  HTTP_SERVICE_UNAVAILABLE
 }
@@ -0,0 +1,410 @@
+/*
+ * topNET
+ * Fast HTTP Server Solution.
+ * Copyright 2016, Qubit Group <www.qubit.com>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  
+ * If not, see <https://www.gnu.org/licenses/lgpl-3.0.en.html>
+ * 
+ * Author: Peter Fronc <peter.fronc@qubitdigital.com>
+ */
+package com.qubit.topnet.eventonly;
+
+import com.qubit.topnet.PoolType;
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Single selector loop of event type server: selector, thread dispatching its
+ * events and group of handling threads processing connections registered 
+ * with it. Server runs one or more loops, connections are spread across them.
+ * 
+ * @author Peter Fronc <peter.fronc@qubitdigital.com>
+ */
+class EventLoop {
+
+  private final EventTypeServer server;
+  private final int index;
+  private final Selector channelSelector;
+  private final ServerSocketChannel serverChannel;
+  private final int minimumThreadsAmount;
+  private final int scalingMax;
+  // channels accepted by other loop, waiting for registration in this one
+  private final ConcurrentLinkedQueue<SocketChannel> handedOverChannels = 
+      new ConcurrentLinkedQueue<>();
+  private final ArrayDeque<HandlingThread> threadsCache = new ArrayDeque<>();
+  private HandlingThread[] handlingThreads;
+  private MainAcceptAndDispatchThread dispatcher;
+
+  /**
+   * @param server owning server
+   * @param index loop index
+   * @param serverChannel channel this loop accepts on, or null if connections
+   *                      are only handed over by other loop
+   * @param minimumThreadsAmount handling threads to start with
+   * @param scalingMax max handling threads, 0 or less for no limit
+   * @throws IOException 
+   */
+  EventLoop(EventTypeServer server,
+            int index,
+            ServerSocketChannel serverChannel,
+            int minimumThreadsAmount,
+            int scalingMax) throws IOException {
+    this.server = server;
+    this.index = index;
+    this.serverChannel = serverChannel;
+    this.minimumThreadsAmount = minimumThreadsAmount;
+    this.scalingMax = scalingMax;
+    this.channelSelector = Selector.open();
+
+    if (serverChannel != null) {
+      serverChannel.register(this.channelSelector, SelectionKey.OP_ACCEPT);
+    }
+  }
+
+  void start() throws IOException {
+    this.handlingThreads = new HandlingThread[this.minimumThreadsAmount];
+
+    for (int i = 0; i < this.handlingThreads.length; i++) {
+      this.addThreadDirectly();
+    }
+
+    this.dispatcher = new MainAcceptAndDispatchThread(
+        this.server,
+        this,
+        this.server.getDefaultAcceptIdleTime());
+
+    this.dispatcher.setName("topnet-selector-" + this.index);
+    this.dispatcher.setNoSlotsAvailableTimeout(
+        this.server.getNoSlotsAvailableTimeout());
+    this.dispatcher.setScalingDownTryPeriodMS(
+        this.server.getScalingDownTryPeriodMS());
+    this.dispatcher.setAutoScalingDown(this.server.isAutoScalingDown());
+    this.dispatcher.start();
+  }
+
+  void stop() throws IOException {
+    if (this.dispatcher != null) {
+      this.dispatcher.setRunning(false); // help it to finish
+      this.dispatcher = null;
+      this.channelSelector.wakeup();
+    }
+
+    // threads are not there if loop was not started
+    HandlingThread[] threads = this.handlingThreads;
+    for (int j = 0; threads != null && j < threads.length; j++) {
+      // finishing thread removes itself from array
+      HandlingThread thread = threads[j];
+      if (thread != null) {
+        thread.setRunning(false); // help thread to finish
+        thread.wakeup(); // it may be parked with no jobs
+        threads[j] = null; // remove thread
+      }
+    }
+
+    this.clearThreadsCache();
+
+    SocketChannel channel;
+    while ((channel = this.handedOverChannels.poll()) != null) {
+      EventTypeServer.close(channel);
+    }
+
+    if (this.serverChannel != null) {
+      this.serverChannel.close();
+    }
+  }
+
+  /**
+   * Accepts connection on this loop server channel.
+   * 
+   * @return accepted channel or null
+   * @throws IOException 
+   */
+  SocketChannel accept() throws IOException {
+    return this.server.accept(this.serverChannel);
+  }
+
+  /**
+   * Passes channel accepted by other loop to this one. Channel is registered
+   * by this loop dispatching thread.
+   * 
+   * @param channel accepted channel
+   */
+  void handOver(SocketChannel channel) {
+    this.handedOverChannels.add(channel);
+    this.channelSelector.wakeup();
+  }
+
+  /**
+   * @return next channel handed over to this loop or null
+   */
+  SocketChannel pollHandedOver() {
+    return this.handedOverChannels.poll();
+  }
+
+  boolean addThread() {
+    if (this.scalingMax > 0 && handlingThreads.length >= this.scalingMax) {
+      return false;
+    }
+
+    return this.addThreadDirectly();
+  }
+
+  private boolean addThreadDirectly() {
+
+    int idx = -1;
+    for (int i = 0; i < handlingThreads.length; i++) {
+      if (handlingThreads[i] == null) {
+        idx = i;
+        break;
+      }
+    }
+
+    if (idx == -1) {
+      if (this.server.isAutoscalingThreads()) {
+        HandlingThread[] newArray
+            = new HandlingThread[handlingThreads.length + 1];
+
+        System.arraycopy(handlingThreads, 0,
+            newArray, 0,
+            handlingThreads.length);
+
+        idx = handlingThreads.length;
+        // update reference
+        this.handlingThreads = newArray;
+      } else {
+        return false;
+      }
+    }
+
+    handlingThreads[idx] = this.getCachedOrNewThread();
+
+    return true;
+  }
+
+  int cleanupThreadsExcess() {
+    int threadsThatShouldBe = this.minimumThreadsAmount;
+    HandlingThread[] threads = this.handlingThreads;
+
+    if (threadsThatShouldBe >= threads.length) {
+      return 0;
+    }
+
+    double jobs = 0;
+    double max = 0;
+
+    if (this.server.getPoolType() == PoolType.QUEUE_SHARED) {
+      for (HandlingThread thread : threads) {
+        if (thread != null) {
+          jobs = thread.jobsLeft(); // jobs are same so same value "="
+          max += thread.getLimit();
+        }
+      }
+    } else {
+      for (HandlingThread thread : threads) {
+        if (thread != null) {
+          jobs += thread.jobsLeft();
+          max += thread.getLimit();
+        }
+      }
+    }
+
+    int threadsRequired = (int) ((jobs / max) * threads.length) + 1;
+
+    if (threadsRequired >= threads.length) {
+      return 0;
+    }
+
+    if (threadsRequired < threadsThatShouldBe) {
+      threadsRequired = threadsThatShouldBe;
+    }
+
+    // less aggressive scaling down
+    int threadsToRemove = threads.length - threadsRequired;
+
+    if (threadsToRemove > 1) {
+      threadsToRemove = Math.min(threadsToRemove, 1 + (threads.length / 6));
+    }
+
+    if (threadsToRemove > 0) {
+
+      int newAmount = threads.length - threadsToRemove;
+      HandlingThread[] newThreads = new HandlingThread[newAmount];
+
+      int threadCount = 0;
+
+      for (int i = 0; i < threads.length; i++) {
+        HandlingThread thread = threads[i];
+        if (thread != null) {
+          if (threadCount >= newAmount) {
+            if (this.server.isCachingThreads()) {
+              putThreadToCache(threads[i]);
+              thread.wakeup();
+            } else {
+              this.server.threadRemoved(threads[i]);
+              threads[i].setRunning(false);
+            }
+          } else {
+            newThreads[threadCount] = threads[i];
+          }
+          threadCount++;
+        }
+      }
+
+      this.handlingThreads = newThreads;
+
+      return threadsToRemove;
+    }
+
+    return 0;
+  }
+
+  private HandlingThread getNewThread() {
+    int jobsSize = this.server.getJobsPerThreadValue();
+    int bufSize = this.server.getMaxFromContentSizeBufferChunkSize();
+    long defaultMaxMessage = this.server.getMaxMessageSize();
+    long maxIdle = this.server.getDefaultIdleTime();
+    HandlingThread t;
+
+    switch (this.server.getPoolType()) {
+      case POOL:
+        t = new HandlingThreadPooled(
+            this.server,
+            jobsSize,
+            bufSize,
+            defaultMaxMessage,
+            maxIdle);
+        break;
+      case QUEUE:
+        t = new HandlingThreadQueued(
+            this.server,
+            jobsSize,
+            bufSize,
+            defaultMaxMessage,
+            maxIdle);
+        break;
+      case QUEUE_SHARED:
+        t = new HandlingThreadSharedQueue(
+            this.server,
+            jobsSize,
+            bufSize,
+            defaultMaxMessage,
+            maxIdle);
+        break;
+      case SELECTOR:
+        try {
+          t = new HandlingThreadSelector(
+              this.server,
+              jobsSize,
+              bufSize,
+              defaultMaxMessage,
+              maxIdle);
+        } catch (IOException ex) {
+          throw new RuntimeException("Could not open thread selector.", ex);
+        }
+        break;
+      default:
+        throw new RuntimeException(
+            "Unknown thread handling type selected: " 
+                + this.server.getPoolType());
+    }
+
+    t.setChannelSelector(this.channelSelector);
+    t.start();
+
+    this.server.threadAdded(t);
+
+    return t;
+  }
+
+  private HandlingThread getCachedOrNewThread() {
+    HandlingThread t = threadsCache.pollFirst();
+    if (t != null) {
+      return t;
+    } else {
+      return this.getNewThread();
+    }
+  }
+
+  private void putThreadToCache(HandlingThread t) {
+    if (t != null) {
+      threadsCache.addLast(t);
+    }
+  }
+
+  private void clearThreadsCache() {
+    HandlingThread t;
+    while ((t = threadsCache.pollFirst()) != null) {
+      t.setRunning(false);
+      t.wakeup();
+    }
+  }
+
+  void removeThread(HandlingThread thread) {
+    HandlingThread[] threads = this.handlingThreads;
+    for (int i = 0; i < threads.length; i++) {
+      if (threads[i] == thread) {
+        threads[i] = null;
+      }
+    }
+
+    for(Iterator<HandlingThread> it = threadsCache.iterator(); it.hasNext();) {
+      HandlingThread handlingThread = it.next();
+      if (handlingThread.getClass().equals(thread.getClass())) {
+        it.remove();
+      }
+    }
+  }
+
+  boolean hasThreads() {
+    for (HandlingThread handlingThread : handlingThreads) {
+      if (handlingThread != null) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return the handlingThreads
+   */
+  HandlingThread[] getHandlingThreads() {
+    return handlingThreads;
+  }
+
+  /**
+   * @return the channelSelector
+   */
+  Selector getChannelSelector() {
+    return channelSelector;
+  }
+
+  /**
+   * @return the serverChannel
+   */
+  ServerSocketChannel getServerChannel() {
+    return serverChannel;
+  }
+
+  /**
+   * @return the index
+   */
+  int getIndex() {
+    return index;
+  }
+}
@@ -20,15 +20,14 @@
 package com.qubit.topnet.eventonly;
 
 import com.qubit.topnet.AbstractHandlingThread;
-import com.qubit.topnet.PoolType;
-import static com.qubit.topnet.PoolType.POOL;
 import com.qubit.topnet.ServerBase;
 import java.io.IOException;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
 import java.nio.channels.ServerSocketChannel;
-import java.util.ArrayDeque;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -41,9 +40,10 @@ public class EventTypeServer extends ServerBase {
   private final static Logger log = 
       Logger.getLogger(EventTypeServer.class.getName());
 
-  private HandlingThread[] handlingThreads;
-
-  private MainAcceptAndDispatchThread mainAcceptDispatcher;
+  private EventLoop[] eventLoops = new EventLoop[0];
+  private final AtomicInteger nextEventLoop = new AtomicInteger();
+  private int selectorThreadsAmount = 1;
+  private boolean reusingPort = false;
 
   public EventTypeServer(String address, int port) {
     super(address, port);
@@ -58,58 +58,106 @@ public class EventTypeServer extends ServerBase {
 
     this.setStarted(true);
 
-    this.setServerChannel(ServerSocketChannel.open());
-    this.getServerChannel().configureBlocking(false);
+    int loopsAmount = Math.max(1, this.selectorThreadsAmount);
+    boolean separateAcceptors = loopsAmount > 1 && this.reusingPort;
 
-    this.setServerSocket(getServerChannel().socket());
+    if (separateAcceptors && reusePortOption() == null) {
+      log.warning("SO_REUSEPORT is not supported by this JVM, "
+          + "connections will be accepted by single selector thread.");
+      separateAcceptors = false;
+    }
 
-    this.getServerSocket().setPerformancePreferences(
-        this.getConnectionTimePerformancePref(),
-        this.getLatencyPerformancePref(),
-        this.getBandwithPerformancePref());
+    this.setServerChannel(this.openServerChannel(separateAcceptors));
+    this.setServerSocket(getServerChannel().socket());
 
-    if (this.getChannelReceiveBufferSize() > 0) {
-      this.getServerSocket()
-          .setReceiveBufferSize(this.getChannelReceiveBufferSize());
-    }
+    // each loop gets its part of threads
+    int threadsPerLoop = 
+        (this.getMinimumThreadsAmount() + loopsAmount - 1) / loopsAmount;
+    int scalingMaxPerLoop = this.getScalingMax() > 0
+        ? (this.getScalingMax() + loopsAmount - 1) / loopsAmount : 0;
 
-    this.getServerSocket().bind(getListenAddress());
+    this.eventLoops = new EventLoop[loopsAmount];
 
-    // @todo move to cfg
-    this.setHandlingThreads(new HandlingThread[this.getMinimumThreadsAmount()]);
+    for (int i = 0; i < loopsAmount; i++) {
+      ServerSocketChannel acceptingChannel = null;
 
-    this.setChannelSelector(Selector.open());
+      if (i == 0) {
+        acceptingChannel = this.getServerChannel();
+      } else if (separateAcceptors) {
+        acceptingChannel = this.openServerChannel(true);
+      }
 
-    getServerChannel().register(getChannelSelector(), SelectionKey.OP_ACCEPT);
+      this.eventLoops[i] = new EventLoop(
+          this, i, acceptingChannel, threadsPerLoop, scalingMaxPerLoop);
+    }
 
-    this.mainAcceptDispatcher
-        = new MainAcceptAndDispatchThread(
-            this,
-            getChannelSelector(),
-            this.getDefaultAcceptIdleTime());
+    this.setChannelSelector(this.eventLoops[0].getChannelSelector());
 
     log.log(Level.INFO,
             "Threads handling type used: {0}",
             this.getPoolType().name());
 
-    this.setupThreadsList();
-
-    mainAcceptDispatcher.setNoSlotsAvailableTimeout(
-        this.getNoSlotsAvailableTimeout());
-
-    mainAcceptDispatcher
-        .setScalingDownTryPeriodMS(this.getScalingDownTryPeriodMS());
-
-    mainAcceptDispatcher.setAutoScalingDown(this.isAutoScalingDown());
-
-    mainAcceptDispatcher.start();
+    for (EventLoop eventLoop : this.eventLoops) {
+      eventLoop.start();
+    }
 
     log.log(Level.INFO,
-        "Server starting at {0} on port {1}\nPool type: {2}",
+        "Server starting at {0} on port {1}\nPool type: {2}\n"
+            + "Selector threads: {3}, separate acceptors: {4}",
         new Object[]{
           getListenAddress().getHostName(),
           this.getPort(),
-          this.getPoolType()});
+          this.getPoolType(),
+          loopsAmount,
+          separateAcceptors});
+  }
+
+  private ServerSocketChannel openServerChannel(boolean reusePort)
+      throws IOException {
+    ServerSocketChannel serverChannel = ServerSocketChannel.open();
+    serverChannel.configureBlocking(false);
+
+    if (reusePort) {
+      serverChannel.setOption(reusePortOption(), true);
+    }
+
+    serverChannel.socket().setPerformancePreferences(
+        this.getConnectionTimePerformancePref(),
+        this.getLatencyPerformancePref(),
+        this.getBandwithPerformancePref());
+
+    if (this.getChannelReceiveBufferSize() > 0) {
+      serverChannel.socket()
+          .setReceiveBufferSize(this.getChannelReceiveBufferSize());
+    }
+
+    serverChannel.socket().bind(getListenAddress());
+
+    return serverChannel;
+  }
+
+  /**
+   * SO_REUSEPORT option is available since java 9, it is looked up by name 
+   * so server still runs on java 8.
+   * 
+   * @return the option or null if not supported
+   */
+  @SuppressWarnings("unchecked")
+  static SocketOption<Boolean> reusePortOption() {
+    try {
+      SocketOption<Boolean> option = (SocketOption<Boolean>) 
+          StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+
+      try (ServerSocketChannel channel = ServerSocketChannel.open()) {
+        if (channel.supportedOptions().contains(option)) {
+          return option;
+        }
+      }
+    } catch (NoSuchFieldException | IllegalAccessException | IOException ex) {
+      // not available
+    }
+
+    return null;
   }
 
   public void stop() throws IOException {
@@ -125,13 +173,11 @@ public class EventTypeServer extends ServerBase {
     this.setStoppingNow(true);
 
     try {
-      this.mainAcceptDispatcher.setRunning(false); // help it to finish
-      this.mainAcceptDispatcher = null;
-      for (int j = 0; j < handlingThreads.length; j++) {
-        handlingThreads[j].setRunning(false); // help thread to finish
-        handlingThreads[j] = null; // remove thread
+      // handlers running on pool use their connections until they finish
+      this.shutdownBlockingHandlersPool();
+      for (EventLoop eventLoop : this.eventLoops) {
+        eventLoop.stop();
       }
-      this.clearThreadsCache();
       this.allRegisteringHandlingThreads.clear();
       this.getServerChannel().close();
     } finally {
@@ -140,243 +186,116 @@ public class EventTypeServer extends ServerBase {
     }
   }
 
-  @Override
-  public void removeThread(AbstractHandlingThread thread) {
-    this.allRegisteringHandlingThreads.remove(thread);
-    
-    for (int i = 0; i < handlingThreads.length; i++) {
-      if (handlingThreads[i] == thread) {
-        handlingThreads[i] = null;
-      }
-    }
-    
-    for(Iterator<HandlingThread> it = threadsCache.iterator(); it.hasNext();) {
-      HandlingThread handlingThread = it.next();
-      if (handlingThread.getClass().equals(thread.getClass())) {
-        it.remove();
-      }
-    }
-  }
+  /**
+   * Picks loop for connection accepted by loop given. Loops accepting on own
+   * channels keep their connections, otherwise connections are spread evenly
+   * across all loops.
+   * 
+   * @param acceptingLoop loop which accepted connection
+   * @return loop to register connection with
+   */
+  EventLoop getEventLoopForAccepted(EventLoop acceptingLoop) {
+    EventLoop[] loops = this.eventLoops;
 
-  @Override
-  public boolean hasThreads() {
-    for (HandlingThread handlingThread : handlingThreads) {
-      if (handlingThread != null) {
-        return true;
-      }
+    if (loops.length == 1 || loops[1].getServerChannel() != null) {
+      return acceptingLoop;
     }
-    return false;
-  }
 
-  private void setupThreadsList() {
-    int len = handlingThreads.length;
-    for (int i = 0; i < len; i++) {
-      this.addThreadDirectly();
-    }
+    int i = nextEventLoop.getAndIncrement() & Integer.MAX_VALUE;
+    return loops[i % loops.length];
   }
 
-  public boolean addThread() {
-    if (this.getScalingMax() > 0
-        && handlingThreads.length >= this.getScalingMax()) {
-      return false;
-    }
-
-    return this.addThreadDirectly();
+  /**
+   * @return the eventLoops
+   */
+  EventLoop[] getEventLoops() {
+    return eventLoops;
   }
 
-  private boolean addThreadDirectly() {
-
-    int idx = -1;
-    for (int i = 0; i < handlingThreads.length; i++) {
-      if (handlingThreads[i] == null) {
-        idx = i;
-        break;
-      }
-    }
-
-    if (idx == -1) {
-      if (this.isAutoscalingThreads()) {
-        HandlingThread[] newArray
-            = new HandlingThread[handlingThreads.length + 1];
-
-        System.arraycopy(handlingThreads, 0,
-            newArray, 0,
-            handlingThreads.length);
-
-        idx = handlingThreads.length;
-        // update reference
-        this.setHandlingThreads(newArray);
-      } else {
-        return false;
-      }
-    }
-
-    handlingThreads[idx] = this.getCachedOrNewThread();
-
-    return true;
+  void threadAdded(HandlingThread thread) {
+    this.allRegisteringHandlingThreads.add(thread);
   }
 
-  public int cleanupThreadsExcess() {
-    int threadsThatShouldBe = this.getMinimumThreadsAmount();
-    HandlingThread[] threads = this.handlingThreads;
+  void threadRemoved(HandlingThread thread) {
+    this.allRegisteringHandlingThreads.remove(thread);
+  }
 
-    if (threadsThatShouldBe >= threads.length) {
-      return 0;
+  @Override
+  public void removeThread(AbstractHandlingThread thread) {
+    this.allRegisteringHandlingThreads.remove(thread);
+    
+    for (EventLoop eventLoop : this.eventLoops) {
+      eventLoop.removeThread((HandlingThread) thread);
     }
+  }
 
-    double jobs = 0;
-    double max = 0;
-
-    if (this.getPoolType() == PoolType.QUEUE_SHARED) {
-      for (HandlingThread thread : threads) {
-        if (thread != null) {
-          jobs = thread.jobsLeft(); // jobs are same so same value "="
-          max += thread.getLimit();
-        }
-      }
-    } else {
-      for (HandlingThread thread : threads) {
-        if (thread != null) {
-          jobs += thread.jobsLeft();
-          max += thread.getLimit();
-        }
+  @Override
+  public boolean hasThreads() {
+    for (EventLoop eventLoop : this.eventLoops) {
+      if (eventLoop.hasThreads()) {
+        return true;
       }
     }
+    return false;
+  }
 
-    int threadsRequired = (int) ((jobs / max) * threads.length) + 1;
-
-    if (threadsRequired >= threads.length) {
-      return 0;
-    }
-
-    if (threadsRequired < threadsThatShouldBe) {
-      threadsRequired = threadsThatShouldBe;
-    }
-
-    // less aggressive scaling down
-    int threadsToRemove = threads.length - threadsRequired;
+  /**
+   * @return the handlingThreads of all selector loops
+   */
+  public HandlingThread[] getHandlingThreads() {
+    EventLoop[] loops = this.eventLoops;
 
-    if (threadsToRemove > 1) {
-      threadsToRemove = Math.min(threadsToRemove, 1 + (threads.length / 6));
+    if (loops.length == 1) {
+      return loops[0].getHandlingThreads();
     }
 
-    if (threadsToRemove > 0) {
-
-      int newAmount = threads.length - threadsToRemove;
-      HandlingThread[] newThreads = new HandlingThread[newAmount];
-
-      int threadCount = 0;
-
-      for (int i = 0; i < threads.length; i++) {
-        HandlingThread thread = threads[i];
-        if (thread != null) {
-          if (threadCount >= newAmount) {
-            if (this.isCachingThreads()) {
-              putThreadToCache(threads[i]);
-              thread.wakeup();
-            } else {
-              this.allRegisteringHandlingThreads.remove(threads[i]);
-              threads[i].setRunning(false);
-            }
-          } else {
-            newThreads[threadCount] = threads[i];
-          }
-          threadCount++;
-        }
+    List<HandlingThread> threads = new ArrayList<>();
+    for (EventLoop eventLoop : loops) {
+      for (HandlingThread thread : eventLoop.getHandlingThreads()) {
+        threads.add(thread);
       }
-
-      this.setHandlingThreads(newThreads);
-
-      return threadsToRemove;
     }
 
-    return 0;
-  }
-
-  private HandlingThread getNewThread() {
-    int jobsSize = this.getJobsPerThreadValue();
-    int bufSize = this.getMaxFromContentSizeBufferChunkSize();
-    long defaultMaxMessage = this.getMaxMessageSize();
-    HandlingThread t;
-
-    switch (this.getPoolType()) {
-      case POOL:
-        t = new HandlingThreadPooled(
-            this,
-            jobsSize,
-            bufSize,
-            defaultMaxMessage,
-            getDefaultIdleTime());
-        break;
-      case QUEUE:
-        t = new HandlingThreadQueued(
-            this,
-            jobsSize,
-            bufSize,
-            defaultMaxMessage,
-            getDefaultIdleTime());
-        break;
-      case QUEUE_SHARED:
-        t = new HandlingThreadSharedQueue(
-            this,
-            jobsSize,
-            bufSize,
-            defaultMaxMessage,
-            getDefaultIdleTime());
-        break;
-      default:
-        throw new RuntimeException(
-            "Unknown thread handling type selected: " + this.getPoolType());
-    }
-
-    t.start();
-
-    this.allRegisteringHandlingThreads.add(t);
-
-    return t;
+    return threads.toArray(new HandlingThread[threads.size()]);
   }
 
-  private final ArrayDeque<HandlingThread> threadsCache = new ArrayDeque<>();
-
-  public HandlingThread getCachedOrNewThread() {
-    HandlingThread t = threadsCache.pollFirst();
-    if (t != null) {
-      return t;
-    } else {
-      return this.getNewThread();
-    }
-  }
-
-  public void putThreadToCache(HandlingThread t) {
-    if (t != null) {
-      threadsCache.addLast(t);
-    }
+  @Override
+  public AbstractHandlingThread[] getAllHandlingThreads() {
+    return this.getHandlingThreads();
   }
 
-  private void clearThreadsCache() {
-    HandlingThread t;
-    while ((t = threadsCache.pollFirst()) != null) {
-      t.setRunning(false);
-      t.wakeup();
-    }
+  /**
+   * @return the selectorThreadsAmount
+   */
+  public int getSelectorThreadsAmount() {
+    return selectorThreadsAmount;
   }
 
   /**
-   * @return the handlingThreads
+   * Amount of selector loops, each with own selector, dispatching thread and
+   * handling threads group. Minimum threads amount and scaling max are split
+   * between loops. Default is 1. Applied on start.
+   * @param selectorThreadsAmount the selectorThreadsAmount to set
    */
-  public HandlingThread[] getHandlingThreads() {
-    return handlingThreads;
+  public void setSelectorThreadsAmount(int selectorThreadsAmount) {
+    this.selectorThreadsAmount = selectorThreadsAmount;
   }
 
-  @Override
-  public AbstractHandlingThread[] getAllHandlingThreads() {
-    return handlingThreads;
+  /**
+   * @return the reusingPort
+   */
+  public boolean isReusingPort() {
+    return reusingPort;
   }
 
   /**
-   * @param handlingThreads the handlingThreads to set
+   * If each selector loop should accept connections on own server channel 
+   * bound with SO_REUSEPORT (kernel balances connections). When false, or 
+   * when JVM does not support the option, first loop accepts connections 
+   * and hands them over to loops in turn. Default is false.
+   * @param reusingPort true to accept on each selector loop
    */
-  public void setHandlingThreads(HandlingThread[] handlingThreads) {
-    this.handlingThreads = handlingThreads;
+  public void setReusingPort(boolean reusingPort) {
+    this.reusingPort = reusingPort;
   }
 }
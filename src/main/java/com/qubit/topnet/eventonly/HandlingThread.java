@@ -23,8 +23,10 @@ import com.qubit.topnet.AbstractHandlingThread;
 import com.qubit.topnet.DataHandler;
 import static com.qubit.topnet.DataHandler.bodyReadyHandler;
 import com.qubit.topnet.ServerBase;
+import com.qubit.topnet.WaitStrategy;
 import java.io.IOException;
 import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -40,17 +42,25 @@ public abstract class HandlingThread extends AbstractHandlingThread {
 
   // counter for closed idle connections
   static volatile long handlingClosedIdleCounter = 0;
-  private static int spinBeforeCount = 0;
+  private static WaitStrategy defaultWaitStrategy = WaitStrategy.BLOCKING;
 
+  /**
+   * Sets idle rounds threads spin before parking when server has no
+   * wait strategy set. Default is 0.
+   * @param value spins amount
+   */
   public static void setSpinCountBeforeSleep(int value) {
-    spinBeforeCount = value;
+    defaultWaitStrategy = value > 0 
+        ? WaitStrategy.spinning(value) : WaitStrategy.BLOCKING;
   }
   private boolean wakeSelector = false;
   private long defaultMaxMessageSize;
   private boolean running;
   protected volatile long jobsAdded = 0;
   protected volatile long jobsRemoved = 0;
-  private final Object sleepingLocker = new Object();
+  private int idleRounds = 0;
+  // selector of loop this thread belongs to
+  private Selector channelSelector;
 
   public HandlingThread(ServerBase server) {
     super(server);
@@ -73,6 +83,7 @@ public abstract class HandlingThread extends AbstractHandlingThread {
 
       this.trySomeWork();
     } finally {
+      AbstractHandlingThread.releaseThreadCaches();
       this.server.removeThread(this);
     }
   }
@@ -82,20 +93,21 @@ public abstract class HandlingThread extends AbstractHandlingThread {
       if (this.runSinglePass()) {
         break;
       } 
+      this.idleRounds = 0;
     }
 
     if (this.tryAgainInShortTime) {
       this.tryAgainInShortTime = false;
-      try {
-        synchronized (sleepingLocker) {
-          sleepingLocker.wait(1);
-        }
-      } catch (InterruptedException e) {
-      }
-    } else {
-      this.sleepNow();
+      this.idleNow(TRY_AGAIN_PARK_NANOS);
+    } else if (this.wakeSelector) {
+      this.wakeSelector = false;
+      this.getChannelSelector().wakeup();
+    } else if (this.isRunning()) { // stopping thread must not park
+      this.idleNow(0);
     }
   }
+  
+  private static final long TRY_AGAIN_PARK_NANOS = 1000 * 1000;
 
   /**
    * Returns false if not finished writing or
@@ -110,9 +122,17 @@ public abstract class HandlingThread extends AbstractHandlingThread {
   private int writeResponse(DataHandler dataHandler)
       throws IOException {
     int written = dataHandler.write();
+    
+    if (written == 0 && dataHandler.isOffloaded()) {
+      // nothing to do until handlers finish, see jobReady(...)
+      dataHandler.clearInterest();
+      return 0;
+    }
+    
     dataHandler.switchToReadingInterest();
     
-    if (dataHandler.isAgainTrayingInShortTime()) {
+    boolean waitingForData = dataHandler.isAgainTrayingInShortTime();
+    if (waitingForData) {
       dataHandler.setAgainTrayingInShortTime(false);
       this.tryAgainInShortTime = true;
     }
@@ -125,6 +145,8 @@ public abstract class HandlingThread extends AbstractHandlingThread {
         if (dataHandler.finishedOrWaitForMoreRequests(true)) {
           // finished
           return -1;
+        } else if (dataHandler.hasPipelinedBytes()) {
+          return 1; // next request is read already, process it now
         } else {
           this.wakeSelector = true;
           return 0; /// REGISTER KEY RATHER THAN THIS
@@ -132,7 +154,10 @@ public abstract class HandlingThread extends AbstractHandlingThread {
       }
     }
     
-    dataHandler.switchToWritingInterest();
+    if (!waitingForData) {
+      // socket is not ready, otherwise response data is not ready yet
+      dataHandler.switchToWritingInterest();
+    }
     if (written == 0 && !this.tryAgainInShortTime) {
       this.wakeSelector = true;
     }
@@ -194,38 +219,25 @@ public abstract class HandlingThread extends AbstractHandlingThread {
 
   public abstract boolean hasJobs();
 
-  protected void wakeup() {
-      if (this.getState() == State.WAITING || 
-          this.getState() == State.TIMED_WAITING) {
-        synchronized (sleepingLocker) {
-          sleepingLocker.notify();
-        }
-      }
-
-      if (spinBeforeCount == 0) {
-        spinBeforeCount = 1;
-      }
+  /**
+   * @param maxParkNanos max park time, 0 to park until woken up
+   */
+  private void idleNow(long maxParkNanos) {
+    WaitStrategy strategy = this.server.getWaitStrategy();
     
-  }
-  
-  private void sleepNow() {
-    try {
-      synchronized (sleepingLocker) {
-        if (this.wakeSelector) {
-          this.wakeSelector = false;
-          server.getChannelSelector().wakeup();
-        } else if (spinBeforeCount == 1) {
-          spinBeforeCount = 0;
-        } else {
-          sleepingLocker.wait();
-        }
-      }
-    } catch (InterruptedException e) {
+    if (strategy == null) {
+      strategy = defaultWaitStrategy;
+    }
+    
+    this.waiter.idle(strategy, this.idleRounds, maxParkNanos);
+    
+    if (this.idleRounds < Integer.MAX_VALUE) {
+      this.idleRounds++;
     }
   }
 
   protected boolean handleMaxIdle(DataHandler dataHandler, long maxIdle) {
-    if (dataHandler.owningThread == null) {
+    if (dataHandler.owningThread == null || dataHandler.isHandling()) {
       return false;
     }
 
@@ -259,6 +271,18 @@ public abstract class HandlingThread extends AbstractHandlingThread {
     return false;
   }
 
+  /**
+   * Tells if job processed last asked to be tried again in short time (its
+   * response data was not ready) and clears the flag.
+   * 
+   * @return true if job should be processed again soon
+   */
+  protected boolean pollTryAgainInShortTime() {
+    boolean tryAgain = this.tryAgainInShortTime;
+    this.tryAgainInShortTime = false;
+    return tryAgain;
+  }
+
   /**
    * Returns if no io was performed and waiting is desired.
    *
@@ -309,4 +333,19 @@ public abstract class HandlingThread extends AbstractHandlingThread {
   }
 
   public abstract int getLimit();
+
+  /**
+   * @return the channelSelector
+   */
+  public Selector getChannelSelector() {
+    return this.channelSelector != null 
+        ? this.channelSelector : this.server.getChannelSelector();
+  }
+
+  /**
+   * @param channelSelector the channelSelector to set
+   */
+  void setChannelSelector(Selector channelSelector) {
+    this.channelSelector = channelSelector;
+  }
 }
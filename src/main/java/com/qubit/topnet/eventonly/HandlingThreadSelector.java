@@ -0,0 +1,349 @@
+/*
+ * topNET
+ * Fast HTTP Server Solution.
+ * Copyright 2016, Qubit Group <www.qubit.com>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  
+ * If not, see <https://www.gnu.org/licenses/lgpl-3.0.en.html>
+ * 
+ * Author: Peter Fronc <peter.fronc@qubitdigital.com>
+ */
+package com.qubit.topnet.eventonly;
+
+import com.qubit.topnet.AbstractHandlingThread;
+import com.qubit.topnet.DataHandler;
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import static java.nio.channels.SelectionKey.OP_READ;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Handling thread owning its selector. Accepted connections are passed to
+ * thread directly and registered with its selector for read and write
+ * readiness, thread waits in select() instead of being woken up by 
+ * dispatching thread.
+ * 
+ * @author Peter Fronc <peter.fronc@qubitdigital.com>
+ */
+class HandlingThreadSelector extends HandlingThread {
+
+  private static final Logger log
+      = Logger.getLogger(HandlingThreadSelector.class.getName());
+
+  // how often idle connections are checked if no events come
+  private static final long IDLE_CHECK_PERIOD = 500;
+
+  private final Selector selector;
+  private final long maxIdle;
+  private final int limit;
+  private final Set<DataHandler> jobs = ConcurrentHashMap.newKeySet();
+  private final ConcurrentLinkedQueue<SocketChannel> newChannels = 
+      new ConcurrentLinkedQueue<>();
+  private final ArrayDeque<DataHandler> recycledJobs = new ArrayDeque<>();
+  // jobs which blocking handlers finished, passed by pool threads
+  private final ConcurrentLinkedQueue<DataHandler> readyJobs = 
+      new ConcurrentLinkedQueue<>();
+  // jobs to process in next pass even if not selected
+  private List<DataHandler> again = new ArrayList<>();
+  private List<DataHandler> processingAgain = new ArrayList<>();
+  private boolean againNow = false;
+  // set when thread finishes, jobs left are closed by pool threads
+  private volatile boolean closing = false;
+  private long lastIdleCheck = 0;
+
+  public HandlingThreadSelector(
+      EventTypeServer server,
+      int jobsSize,
+      int bufSize,
+      long defaultMaxMessageSize,
+      long maxIdle) throws IOException {
+    super(server);
+    this.selector = Selector.open();
+    this.limit = jobsSize;
+    this.setDefaultMaxMessageSize(defaultMaxMessageSize);
+    this.maxIdle = maxIdle;
+  }
+
+  @Override
+  public void run() {
+    try {
+      this.setRunning(true);
+      while (this.isRunning() || this.isDraining()) {
+        this.runSinglePass();
+      }
+    } finally {
+      this.closeAll();
+      AbstractHandlingThread.releaseThreadCaches();
+      this.server.removeThread(this);
+    }
+  }
+
+  // thread removed by scaling down finishes its connections first
+  private boolean isDraining() {
+    return this.hasJobs() 
+        && this.server.isStarted() 
+        && !this.server.isStoppingNow();
+  }
+
+  /**
+   * Passes accepted channel to this thread.
+   * 
+   * @param channel accepted channel
+   * @return false if thread has no free job slots
+   */
+  boolean addChannel(SocketChannel channel) {
+    if (!this.canAddJob()) {
+      return false;
+    }
+
+    jobsAdded++;
+    this.newChannels.add(channel);
+    this.selector.wakeup();
+
+    return true;
+  }
+
+  @Override
+  public boolean addJob(SelectionKey key, Long acceptTime) {
+    return false; // connections are passed with addChannel(...)
+  }
+
+  @Override
+  protected boolean runSinglePass() {
+    try {
+      this.registerNewChannels();
+      
+      DataHandler ready;
+      while ((ready = this.readyJobs.poll()) != null) {
+        this.again.add(ready);
+        this.againNow = true;
+      }
+
+      if (this.againNow) {
+        this.selector.selectNow();
+      } else if (!this.again.isEmpty()) {
+        this.selector.select(1);
+      } else {
+        this.selector.select(IDLE_CHECK_PERIOD);
+      }
+    } catch (IOException ex) {
+      log.log(Level.SEVERE, "Selector failed.", ex);
+      this.setRunning(false);
+      return false;
+    }
+
+    List<DataHandler> previous = this.again;
+    this.again = this.processingAgain;
+    this.processingAgain = previous;
+    this.againNow = false;
+
+    Set<SelectionKey> selectedKeys = this.selector.selectedKeys();
+
+    for (SelectionKey key : selectedKeys) {
+      this.handle((DataHandler) key.attachment());
+    }
+
+    selectedKeys.clear();
+
+    for (DataHandler job : previous) {
+      this.handle(job);
+    }
+
+    previous.clear();
+
+    long now = System.currentTimeMillis();
+    if (now - this.lastIdleCheck > IDLE_CHECK_PERIOD) {
+      this.lastIdleCheck = now;
+      for (DataHandler job : this.jobs) {
+        if (this.handleMaxIdle(job, this.maxIdle)) {
+          this.removeJob(job);
+        }
+      }
+    }
+
+    return false;
+  }
+
+  private void registerNewChannels() {
+    SocketChannel channel;
+
+    while ((channel = this.newChannels.poll()) != null) {
+      try {
+        SelectionKey key = channel.register(this.selector, OP_READ);
+        DataHandler job = this.getNewJob(key);
+        job.owningThread = this;
+        job.setAcceptAndRunHandleStarted(System.currentTimeMillis());
+        key.attach(job);
+        this.jobs.add(job);
+      } catch (IOException ex) {
+        EventTypeServer.close(channel);
+        jobsRemoved++;
+      }
+    }
+  }
+
+  private void handle(DataHandler job) {
+    if (job.owningThread != this) {
+      return; // closed already in this pass
+    }
+
+    boolean isFinished = true;
+
+    try {
+      if (this.handleMaxIdle(job, this.maxIdle)) {
+        return;
+      }
+
+      int processed = this.processJob(job);
+
+      if (processed >= 0) {
+        isFinished = false;
+        if (processed > 0) {
+          this.again.add(job);
+          this.againNow = true;
+        } else if (this.pollTryAgainInShortTime()) {
+          this.again.add(job);
+        }
+      }
+    } catch (IOException ioe) {
+      log.log(Level.INFO, "IOException during handling data - probably connection lost, enter FINE level for more details.");
+      log.log(Level.FINE, "Exception during handling data.", ioe);
+    } catch (Throwable es) {
+      log.log(Level.SEVERE, "Exception during handling data.", es);
+    } finally {
+      if (isFinished) {
+        this.removeJob(job);
+      }
+    }
+  }
+
+  private void removeJob(DataHandler job) {
+    if (job.isOffloaded()) {
+      // pool thread still uses job buffers, job is removed when handlers
+      // finish, see jobReady(...)
+      EventTypeServer.close(job.getSelectionKey(), job.getChannel());
+      return;
+    }
+    
+    if (!this.jobs.remove(job)) {
+      return; // closed already by other thread, see jobReady(...)
+    }
+    
+    try {
+      EventTypeServer.close(job.getSelectionKey(), job.getChannel());
+      job.connectionClosedHandler();
+    } finally {
+      job.owningThread = null;
+      jobsRemoved++;
+      if (this.server.isCachingBuffers() && !this.closing) {
+        this.recycledJobs.addLast(job);
+      }
+    }
+  }
+
+  private void closeAll() {
+    this.closing = true;
+    
+    SocketChannel channel;
+    while ((channel = this.newChannels.poll()) != null) {
+      EventTypeServer.close(channel);
+      jobsRemoved++;
+    }
+
+    for (DataHandler job : this.jobs) {
+      this.removeJob(job);
+    }
+    
+    this.closeReadyJobs();
+
+    try {
+      this.selector.close();
+    } catch (IOException ex) {
+      log.log(Level.SEVERE, null, ex);
+    }
+  }
+
+  private DataHandler getNewJob(SelectionKey key) {
+    DataHandler job = this.recycledJobs.pollFirst();
+    if (job != null) {
+      job.reset();
+      job.init(this.server, key);
+      return job;
+    } else {
+      return new DataHandler(this.server, key);
+    }
+  }
+
+  @Override
+  public Selector getChannelSelector() {
+    return this.selector;
+  }
+
+  @Override
+  public void wakeup() {
+    this.selector.wakeup();
+  }
+
+  @Override
+  public void jobReady(DataHandler job) {
+    this.readyJobs.add(job);
+    this.selector.wakeup();
+    
+    if (this.closing) { // thread does not process jobs anymore
+      this.closeReadyJobs();
+    }
+  }
+
+  private void closeReadyJobs() {
+    DataHandler job;
+    while ((job = this.readyJobs.poll()) != null) {
+      this.removeJob(job);
+    }
+  }
+
+  @Override
+  public synchronized void setRunning(boolean started) {
+    super.setRunning(started);
+    if (!started) {
+      this.selector.wakeup();
+    }
+  }
+
+  @Override
+  public boolean hasJobs() {
+    return this.jobsLeft() > 0;
+  }
+
+  @Override
+  boolean canAddJob() {
+    return this.limit < 0 || this.jobsLeft() < this.limit;
+  }
+
+  @Override
+  public List<DataHandler> getValidJobs() {
+    return new ArrayList<>(this.jobs);
+  }
+
+  @Override
+  public int getLimit() {
+    return this.limit;
+  }
+}
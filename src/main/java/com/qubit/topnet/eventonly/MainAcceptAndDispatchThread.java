@@ -19,6 +19,7 @@
  */
 package com.qubit.topnet.eventonly;
 
+import com.qubit.topnet.PoolType;
 import static com.qubit.topnet.eventonly.HandlingThread.handlingClosedIdleCounter;
 import com.qubit.topnet.eventonly.SelectionKeyChain.SelectionKeyLink;
 import java.io.IOException;
@@ -58,20 +59,24 @@ class MainAcceptAndDispatchThread extends Thread {
 
   private final Selector channelSelector;
   private final EventTypeServer server;
+  private final EventLoop eventLoop;
   private boolean running;
   private long timeSinceCouldntAddJob = 0;
   private long noSlotsAvailableTimeout = 20;
   private long lastdownScaleTried = 0;
   private long scalingDownTryPeriodMS = 5000;
   private boolean autoScalingDown = true;
+  private final boolean onlyAccepting;
 
   MainAcceptAndDispatchThread(EventTypeServer server,
-                              Selector channelSelector,
+                              EventLoop eventLoop,
                               long maxIdleAfterAccept)
       throws IOException {
     this.server = server;
+    this.eventLoop = eventLoop;
     this.maxIdleAfterAccept = maxIdleAfterAccept;
-    this.channelSelector = channelSelector;
+    this.channelSelector = eventLoop.getChannelSelector();
+    this.onlyAccepting = server.getPoolType() == PoolType.SELECTOR;
     this.unprocessedSelectionKeyChain = new SelectionKeyChain();
   }
 
@@ -94,11 +99,20 @@ class MainAcceptAndDispatchThread extends Thread {
         log.log(Level.SEVERE, null, ex);
       }
 
+      SocketChannel handedOver;
+      while ((handedOver = this.eventLoop.pollHandedOver()) != null) {
+        try {
+          this.registerAccepted(handedOver);
+        } catch (IOException ex) {
+          EventTypeServer.close(handedOver);
+        }
+      }
+
       Set<SelectionKey> selectionKeys = getChannelSelector().selectedKeys();
       
       if (selectionKeys.isEmpty()) continue;
       
-      HandlingThread[] handlingThreads = this.server.getHandlingThreads();
+      HandlingThread[] handlingThreads = this.eventLoop.getHandlingThreads();
 
       for (SelectionKey key : selectionKeys) {
 
@@ -106,25 +120,14 @@ class MainAcceptAndDispatchThread extends Thread {
           if (key.isValid()) {
             if (key.isAcceptable()) {
               SocketChannel channel;
-              if ((channel = this.server.accept()) != null) {
+              if ((channel = this.eventLoop.accept()) != null) {
                 acceptedCnt++;
-                if (this.maxIdleAfterAccept > 0) {
-                  SelectionKey newKey = 
-                    channel.register(getChannelSelector(), OP_READ);
-                  this.checkOutdatedKeys();
-                  
-                  SelectionKeyLink skl = 
-                      unprocessedSelectionKeyChain.new SelectionKeyLink(
-                          newKey,
-                          System.currentTimeMillis());
-                  
-                  newKey.attach(skl);
-                  unprocessedSelectionKeyChain.add(skl);
+                EventLoop target = 
+                    this.server.getEventLoopForAccepted(this.eventLoop);
+                if (target == this.eventLoop) {
+                  this.registerAccepted(channel);
                 } else {
-                  channel.register(
-                      getChannelSelector(),
-                      OP_READ,
-                      System.currentTimeMillis());
+                  target.handOver(channel);
                 }
               }
             } else {
@@ -138,8 +141,8 @@ class MainAcceptAndDispatchThread extends Thread {
                   } else if (System.currentTimeMillis()
                       > (this.timeSinceCouldntAddJob + this.noSlotsAvailableTimeout)) {
                     this.timeSinceCouldntAddJob = 0;
-                    if (this.server.addThread()) {
-                      handlingThreads = this.server.getHandlingThreads();
+                    if (this.eventLoop.addThread()) {
+                      handlingThreads = this.eventLoop.getHandlingThreads();
                       this.tryAddingJob(key, handlingThreads);
                     }
                   }
@@ -157,9 +160,11 @@ class MainAcceptAndDispatchThread extends Thread {
         }
       }
 
-      for (HandlingThread handlingThread : handlingThreads) {
-        if (handlingThread != null && handlingThread.hasJobs()) {
-          handlingThread.wakeup();
+      if (!this.onlyAccepting) {
+        for (HandlingThread handlingThread : handlingThreads) {
+          if (handlingThread != null && handlingThread.hasJobs()) {
+            handlingThread.wakeup();
+          }
         }
       }
 
@@ -174,6 +179,11 @@ class MainAcceptAndDispatchThread extends Thread {
           log.log(Level.INFO,
                   "Max idle closed for ACCEPT:{0} and for CONNECTION:{1}",
                    new Object[]{closedIdleCounter, handlingClosedIdleCounter});
+          if (this.onlyAccepting) {
+            log.log(Level.INFO,
+                    "Closed connections with all threads full: {0}",
+                    rejectedCounter);
+          }
           lastMeassured = System.currentTimeMillis();
       }
     }
@@ -185,6 +195,65 @@ class MainAcceptAndDispatchThread extends Thread {
     }
   }
 
+  private void registerAccepted(SocketChannel channel) throws IOException {
+    if (this.onlyAccepting) {
+      this.passToHandlingThread(channel);
+    } else if (this.maxIdleAfterAccept > 0) {
+      SelectionKey newKey = 
+        channel.register(getChannelSelector(), OP_READ);
+      this.checkOutdatedKeys();
+
+      SelectionKeyLink skl = 
+          unprocessedSelectionKeyChain.new SelectionKeyLink(
+              newKey,
+              System.currentTimeMillis());
+
+      newKey.attach(skl);
+      unprocessedSelectionKeyChain.add(skl);
+    } else {
+      channel.register(
+          getChannelSelector(),
+          OP_READ,
+          System.currentTimeMillis());
+    }
+  }
+
+  private void passToHandlingThread(SocketChannel channel) {
+    HandlingThread[] handlingThreads = this.eventLoop.getHandlingThreads();
+
+    if (this.passToHandlingThread(channel, handlingThreads)) {
+      return;
+    }
+
+    if (this.eventLoop.addThread()) {
+      handlingThreads = this.eventLoop.getHandlingThreads();
+      if (this.passToHandlingThread(channel, handlingThreads)) {
+        return;
+      }
+    }
+
+    // all threads are full
+    rejectedCounter++;
+    EventTypeServer.close(channel);
+  }
+
+  private boolean passToHandlingThread(SocketChannel channel,
+                                       HandlingThread[] handlingThreads) {
+    int len = handlingThreads.length;
+    for (int c = 0; c < len; c++) {
+      if (currentThread >= len) {
+        currentThread = 0;
+      }
+      HandlingThread handlingThread = handlingThreads[currentThread];
+      currentThread = (currentThread + 1) % len;
+      if (handlingThread != null &&
+          ((HandlingThreadSelector) handlingThread).addChannel(channel)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   private boolean tryAddingJob(SelectionKey key,
                                HandlingThread[] handlingThreads) {
     
@@ -224,6 +293,8 @@ class MainAcceptAndDispatchThread extends Thread {
 
   // counter fpor closed idle requests
   private long closedIdleCounter = 0;
+  // counter for connections closed as no thread could take them
+  private long rejectedCounter = 0;
 
   /**
    * @return the running
@@ -284,7 +355,7 @@ class MainAcceptAndDispatchThread extends Thread {
 
   private void scaleDownIfCan() {
     if (System.currentTimeMillis() > (lastdownScaleTried + getScalingDownTryPeriodMS())) {
-      if (this.server.cleanupThreadsExcess() > 0) {
+      if (this.eventLoop.cleanupThreadsExcess() > 0) {
         currentThread = 0;
       }
       lastdownScaleTried = System.currentTimeMillis();
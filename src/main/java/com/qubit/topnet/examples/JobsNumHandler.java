@@ -52,7 +52,10 @@ public class JobsNumHandler extends Handler {
         response.print("  [" + (count++) + "] jobs: " +
             handlingThread.getValidJobs().size() + 
             " [TA:" + handlingThread.getJobsAdded() + 
-            ", TR: " + handlingThread.getJobsRemoved()
+            ", TR: " + handlingThread.getJobsRemoved() +
+            ", spins: " + handlingThread.getWaiter().getSpins() +
+            ", yields: " + handlingThread.getWaiter().getYields() +
+            ", parks: " + handlingThread.getWaiter().getParks()
             + "] \n");
       }
       response.print("\n");
@@ -41,4 +41,9 @@ public class SleepyHandler extends Handler {
     return true;
   }
 
+  @Override
+  public boolean isBlocking() {
+    return true;
+  }
+
 }
@@ -0,0 +1,167 @@
+/*
+ * topNET
+ * Fast HTTP Server Solution.
+ * Copyright 2016, Qubit Group <www.qubit.com>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  
+ * If not, see <https://www.gnu.org/licenses/lgpl-3.0.en.html>
+ * 
+ * Author: Peter Fronc <peter.fronc@qubitdigital.com>
+ */
+package com.qubit.topnet.plugins.filesserve;
+
+import java.util.Arrays;
+
+/**
+ * Parser of Range request header in bytes unit (RFC 7233).
+ * 
+ * @author Peter Fronc <peter.fronc@qubitdigital.com>
+ */
+public final class ByteRanges {
+  
+  private static final long[] NONE = new long[0];
+
+  private ByteRanges() {}
+  
+  /**
+   * Parses ranges and fits them into resource size. Ranges are sorted and
+   * overlapping or adjacent ones are merged.
+   * 
+   * @param header Range header value
+   * @param size resource size
+   * @param maxRanges max ranges accepted in header
+   * @return pairs of first and last (inclusive) byte positions, empty array
+   *  if none of ranges is satisfiable or null if header should be ignored -
+   *  it is invalid, not in bytes unit or has too many ranges
+   */
+  public static long[] parse(String header, long size, int maxRanges) {
+    header = header.trim();
+    
+    if (!header.regionMatches(true, 0, "bytes=", 0, 6)) {
+      return null;
+    }
+    
+    String[] specs = header.substring(6).split(",");
+    
+    if (specs.length > maxRanges) {
+      return null;
+    }
+    
+    long[] ranges = new long[specs.length * 2];
+    int amount = 0;
+    
+    for (String spec : specs) {
+      spec = spec.trim();
+      
+      if (spec.isEmpty()) {
+        continue;
+      }
+      
+      int dash = spec.indexOf('-');
+      
+      if (dash == -1) {
+        return null;
+      }
+      
+      long first = parsePosition(spec.substring(0, dash).trim());
+      long last = parsePosition(spec.substring(dash + 1).trim());
+      
+      if (first == -2 || last == -2) {
+        return null;
+      }
+      
+      if (first == -1) { // suffix range, last bytes
+        if (last == -1) {
+          return null;
+        }
+        
+        first = Math.max(0, size - last);
+        last = size - 1;
+        
+        if (first > last) {
+          continue; // empty suffix or empty resource
+        }
+      } else {
+        if (last != -1 && last < first) {
+          return null;
+        }
+        
+        if (first >= size) {
+          continue; // not satisfiable
+        }
+        
+        last = last == -1 ? size - 1 : Math.min(last, size - 1);
+      }
+      
+      ranges[amount++] = first;
+      ranges[amount++] = last;
+    }
+    
+    if (amount == 0) {
+      return NONE;
+    }
+    
+    return coalesce(ranges, amount);
+  }
+  
+  private static long[] coalesce(long[] ranges, int amount) {
+    int count = amount / 2;
+    long[][] pairs = new long[count][];
+    
+    for (int i = 0; i < count; i++) {
+      pairs[i] = new long[]{ranges[i * 2], ranges[i * 2 + 1]};
+    }
+    
+    Arrays.sort(pairs, (a, b) -> Long.compare(a[0], b[0]));
+    
+    long[] merged = new long[amount];
+    int at = 0;
+    
+    for (long[] pair : pairs) {
+      if (at > 0 && pair[0] <= merged[at - 1] + 1) {
+        merged[at - 1] = Math.max(merged[at - 1], pair[1]);
+      } else {
+        merged[at++] = pair[0];
+        merged[at++] = pair[1];
+      }
+    }
+    
+    return at == merged.length ? merged : Arrays.copyOf(merged, at);
+  }
+  
+  /**
+   * @return position, -1 if empty, -2 if not a number
+   */
+  private static long parsePosition(String value) {
+    if (value.isEmpty()) {
+      return -1;
+    }
+    
+    if (value.length() > 18) {
+      return -2;
+    }
+    
+    long position = 0;
+    
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      
+      if (c < '0' || c > '9') {
+        return -2;
+      }
+      
+      position = position * 10 + (c - '0');
+    }
+    
+    return position;
+  }
+}
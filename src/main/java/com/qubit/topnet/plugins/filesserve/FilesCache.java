@@ -0,0 +1,566 @@
+/*
+ * topNET
+ * Fast HTTP Server Solution.
+ * Copyright 2016, Qubit Group <www.qubit.com>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  
+ * If not, see <https://www.gnu.org/licenses/lgpl-3.0.en.html>
+ * 
+ * Author: Peter Fronc <peter.fronc@qubitdigital.com>
+ */
+package com.qubit.topnet.plugins.filesserve;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Cache of files served by {@link FilesDownloadHandler}. It keeps resolved
+ * request paths with file attributes and bytes of small, often requested 
+ * files in read-only direct buffers, so hot files are served from memory
+ * without opening them.
+ * 
+ * Cache is safe to use by many threads and is bounded by amount of entries
+ * and by total size of cached bytes. Entries are evicted with CLOCK (second
+ * chance) policy approximating LRU. File bytes are cached only when file is
+ * requested again, so paths requested once (crawlers) don't push out hot 
+ * files. File attributes are checked again not more often than revalidation
+ * period, modified files are reloaded and removed files stop being served.
+ * 
+ * @author Peter Fronc <peter.fronc@qubitdigital.com>
+ */
+public class FilesCache {
+  
+  static final Logger log = Logger.getLogger(FilesCache.class.getName());
+  
+  static final DateTimeFormatter HTTP_DATE = DateTimeFormatter
+      .ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US)
+      .withZone(ZoneOffset.UTC);
+  
+  private int maxEntries = 10 * 1024;
+  private long maxCachedBytes = 64 * 1024 * 1024;
+  private long maxCachedFileSize = 256 * 1024;
+  private long revalidationPeriod = 1000;
+  private int minHitsToCacheBytes = 2;
+  
+  private final ConcurrentHashMap<String, Entry> entries = 
+      new ConcurrentHashMap<>();
+  private final ConcurrentLinkedQueue<Entry> entriesClock =
+      new ConcurrentLinkedQueue<>();
+  private final ConcurrentLinkedQueue<Entry> contentClock =
+      new ConcurrentLinkedQueue<>();
+  // queues size() walks all nodes, clocks sizes are counted aside
+  private final AtomicInteger entriesClockSize = new AtomicInteger(0);
+  private final AtomicInteger contentClockSize = new AtomicInteger(0);
+  private final AtomicLong cachedBytes = new AtomicLong(0);
+  
+  private final AtomicLong hits = new AtomicLong(0);
+  private final AtomicLong misses = new AtomicLong(0);
+  
+  /**
+   * File attributes as found at check time.
+   */
+  public static class Stat {
+    private final boolean exists;
+    private final boolean directory;
+    private final long size;
+    private final long lastModified;
+    private final long checkedAt;
+    private String etag;
+    private String httpLastModified;
+
+    Stat(boolean exists, boolean directory, long size, long lastModified,
+        long checkedAt) {
+      this.exists = exists;
+      this.directory = directory;
+      this.size = size;
+      this.lastModified = lastModified;
+      this.checkedAt = checkedAt;
+    }
+
+    /**
+     * @return the exists
+     */
+    public boolean exists() {
+      return exists;
+    }
+
+    /**
+     * @return the directory
+     */
+    public boolean isDirectory() {
+      return directory;
+    }
+
+    /**
+     * @return the size
+     */
+    public long getSize() {
+      return size;
+    }
+
+    /**
+     * @return the lastModified, milliseconds
+     */
+    public long getLastModified() {
+      return lastModified;
+    }
+    
+    /**
+     * Weak entity tag made of size and modification time.
+     * 
+     * @return the etag
+     */
+    public String getETag() {
+      if (this.etag == null) {
+        this.etag = "W/\"" + Long.toHexString(this.size) + "-" 
+            + Long.toHexString(this.lastModified) + "\"";
+      }
+      return this.etag;
+    }
+
+    /**
+     * @return modification time formatted for Last-Modified header
+     */
+    public String getHttpLastModified() {
+      if (this.httpLastModified == null) {
+        this.httpLastModified = 
+            HTTP_DATE.format(Instant.ofEpochMilli(this.lastModified));
+      }
+      return this.httpLastModified;
+    }
+    
+    boolean sameFileVersion(Stat other) {
+      return other != null 
+          && this.exists == other.exists
+          && this.size == other.size
+          && this.lastModified == other.lastModified;
+    }
+    
+    boolean checkedAfter(Stat other) {
+      return this.checkedAt > other.checkedAt;
+    }
+  }
+  
+  /**
+   * Cached request path.
+   */
+  public static class Entry {
+    private final String path;
+    private final File file;
+    private final boolean forbidden;
+    private volatile Stat stat;
+    private volatile ByteBuffer content;
+    private volatile Stat contentStat;
+    private final AtomicInteger hits = new AtomicInteger(0);
+    // second chance is earned by next request, not by being added
+    private volatile boolean used = false;
+    private volatile boolean contentUsed = false;
+    private boolean inContentClock = false;
+
+    Entry(String path, File file, boolean forbidden) {
+      this.path = path;
+      this.file = file;
+      this.forbidden = forbidden;
+    }
+
+    /**
+     * @return the canonical file
+     */
+    public File getFile() {
+      return file;
+    }
+
+    /**
+     * @return true if file is outside of served directory
+     */
+    public boolean isForbidden() {
+      return forbidden;
+    }
+
+    /**
+     * @return requests for path since it was cached
+     */
+    public int getHits() {
+      return hits.get();
+    }
+
+    /**
+     * @return the stat
+     */
+    public Stat getStat() {
+      return stat;
+    }
+
+    /**
+     * Returns file bytes if they are cached and match current stat.
+     * 
+     * @return read-only buffer with file bytes, duplicate it to read, null
+     *  if not cached
+     */
+    public ByteBuffer getContent() {
+      ByteBuffer bytes = this.content;
+      
+      if (bytes != null && this.stat.sameFileVersion(this.contentStat)) {
+        this.contentUsed = true;
+        return bytes;
+      }
+      
+      return null;
+    }
+  }
+  
+  /**
+   * Returns entry for request path, with file attributes not older than
+   * revalidation period. File bytes get cached on the way if file is small
+   * and requested often enough.
+   * 
+   * @param path request path, used as key
+   * @param file file requested
+   * @param forbidden true if file must not be served
+   * @return entry
+   */
+  public Entry get(String path, File file, boolean forbidden) {
+    Entry entry = this.entries.get(path);
+    
+    if (entry == null) {
+      entry = this.add(new Entry(path, file, forbidden));
+    }
+    
+    return this.touch(entry);
+  }
+  
+  /**
+   * Returns entry for request path if it is cached, file is resolved by
+   * caller otherwise.
+   * 
+   * @param path request path
+   * @return entry or null if not cached
+   */
+  public Entry get(String path) {
+    Entry entry = this.entries.get(path);
+    return entry == null ? null : this.touch(entry);
+  }
+  
+  private Entry add(Entry entry) {
+    Entry existing = this.entries.putIfAbsent(entry.path, entry);
+    
+    if (existing != null) {
+      return existing;
+    }
+    
+    this.entriesClock.offer(entry);
+    this.entriesClockSize.incrementAndGet();
+    
+    if (this.entries.size() > this.maxEntries) {
+      this.evictEntries();
+    }
+    
+    return entry;
+  }
+  
+  private Entry touch(Entry entry) {
+    int entryHits = entry.hits.updateAndGet(
+        (int current) -> current < Integer.MAX_VALUE ? current + 1 : current);
+    
+    if (entryHits > 1) {
+      entry.used = true;
+    }
+    
+    if (entry.forbidden) {
+      return entry;
+    }
+    
+    long now = System.currentTimeMillis();
+    Stat stat = entry.stat;
+    
+    if (stat == null || now - stat.checkedAt >= this.revalidationPeriod) {
+      stat = this.stat(entry.file, now);
+      entry.stat = stat;
+    }
+    
+    if (entry.content != null) {
+      if (!stat.sameFileVersion(entry.contentStat)) {
+        this.dropContent(entry); // changed or removed
+      } else {
+        this.hits.incrementAndGet();
+        return entry;
+      }
+    }
+    
+    if (stat.exists && !stat.directory
+        && stat.size <= this.maxCachedFileSize
+        && entryHits >= this.minHitsToCacheBytes) {
+      this.loadContent(entry, stat);
+    }
+    
+    if (entry.content == null) {
+      this.misses.incrementAndGet();
+    }
+    
+    return entry;
+  }
+  
+  private Stat stat(File file, long now) {
+    try {
+      BasicFileAttributes attributes = Files.readAttributes(
+          file.toPath(), BasicFileAttributes.class);
+      
+      return new Stat(
+          true,
+          attributes.isDirectory(),
+          attributes.size(),
+          attributes.lastModifiedTime().toMillis(),
+          now);
+    } catch (NoSuchFileException ex) {
+      return new Stat(false, false, -1, -1, now);
+    } catch (IOException ex) {
+      log.log(Level.FINE, null, ex);
+      return new Stat(false, false, -1, -1, now);
+    }
+  }
+  
+  private void loadContent(Entry entry, Stat stat) {
+    if (stat.size > this.maxCachedBytes) {
+      return;
+    }
+    
+    ByteBuffer bytes = ByteBuffer.allocateDirect((int) stat.size);
+    
+    try (FileChannel channel = FileChannel.open(
+        entry.file.toPath(), StandardOpenOption.READ)) {
+      while (bytes.hasRemaining() && channel.read(bytes) != -1) {}
+      
+      if (bytes.hasRemaining() || channel.size() != stat.size) {
+        return; // file changed while reading
+      }
+    } catch (IOException ex) {
+      log.log(Level.FINE, null, ex);
+      return;
+    }
+    
+    bytes.flip();
+    
+    boolean queue;
+    
+    synchronized (entry) {
+      if (entry.content != null) {
+        return; // other thread was first
+      }
+      
+      entry.contentStat = stat;
+      entry.content = bytes.asReadOnlyBuffer();
+      entry.contentUsed = false;
+      queue = !entry.inContentClock;
+      entry.inContentClock = true;
+    }
+    
+    if (queue) {
+      this.contentClock.offer(entry);
+      this.contentClockSize.incrementAndGet();
+    }
+    
+    if (this.cachedBytes.addAndGet(stat.size) > this.maxCachedBytes) {
+      this.evictContent();
+    }
+  }
+  
+  private void dropContent(Entry entry) {
+    synchronized (entry) {
+      if (entry.content != null) {
+        this.cachedBytes.addAndGet(-entry.content.capacity());
+        entry.content = null;
+        entry.contentStat = null;
+      }
+    }
+  }
+  
+  private void evictEntries() {
+    // after one round all are marked as not used, two rounds are enough
+    int tries = 2 * this.entriesClockSize.get() + 1;
+    Entry entry;
+    
+    while (this.entries.size() > this.maxEntries && tries-- > 0
+        && (entry = this.entriesClock.poll()) != null) {
+      if (entry.used) {
+        entry.used = false;
+        this.entriesClock.offer(entry);
+      } else {
+        this.entriesClockSize.decrementAndGet();
+        this.entries.remove(entry.path, entry);
+        this.dropContent(entry);
+      }
+    }
+  }
+  
+  private void evictContent() {
+    int tries = 2 * this.contentClockSize.get() + 1;
+    Entry entry;
+    
+    while (this.cachedBytes.get() > this.maxCachedBytes && tries-- > 0
+        && (entry = this.contentClock.poll()) != null) {
+      synchronized (entry) {
+        if (entry.content == null) {
+          entry.inContentClock = false;
+          this.contentClockSize.decrementAndGet();
+          continue; // dropped already
+        }
+      }
+      
+      if (entry.contentUsed) {
+        entry.contentUsed = false;
+        this.contentClock.offer(entry);
+      } else {
+        synchronized (entry) { // reloaded content must be queued again
+          entry.inContentClock = false;
+          this.dropContent(entry);
+        }
+        this.contentClockSize.decrementAndGet();
+      }
+    }
+  }
+  
+  /**
+   * Removes all entries.
+   */
+  public void clear() {
+    for (Entry entry : this.entries.values()) {
+      this.dropContent(entry);
+    }
+    this.entries.clear();
+    this.entriesClock.clear();
+    this.entriesClockSize.set(0);
+    this.contentClock.clear();
+    this.contentClockSize.set(0);
+  }
+  
+  /**
+   * @return amount of cached paths
+   */
+  public int size() {
+    return this.entries.size();
+  }
+  
+  /**
+   * @return the cachedBytes
+   */
+  public long getCachedBytes() {
+    return this.cachedBytes.get();
+  }
+
+  /**
+   * @return requests served from cached bytes
+   */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * @return requests not served from cached bytes
+   */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * @return the maxEntries
+   */
+  public int getMaxEntries() {
+    return maxEntries;
+  }
+
+  /**
+   * Max amount of paths remembered. Default is 10240.
+   * @param maxEntries the maxEntries to set
+   */
+  public void setMaxEntries(int maxEntries) {
+    this.maxEntries = maxEntries;
+  }
+
+  /**
+   * @return the maxCachedBytes
+   */
+  public long getMaxCachedBytes() {
+    return maxCachedBytes;
+  }
+
+  /**
+   * Max total size of files bytes kept in memory. Default is 64MB, 0 
+   * disables caching bytes.
+   * @param maxCachedBytes the maxCachedBytes to set
+   */
+  public void setMaxCachedBytes(long maxCachedBytes) {
+    this.maxCachedBytes = maxCachedBytes;
+  }
+
+  /**
+   * @return the maxCachedFileSize
+   */
+  public long getMaxCachedFileSize() {
+    return maxCachedFileSize;
+  }
+
+  /**
+   * Files larger than this are always read from disk. Default is 256KB.
+   * @param maxCachedFileSize the maxCachedFileSize to set
+   */
+  public void setMaxCachedFileSize(long maxCachedFileSize) {
+    this.maxCachedFileSize = maxCachedFileSize;
+  }
+
+  /**
+   * @return the revalidationPeriod
+   */
+  public long getRevalidationPeriod() {
+    return revalidationPeriod;
+  }
+
+  /**
+   * Milliseconds file attributes are trusted before checking them again.
+   * Default is 1000, 0 checks on every request.
+   * @param revalidationPeriod the revalidationPeriod to set
+   */
+  public void setRevalidationPeriod(long revalidationPeriod) {
+    this.revalidationPeriod = revalidationPeriod;
+  }
+
+  /**
+   * @return the minHitsToCacheBytes
+   */
+  public int getMinHitsToCacheBytes() {
+    return minHitsToCacheBytes;
+  }
+
+  /**
+   * How many times path must be requested before file bytes are cached.
+   * Default is 2.
+   * @param minHitsToCacheBytes the minHitsToCacheBytes to set
+   */
+  public void setMinHitsToCacheBytes(int minHitsToCacheBytes) {
+    this.minHitsToCacheBytes = minHitsToCacheBytes;
+  }
+}
@@ -1,10 +1,11 @@
 package com.qubit.topnet.plugins.filesserve;
 
+import com.qubit.topnet.ByteBufferInputStream;
 import com.qubit.topnet.Handler;
+import com.qubit.topnet.HeaderNames;
 import com.qubit.topnet.Request;
 import com.qubit.topnet.Response;
 import com.qubit.topnet.exceptions.ResponseBuildingStartedException;
-import com.qubit.topnet.utils.Pair;
 
 import java.io.File;
 import java.io.IOException;
@@ -12,9 +13,16 @@ import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.activation.MimetypesFileTypeMap;
@@ -32,15 +40,20 @@ public class FilesDownloadHandler extends Handler {
   
   private boolean chrootMode = false;
   private boolean noBrowsing = false;
+  private int maxRanges = 16;
 //  private boolean allowSylinks = true;
 
   static public final int 
       OK = HttpURLConnection.HTTP_OK,
       FORBIDDEN = HttpURLConnection.HTTP_FORBIDDEN,
-      NOT_FOUND = HttpURLConnection.HTTP_NOT_FOUND;
+      NOT_FOUND = HttpURLConnection.HTTP_NOT_FOUND,
+      NOT_MODIFIED = HttpURLConnection.HTTP_NOT_MODIFIED,
+      PARTIAL_CONTENT = HttpURLConnection.HTTP_PARTIAL,
+      RANGE_NOT_SATISFIABLE = 416;
   
   final private String NO_MIME = "";
-  private final Map<String, String> MIME_CACHE =  new HashMap<>();
+  // by extension, bounded by file extensions existing in directory
+  private final Map<String, String> MIME_CACHE = new ConcurrentHashMap<>();
   private static Properties MIMES;
   
   static {
@@ -78,7 +91,15 @@ public class FilesDownloadHandler extends Handler {
     return path.startsWith(prefix);
   }
 
-  private Map<String, Pair<File, Integer>> CACHE = new HashMap<>();
+  @Override
+  public String getPathPrefix() {
+    return prefix;
+  }
+
+  private final FilesCache filesCache = new FilesCache();
+  private final MappedFiles mappedFiles = new MappedFiles();
+  // {path prefix, value} pairs, longest prefix first
+  private volatile String[][] cacheControls = new String[0][];
   
   @Override
   public boolean process(Request request, Response response)
@@ -88,18 +109,13 @@ public class FilesDownloadHandler extends Handler {
     
     path = URLDecoder.decode(path, "UTF-8");
     
-    Pair<File, Integer> destCache;
-
     if (path.startsWith(prefix)) {
       
-      destCache = CACHE.get(path);
+      FilesCache.Entry entry = this.filesCache.get(path);
       
-      int code;
-      File requestedFile;
-      
-      if (destCache == null) {
+      if (entry == null) {
         boolean secure = true;
-        requestedFile = new File(
+        File requestedFile = new File(
             directory,
             path.substring(prefix.length())).getCanonicalFile();
         
@@ -114,32 +130,24 @@ public class FilesDownloadHandler extends Handler {
           }
         }
         
-        if (secure) {
-          code = requestedFile.exists() ? OK : NOT_FOUND;
-        } else {
-          code = FORBIDDEN;
-        }
-        
-        destCache = new Pair<>(requestedFile, code);
-        CACHE.put(path, destCache);
-      } else {
-        requestedFile = destCache.getLeft();
-        code = destCache.getRight();
+        entry = this.filesCache.get(path, requestedFile, !secure);
       }
 
       // security check
-      if (code == FORBIDDEN) {
+      if (entry.isForbidden()) {
         response.setErrorResponse(FORBIDDEN, "Forbidden.");
         return true; // go back to chain
-      } else if (code == NOT_FOUND) {
+      } else if (!entry.getStat().exists()) {
         response.setErrorResponse(NOT_FOUND, "Not found.");
         return true; // go back to chain
       }
       
-      File[] listing = requestedFile.listFiles();
+      File requestedFile = entry.getFile();
+      File[] listing = entry.getStat().isDirectory() 
+          ? requestedFile.listFiles() : null;
 
       if (listing == null) {
-        replyWithFile(requestedFile, response);
+        replyWithFile(request, path, entry, response);
       } else {
         if (isNoBrowsing()) {
           response.setErrorResponse(FORBIDDEN, "Forbidden.");
@@ -163,18 +171,22 @@ public class FilesDownloadHandler extends Handler {
       throws IOException {
 
     String name = dest.getName();
-    String mime = MIME_CACHE.get(name);
+    String extension = name.substring(name.lastIndexOf(".") + 1)
+        .toLowerCase();
+    String mime = MIME_CACHE.get(extension);
     
     if (mime == null) {
-      String extension = name.substring(name.lastIndexOf(".") + 1);
-      
-      mime = MIMES.getProperty(extension.toLowerCase());
+      mime = MIMES.getProperty(extension);
       
       if (mime == null) {
         mime = MimetypesFileTypeMap.getDefaultFileTypeMap().getContentType(dest);
       }
       
-      MIME_CACHE.put(name, mime == null ? NO_MIME : mime);
+      if (mime == null) {
+        mime = NO_MIME;
+      }
+      
+      MIME_CACHE.put(extension, mime);
     }
     
     if (mime == null || mime == NO_MIME) { // == correct
@@ -234,24 +246,309 @@ public class FilesDownloadHandler extends Handler {
         return buf.toString();
   }
 
-  private void replyWithFile(File requestedFile, Response response) 
+  private void replyWithFile(
+      Request request, String path, FilesCache.Entry entry, Response response) 
       throws ResponseBuildingStartedException, IOException {
-    if (requestedFile.canRead()) {
-      response.setContentLength(requestedFile.length());
-
+    File requestedFile = entry.getFile();
+    
+    if (!requestedFile.canRead()) {
+      response.setErrorResponse(FORBIDDEN, "Forbidden.");
+      return;
+    }
+    
+    FilesCache.Stat stat = entry.getStat();
+    String cacheControl = this.getCacheControl(path);
+    
+    response.addHeader("ETag", stat.getETag());
+    response.addHeader("Last-Modified", stat.getHttpLastModified());
+    if (cacheControl != null) {
+      response.addHeader("Cache-Control", cacheControl);
+    }
+    
+    if (isNotModified(request, stat)) {
+      response.setHttpCode(NOT_MODIFIED);
+      // same headers as full response would have, caches update them
       setApplicationTypeFromFile(response, requestedFile);
+      return;
+    }
+    
+    response.addHeader("Accept-Ranges", "bytes");
+    setApplicationTypeFromFile(response, requestedFile);
+    
+    ByteBuffer content = entry.getContent();
+    long size = content != null ? content.remaining() : stat.getSize();
+    long[] ranges = getRanges(request, stat, size);
+    
+    if (ranges != null && ranges.length == 0) {
+      response.setHttpCode(RANGE_NOT_SATISFIABLE);
+      response.addHeader("Content-Range", "bytes */" + size);
+      response.setContentLength(0);
+      return;
+    }
+    
+    // small hot files come from files cache, large hot ones from mapping
+    // and others are sent with transferTo
+    MappedFiles.Mapping mapping = 
+        content == null ? this.acquireMapping(entry) : null;
+    
+    if (ranges != null && ranges.length > 2) {
+      String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong());
+      MultipartRangesStream parts = new MultipartRangesStream(
+          content == null && mapping == null 
+              ? openChannel(requestedFile) : null,
+          mapping != null ? mapping.getContent() : content,
+          mapping,
+          ranges,
+          size,
+          response.getContentType(),
+          boundary);
       
-      RandomAccessFile aFile = 
-          new RandomAccessFile(requestedFile.getAbsolutePath(), "r");
-      
-      response.setChannelToReadFrom(aFile.getChannel());
+      response.setHttpCode(PARTIAL_CONTENT);
+      response.setContentType("multipart/byteranges; boundary=" + boundary);
+      response.setContentLength(parts.getLength());
+      response.setStreamToReadFrom(parts);
+      return;
+    }
+    
+    long first = 0;
+    long length = size;
+    
+    if (ranges != null) {
+      first = ranges[0];
+      length = ranges[1] - first + 1;
+      response.setHttpCode(PARTIAL_CONTENT);
+      response.addHeader("Content-Range",
+          "bytes " + first + "-" + ranges[1] + "/" + size);
+    }
+    
+    response.setContentLength(length);
     
+    if (content != null) {
+      // hot file, served from memory
+      ByteBuffer region = content.duplicate();
+      region.position((int) first);
+      region.limit((int) (first + length));
+      response.setStreamToReadFrom(new ByteBufferInputStream(region));
+    } else if (mapping != null) {
+      response.setChannelToReadFrom(
+          this.mappedFiles.openChannel(mapping, first, length));
+    } else if (ranges != null) {
+      response.setChannelToReadFrom(openChannel(requestedFile), first, length);
+    } else {
       // stream is relatively slower
       //   response.setStreamToReadFrom(new BufferedInputStream(
       // new FileInputStream(requestedFile)));
-    } else {
-      response.setErrorResponse(FORBIDDEN, "Forbidden.");
+      response.setChannelToReadFrom(openChannel(requestedFile));
+    }
+  }
+  
+  private MappedFiles.Mapping acquireMapping(FilesCache.Entry entry) {
+    try {
+      return this.mappedFiles.acquire(entry);
+    } catch (IOException ex) {
+      log.log(Level.FINE, "Mapping failed, file will be transferred.", ex);
+      return null;
+    }
+  }
+  
+  private static FileChannel openChannel(File file) throws IOException {
+    return new RandomAccessFile(file.getAbsolutePath(), "r").getChannel();
+  }
+  
+  /**
+   * Reads Range header of GET request. Range is ignored if If-Range does not
+   * match current file version. Entity tags sent by handler are weak and 
+   * If-Range requires strong comparison, so only If-Range date can match.
+   * 
+   * @param request request
+   * @param stat current file attributes
+   * @param size size of file content
+   * @return ranges as parsed by {@link ByteRanges#parse}, null if whole file
+   *  should be sent
+   */
+  private long[] getRanges(Request request, FilesCache.Stat stat, long size) {
+    if (!"GET".equals(request.getMethod())) {
+      return null;
+    }
+    
+    String range = request.getHeaderIgnoreCase(HeaderNames.RANGE);
+    
+    if (range == null) {
+      return null;
+    }
+    
+    String ifRange = request.getHeaderIgnoreCase(HeaderNames.IF_RANGE);
+    
+    if (ifRange != null) {
+      ifRange = ifRange.trim();
+      
+      if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+        return null;
+      }
+      
+      long date = parseHttpDate(ifRange);
+      
+      if (date == -1 || date / 1000 != stat.getLastModified() / 1000) {
+        return null;
+      }
+    }
+    
+    return ByteRanges.parse(range, size, this.maxRanges);
+  }
+  
+  /**
+   * Checks conditional GET headers. If-None-Match takes precedence over 
+   * If-Modified-Since, as in RFC 7232.
+   * 
+   * @param request request
+   * @param stat current file attributes
+   * @return true if client has current version of file
+   */
+  static boolean isNotModified(Request request, FilesCache.Stat stat) {
+    String method = request.getMethod();
+    
+    if (!"GET".equals(method) && !"HEAD".equals(method)) {
+      return false;
+    }
+    
+    String ifNoneMatch = 
+        request.getHeaderIgnoreCase(HeaderNames.IF_NONE_MATCH);
+    
+    if (ifNoneMatch != null) {
+      return matchesETag(ifNoneMatch, stat.getETag());
+    }
+    
+    String ifModifiedSince = 
+        request.getHeaderIgnoreCase(HeaderNames.IF_MODIFIED_SINCE);
+    
+    if (ifModifiedSince != null) {
+      long since = parseHttpDate(ifModifiedSince);
+      // header has seconds precision
+      return since != -1 && stat.getLastModified() / 1000 <= since / 1000;
+    }
+    
+    return false;
+  }
+  
+  /**
+   * Weak comparison of entity tags list with entity tag.
+   * 
+   * @param header If-None-Match value
+   * @param etag entity tag of file
+   * @return true if any of tags matches
+   */
+  static boolean matchesETag(String header, String etag) {
+    String opaque = etag.startsWith("W/") ? etag.substring(2) : etag;
+    
+    for (String tag : header.split(",")) {
+      tag = tag.trim();
+      
+      if (tag.equals("*")) {
+        return true;
+      }
+      
+      if (tag.startsWith("W/")) {
+        tag = tag.substring(2);
+      }
+      
+      if (tag.equals(opaque)) {
+        return true;
+      }
+    }
+    
+    return false;
+  }
+  
+  /**
+   * @param value HTTP date
+   * @return milliseconds or -1 if value is not valid date
+   */
+  static long parseHttpDate(String value) {
+    try {
+      return ZonedDateTime.parse(
+          value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME)
+          .toInstant().toEpochMilli();
+    } catch (DateTimeParseException ex) {
+      return -1;
+    }
+  }
+
+  /**
+   * Sets Cache-Control header value sent with files which request path
+   * starts with given prefix. Longest matching prefix is used.
+   * 
+   * @param pathPrefix request path prefix, for example "/static/"
+   * @param value header value, null removes prefix
+   */
+  public synchronized void setCacheControl(String pathPrefix, String value) {
+    String[][] current = this.cacheControls;
+    String[][] updated = new String[current.length + 1][];
+    int amount = 0;
+    
+    for (String[] cacheControl : current) {
+      if (!cacheControl[0].equals(pathPrefix)) {
+        updated[amount++] = cacheControl;
+      }
+    }
+    
+    if (value != null) {
+      updated[amount++] = new String[]{pathPrefix, value};
     }
+    
+    updated = Arrays.copyOf(updated, amount);
+    Arrays.sort(updated, (a, b) -> b[0].length() - a[0].length());
+    this.cacheControls = updated;
+  }
+
+  /**
+   * @param path request path
+   * @return Cache-Control value for path or null if none is set
+   */
+  public String getCacheControl(String path) {
+    for (String[] cacheControl : this.cacheControls) {
+      if (path.startsWith(cacheControl[0])) {
+        return cacheControl[1];
+      }
+    }
+    
+    return null;
+  }
+  
+  /**
+   * Cache of resolved paths and small files bytes, use it to configure 
+   * cache limits.
+   * 
+   * @return the filesCache
+   */
+  public FilesCache getFilesCache() {
+    return filesCache;
+  }
+  
+  /**
+   * Registry of memory mapped large files, use it to configure size 
+   * thresholds of mapping.
+   * 
+   * @return the mappedFiles
+   */
+  public MappedFiles getMappedFiles() {
+    return mappedFiles;
+  }
+  
+  /**
+   * @return the maxRanges
+   */
+  public int getMaxRanges() {
+    return maxRanges;
+  }
+
+  /**
+   * Sets max ranges accepted in single Range header, requests with more 
+   * ranges are served with whole file. Default is 16.
+   * 
+   * @param maxRanges the maxRanges to set
+   */
+  public void setMaxRanges(int maxRanges) {
+    this.maxRanges = maxRanges;
   }
   
   /**
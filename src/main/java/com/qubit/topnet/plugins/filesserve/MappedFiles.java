@@ -0,0 +1,393 @@
+/*
+ * topNET
+ * Fast HTTP Server Solution.
+ * Copyright 2016, Qubit Group <www.qubit.com>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  
+ * If not, see <https://www.gnu.org/licenses/lgpl-3.0.en.html>
+ * 
+ * Author: Peter Fronc <peter.fronc@qubitdigital.com>
+ */
+package com.qubit.topnet.plugins.filesserve;
+
+import com.qubit.topnet.ByteBufferChannel;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Registry of memory mapped files shared by all responses. Each response
+ * holds a reference to mapping it reads from; mapping is unmapped when file
+ * changes (or registry is cleared) and last response using it is closed.
+ * Until then, old version keeps being served to responses already started.
+ * 
+ * Files smaller than minFileSize, requested less than minHits times or not
+ * fitting in maxMappedBytes are not mapped.
+ * 
+ * @author Peter Fronc <peter.fronc@qubitdigital.com>
+ */
+public class MappedFiles {
+  
+  static final Logger log = Logger.getLogger(MappedFiles.class.getName());
+  
+  private long minFileSize = 4 * 1024 * 1024;
+  private long maxMappedBytes = 1024 * 1024 * 1024;
+  private int minHits = 2;
+  
+  private final ConcurrentHashMap<File, Mapping> mappings = 
+      new ConcurrentHashMap<>();
+  private final AtomicLong mappedBytes = new AtomicLong(0);
+  
+  private final AtomicLong mapped = new AtomicLong(0);
+  private final AtomicLong unmapped = new AtomicLong(0);
+  
+  /**
+   * File mapped into memory. Registry holds one reference while mapping is
+   * current, and every acquirer one more until it releases it.
+   */
+  public class Mapping implements Closeable {
+    private final FilesCache.Stat stat;
+    private final MappedByteBuffer buffer;
+    private final AtomicInteger references = new AtomicInteger(1);
+    
+    Mapping(FilesCache.Stat stat, MappedByteBuffer buffer) {
+      this.stat = stat;
+      this.buffer = buffer;
+    }
+    
+    private boolean retain() {
+      int current;
+      
+      do {
+        current = this.references.get();
+        
+        if (current == 0) {
+          return false; // unmapped already
+        }
+      } while (!this.references.compareAndSet(current, current + 1));
+      
+      return true;
+    }
+
+    /**
+     * Releases reference, buffers taken from mapping must not be used after.
+     */
+    public void release() {
+      if (this.references.decrementAndGet() == 0) {
+        mappedBytes.addAndGet(-this.buffer.capacity());
+        unmapped.incrementAndGet();
+        unmap(this.buffer);
+      }
+    }
+
+    /**
+     * @return read-only view of whole file, valid until release
+     */
+    public ByteBuffer getContent() {
+      return this.buffer.asReadOnlyBuffer();
+    }
+
+    /**
+     * @return the stat of mapped file version
+     */
+    public FilesCache.Stat getStat() {
+      return stat;
+    }
+    
+    @Override
+    public void close() {
+      this.release();
+    }
+  }
+  
+  /**
+   * Channel reading part of mapping, releasing it when closed.
+   */
+  static class MappingChannel extends ByteBufferChannel {
+    private final Mapping mapping;
+    private boolean released = false;
+    
+    MappingChannel(Mapping mapping, long position, long length) {
+      super(region(mapping.getContent(), position, length));
+      this.mapping = mapping;
+    }
+
+    @Override
+    public void close() throws IOException {
+      super.close();
+      
+      if (!this.released) {
+        this.released = true;
+        this.mapping.release();
+      }
+    }
+  }
+  
+  static ByteBuffer region(ByteBuffer content, long position, long length) {
+    content.position((int) position);
+    content.limit((int) (position + length));
+    return content;
+  }
+  
+  /**
+   * Returns current mapping of entry file, mapping it if file is hot and
+   * large enough. Mapping of older file version is dropped from registry,
+   * mapping made after entry stat was taken is left as it is.
+   * 
+   * @param entry files cache entry with current file attributes
+   * @return mapping with reference taken for caller, or null if file should
+   *  not be mapped
+   * @throws IOException if file mapping failed
+   */
+  public Mapping acquire(FilesCache.Entry entry) throws IOException {
+    File file = entry.getFile();
+    FilesCache.Stat stat = entry.getStat();
+    
+    while (true) {
+      Mapping mapping = this.mappings.get(file);
+
+      if (mapping != null) {
+        if (mapping.stat.sameFileVersion(stat)) {
+          if (mapping.retain()) {
+            return mapping;
+          }
+          
+          continue; // dropped meanwhile
+        }
+        
+        if (!stat.checkedAfter(mapping.stat)) {
+          return null; // mapping is newer than stat, file is read as it is
+        }
+        
+        // file changed, new requests get new version
+        this.remove(file, mapping);
+      }
+
+      long size = stat.getSize();
+      
+      if (size < this.minFileSize 
+          || size > Integer.MAX_VALUE
+          || entry.getHits() < this.minHits
+          || !this.reserve(size)) {
+        return null;
+      }
+
+      MappedByteBuffer buffer = null;
+      
+      try (FileChannel channel = 
+          FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+        // changing now if size differs, stat will catch up
+        if (channel.size() == size) {
+          // mapping stays valid when channel is closed
+          buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+      } finally {
+        if (buffer == null) {
+          this.mappedBytes.addAndGet(-size);
+        }
+      }
+      
+      if (buffer == null) {
+        return null;
+      }
+      
+      mapping = new Mapping(stat, buffer);
+      this.mapped.incrementAndGet();
+      
+      if (this.mappings.putIfAbsent(file, mapping) == null) {
+        mapping.retain();
+        return mapping;
+      }
+      
+      // other thread mapped it first, releasing gives reserved bytes back
+      mapping.release();
+    }
+  }
+  
+  /**
+   * Opens channel over part of file mapping, closing channel releases
+   * mapping.
+   * 
+   * @param mapping acquired mapping, reference is passed to channel
+   * @param position first byte
+   * @param length bytes amount
+   * @return channel
+   */
+  public ByteBufferChannel openChannel(
+      Mapping mapping, long position, long length) {
+    return new MappingChannel(mapping, position, length);
+  }
+  
+  private boolean reserve(long bytes) {
+    long current;
+    
+    do {
+      current = this.mappedBytes.get();
+      
+      if (current + bytes > this.maxMappedBytes) {
+        return false;
+      }
+    } while (!this.mappedBytes.compareAndSet(current, current + bytes));
+    
+    return true;
+  }
+  
+  private void remove(File file, Mapping mapping) {
+    if (this.mappings.remove(file, mapping)) {
+      mapping.release();
+    }
+  }
+  
+  /**
+   * Drops all mappings, they are unmapped as soon as responses using them
+   * finish.
+   */
+  public void clear() {
+    for (File file : this.mappings.keySet()) {
+      Mapping mapping = this.mappings.get(file);
+      
+      if (mapping != null) {
+        this.remove(file, mapping);
+      }
+    }
+  }
+  
+  private static final Method CLEAN;
+  private static final Object UNSAFE;
+  
+  static {
+    Method clean = null;
+    Object unsafe = null;
+    
+    try {
+      // java 9+
+      Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      clean = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+      Field field = unsafeClass.getDeclaredField("theUnsafe");
+      field.setAccessible(true);
+      unsafe = field.get(null);
+    } catch (ReflectiveOperationException | RuntimeException ex) {
+      clean = null; // java 8, cleaner is taken from buffer
+    }
+    
+    CLEAN = clean;
+    UNSAFE = unsafe;
+  }
+  
+  /**
+   * Unmaps buffer now instead of waiting for garbage collection. If JVM does
+   * not allow it, buffer is left for garbage collector.
+   */
+  static void unmap(MappedByteBuffer buffer) {
+    try {
+      if (CLEAN != null) {
+        CLEAN.invoke(UNSAFE, buffer);
+      } else {
+        Method cleaner = buffer.getClass().getMethod("cleaner");
+        cleaner.setAccessible(true);
+        Object instance = cleaner.invoke(buffer);
+        
+        if (instance != null) {
+          instance.getClass().getMethod("clean").invoke(instance);
+        }
+      }
+    } catch (ReflectiveOperationException | RuntimeException ex) {
+      log.log(Level.FINE, "Buffer left for garbage collector.", ex);
+    }
+  }
+
+  /**
+   * @return the mappings amount
+   */
+  public int size() {
+    return this.mappings.size();
+  }
+
+  /**
+   * @return the mappedBytes, including dropped mappings still in use
+   */
+  public long getMappedBytes() {
+    return this.mappedBytes.get();
+  }
+
+  /**
+   * @return the mapped files counter
+   */
+  public long getMapped() {
+    return mapped.get();
+  }
+
+  /**
+   * @return the unmapped files counter
+   */
+  public long getUnmapped() {
+    return unmapped.get();
+  }
+
+  /**
+   * @return the minFileSize
+   */
+  public long getMinFileSize() {
+    return minFileSize;
+  }
+
+  /**
+   * Files smaller than this are sent from files cache or with transferTo.
+   * Default is 4MB.
+   * 
+   * @param minFileSize the minFileSize to set
+   */
+  public void setMinFileSize(long minFileSize) {
+    this.minFileSize = minFileSize;
+  }
+
+  /**
+   * @return the maxMappedBytes
+   */
+  public long getMaxMappedBytes() {
+    return maxMappedBytes;
+  }
+
+  /**
+   * Address space mappings can take, 0 disables mapping. Default is 1GB.
+   * 
+   * @param maxMappedBytes the maxMappedBytes to set
+   */
+  public void setMaxMappedBytes(long maxMappedBytes) {
+    this.maxMappedBytes = maxMappedBytes;
+  }
+
+  /**
+   * @return the minHits
+   */
+  public int getMinHits() {
+    return minHits;
+  }
+
+  /**
+   * @param minHits requests for path needed before file is mapped
+   */
+  public void setMinHits(int minHits) {
+    this.minHits = minHits;
+  }
+}
@@ -0,0 +1,191 @@
+/*
+ * topNET
+ * Fast HTTP Server Solution.
+ * Copyright 2016, Qubit Group <www.qubit.com>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  
+ * If not, see <https://www.gnu.org/licenses/lgpl-3.0.en.html>
+ * 
+ * Author: Peter Fronc <peter.fronc@qubitdigital.com>
+ */
+package com.qubit.topnet.plugins.filesserve;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Body of multipart/byteranges response. Parts are read from file channel
+ * with positioned reads, or from buffer with file bytes if file is cached
+ * or mapped.
+ * Total length is known upfront, so response keeps its content length.
+ * 
+ * @author Peter Fronc <peter.fronc@qubitdigital.com>
+ */
+public class MultipartRangesStream extends InputStream {
+  
+  private final FileChannel channel;
+  private final ByteBuffer content;
+  private final Closeable contentOwner;
+  private final long[] ranges;
+  private final byte[][] partHeaders;
+  private final byte[] closing;
+  private final long length;
+  
+  private int part = 0;
+  private int headerPosition = 0;
+  private long position;
+  private long limit = -1; // -1 while part header is read
+  private byte[] single;
+  private boolean closed = false;
+
+  /**
+   * @param channel file to read parts from, used if content is null
+   * @param content file bytes or null
+   * @param contentOwner closed with stream, may be null
+   * @param ranges pairs of first and last byte positions
+   * @param size file size
+   * @param contentType file content type
+   * @param boundary parts boundary
+   */
+  public MultipartRangesStream(
+      FileChannel channel,
+      ByteBuffer content,
+      Closeable contentOwner,
+      long[] ranges,
+      long size,
+      String contentType,
+      String boundary) {
+    this.channel = channel;
+    this.content = content == null ? null : content.duplicate();
+    this.contentOwner = contentOwner;
+    this.ranges = ranges;
+    this.partHeaders = new byte[ranges.length / 2][];
+    this.closing = ("\r\n--" + boundary + "--\r\n")
+        .getBytes(StandardCharsets.ISO_8859_1);
+    
+    long total = this.closing.length;
+    
+    for (int i = 0; i < this.partHeaders.length; i++) {
+      long first = ranges[i * 2];
+      long last = ranges[i * 2 + 1];
+      
+      this.partHeaders[i] = ((i == 0 ? "" : "\r\n") 
+          + "--" + boundary + "\r\n"
+          + "Content-Type: " + contentType + "\r\n"
+          + "Content-Range: bytes " + first + "-" + last + "/" + size 
+          + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+      
+      total += this.partHeaders[i].length + last - first + 1;
+    }
+    
+    this.length = total;
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (this.single == null) {
+      this.single = new byte[1];
+    }
+    
+    return this.read(this.single, 0, 1) == -1 ? -1 : this.single[0] & 0xFF;
+  }
+
+  @Override
+  public int read(byte[] bytes, int offset, int length) throws IOException {
+    int amount = 0;
+    
+    while (amount < length) {
+      int read;
+      
+      if (this.part == this.partHeaders.length) {
+        read = this.copy(this.closing, bytes, offset + amount, length - amount);
+        
+        if (read == 0) {
+          break;
+        }
+      } else if (this.limit == -1) {
+        byte[] header = this.partHeaders[this.part];
+        read = this.copy(header, bytes, offset + amount, length - amount);
+        
+        if (this.headerPosition == header.length) {
+          this.headerPosition = 0;
+          this.position = this.ranges[this.part * 2];
+          this.limit = this.ranges[this.part * 2 + 1] + 1;
+        }
+      } else {
+        int max = (int) Math.min(length - amount, this.limit - this.position);
+        
+        if (this.content != null) {
+          this.content.limit((int) (this.position + max));
+          this.content.position((int) this.position);
+          this.content.get(bytes, offset + amount, max);
+          read = max;
+        } else {
+          read = this.channel.read(
+              ByteBuffer.wrap(bytes, offset + amount, max), this.position);
+          
+          if (read == -1) {
+            throw new IOException("File is shorter than expected.");
+          }
+        }
+        
+        this.position += read;
+        
+        if (this.position == this.limit) {
+          this.limit = -1;
+          this.part++;
+        }
+      }
+      
+      amount += read;
+    }
+    
+    return amount == 0 && length > 0 ? -1 : amount;
+  }
+  
+  private int copy(byte[] source, byte[] bytes, int offset, int length) {
+    int amount = Math.min(length, source.length - this.headerPosition);
+    System.arraycopy(source, this.headerPosition, bytes, offset, amount);
+    this.headerPosition += amount;
+    return amount;
+  }
+
+  /**
+   * @return total length of body
+   */
+  public long getLength() {
+    return length;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (this.closed) {
+      return;
+    }
+    
+    this.closed = true;
+    
+    try {
+      if (this.channel != null) {
+        this.channel.close();
+      }
+    } finally {
+      if (this.contentOwner != null) {
+        this.contentOwner.close();
+      }
+    }
+  }
+}
@@ -23,7 +23,14 @@ import com.qubit.topnet.AbstractHandlingThread;
 import com.qubit.topnet.DataHandler;
 import static com.qubit.topnet.DataHandler.bodyReadyHandler;
 import com.qubit.topnet.ServerBase;
+import com.qubit.topnet.WaitStrategy;
+import com.qubit.topnet.Waiter;
 import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import static java.nio.channels.SelectionKey.OP_READ;
+import static java.nio.channels.SelectionKey.OP_WRITE;
+import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -36,14 +43,21 @@ public abstract class HandlingThread extends AbstractHandlingThread {
 
   public HandlingThread(ServerBase server) {
     super(server);
+    this.waiter = new SelectorParkingWaiter();
   }
   
   private static final Logger log
       = Logger.getLogger(HandlingThread.class.getName());
-  private static int spinBeforeCount = 1000;
+  private static WaitStrategy defaultWaitStrategy = 
+      WaitStrategy.spinning(1000);
   
+  /**
+   * Sets idle passes over jobs threads do before parking when server has no
+   * wait strategy set. Default is 1000.
+   * @param value spins amount
+   */
   public static void setSpinCountBeforeSleep(int value) {
-    spinBeforeCount = value;
+    defaultWaitStrategy = WaitStrategy.spinning(value);
   }
 
   private long defaultMaxMessageSize;
@@ -51,7 +65,12 @@ public abstract class HandlingThread extends AbstractHandlingThread {
   private boolean running;
   protected volatile long jobsAdded = 0;
   protected volatile long jobsRemoved = 0;
-  private final Object sleepingLocker = new Object();
+  private int idleRounds = 0;
+  // idle jobs channels are registered with selector while thread waits
+  private boolean parkingOnSelector = false;
+  private long maxParkingTime = 100;
+  private Selector parkingSelector;
+  private volatile boolean parked = false;
   
   static volatile long handlingClosedIdleCounter = 0; // less more counter...
   
@@ -68,23 +87,45 @@ public abstract class HandlingThread extends AbstractHandlingThread {
       
       this.trySomeWork();
     } finally {
+      this.closeParkingSelector();
+      // cached buffers go back to pool, thread may not be started again
+      AbstractHandlingThread.releaseThreadCaches();
       this.server.removeThread(this);
     }
   }
   
   private void trySomeWork() {
-    long count = spinBeforeCount;
     while (this.hasJobs()) {
       if (this.runSinglePass()) {
-        if (count-- < 1) {
-          this.waitForSomethingToIO();
+        if (this.delayForNoIOReadsInSuite > 0) {// 0 means never wait for IO
+          this.idleNow(this.delayForNoIOReadsInSuite);
         }
       } else {
-        count = spinBeforeCount;
+        this.idleRounds = 0;
       }
     }
-      this.sleepNow();
+    
+    if (this.isRunning()) { // stopping thread must not park, nobody wakes it
+      this.idleNow(0);
+    }
+  }
+  
+  /**
+   * @param maxParkNanos max park time, 0 to park until woken up
+   */
+  private void idleNow(long maxParkNanos) {
+    WaitStrategy strategy = this.server.getWaitStrategy();
+    
+    if (strategy == null) {
+      strategy = defaultWaitStrategy;
+    }
+    
+    this.waiter.idle(strategy, this.idleRounds, maxParkNanos);
+    
+    if (this.idleRounds < Integer.MAX_VALUE) {
+      this.idleRounds++;
     }
+  }
   
   /**
    * Returns false if not finished writing or
@@ -105,6 +146,8 @@ public abstract class HandlingThread extends AbstractHandlingThread {
         if (dataHandler.finishedOrWaitForMoreRequests(true)) {
           // finished
           return -1;
+        } else if (dataHandler.hasPipelinedBytes()) {
+          return 1; // next request is read already, process it now
         } else {
           return 0; /// REGISTER KEY RATHER THAN THIS
         }
@@ -169,49 +212,123 @@ public abstract class HandlingThread extends AbstractHandlingThread {
   public abstract boolean hasJobs();
 
   public static volatile long totalWaitedIO = 0;
+  public static volatile long totalParkedIO = 0;
 
-  protected boolean waitForSomethingToIO() {
-    if (this.delayForNoIOReadsInSuite > 0) {// code is 0 if no IO occured
-      totalWaitedIO++;
-      takeSomeBreak(this.delayForNoIOReadsInSuite);
-      return true;
+  /**
+   * Parks on selector when thread has jobs and parking on selector is 
+   * enabled, otherwise parks as any waiter does.
+   */
+  private class SelectorParkingWaiter extends Waiter {
+
+    public SelectorParkingWaiter() {
+      super(HandlingThread.this);
     }
-    return false;
-  }
 
-  protected void wakeup() {
-    if (this.getState() == State.TIMED_WAITING ||
-        this.getState() == State.WAITING) {
-      synchronized (sleepingLocker) {
-        sleepingLocker.notify();
+    @Override
+    protected void park(long nanos) {
+      if (hasJobs()) {
+        if (parkingOnSelector && parkOnSelector()) {
+          totalParkedIO++;
+          return;
+        }
+        totalWaitedIO++;
       }
+      
+      super.park(nanos);
     }
-  }
 
-  private void sleepNow() {
-    try {
-      synchronized (sleepingLocker) {
-        sleepingLocker.wait();
+    @Override
+    public void signal() {
+      super.signal();
+      
+      Selector selector = parkingSelector;
+      if (parked && selector != null) {
+        selector.wakeup();
       }
-    } catch (InterruptedException e) {}
+    }
   }
 
-  private void takeSomeBreak(int delay) {
+  /**
+   * Waits till one of jobs channels is ready for its next read or write, or
+   * max parking time passes. Jobs which progress does not depend on socket 
+   * (handlers still running, response data not ready yet) can't be waited 
+   * for this way.
+   * 
+   * @return false if thread could not park
+   */
+  private boolean parkOnSelector() {
+    long added = this.jobsAdded;
+
     try {
-      if (delay < 1000000) {
-        synchronized (sleepingLocker) {
-          sleepingLocker.wait(0, delay);
+      if (this.parkingSelector == null) {
+        this.parkingSelector = Selector.open();
+      }
+
+      for (DataHandler job : this.getValidJobs()) {
+        if (job.isHandling() || (job.writingResponse 
+            && job.getResponse() != null 
+            && job.getResponse().isMoreDataComing())) {
+          return false;
         }
-      } else {
-        synchronized (sleepingLocker) {
-          sleepingLocker.wait(delay/1000000);
+
+        int ops = job.writingResponse ? OP_WRITE : OP_READ;
+        SocketChannel channel = job.getChannel();
+        SelectionKey key = channel.keyFor(this.parkingSelector);
+
+        if (key == null) {
+          channel.register(this.parkingSelector, ops);
+        } else if (key.interestOps() != ops) {
+          key.interestOps(ops);
         }
       }
-    } catch (InterruptedException e) {}
+
+      this.parked = true;
+
+      if (added == this.jobsAdded) { // no job came meanwhile
+        this.parkingSelector.select(this.maxParkingTime);
+      }
+
+      this.parkingSelector.selectedKeys().clear();
+
+      return true;
+    } catch (CancelledKeyException ex) {
+      // closed channel, key will be removed with next select
+      this.flushCancelledKeys();
+      return false;
+    } catch (IOException ex) {
+      this.flushCancelledKeys();
+      return false;
+    } finally {
+      this.parked = false;
+    }
   }
-  
+
+  private void flushCancelledKeys() {
+    try {
+      if (this.parkingSelector != null) {
+        this.parkingSelector.selectNow();
+        this.parkingSelector.selectedKeys().clear();
+      }
+    } catch (IOException ex) {
+      log.log(Level.FINE, null, ex);
+    }
+  }
+
+  private void closeParkingSelector() {
+    if (this.parkingSelector != null) {
+      try {
+        this.parkingSelector.close();
+      } catch (IOException ex) {
+        log.log(Level.FINE, null, ex);
+      }
+      this.parkingSelector = null;
+    }
+  }
+
   protected boolean handleMaxIdle(DataHandler dataHandler, long maxIdle) {
-    if (dataHandler.owningThread == null) return false;
+    if (dataHandler.owningThread == null || dataHandler.isHandling()) {
+      return false;
+    }
     
     //check if connection is not open too long! Prevent DDoS
     long idle = dataHandler.getMaxIdle(maxIdle);
@@ -263,6 +380,34 @@ public abstract class HandlingThread extends AbstractHandlingThread {
     this.delayForNoIOReadsInSuite = delayForNoIO;
   }
 
+  /**
+   * @return the parkingOnSelector
+   */
+  public boolean isParkingOnSelector() {
+    return parkingOnSelector;
+  }
+
+  /**
+   * @param parkingOnSelector the parkingOnSelector to set
+   */
+  public void setParkingOnSelector(boolean parkingOnSelector) {
+    this.parkingOnSelector = parkingOnSelector;
+  }
+
+  /**
+   * @return the maxParkingTime
+   */
+  public long getMaxParkingTime() {
+    return maxParkingTime;
+  }
+
+  /**
+   * @param maxParkingTime the maxParkingTime to set
+   */
+  public void setMaxParkingTime(long maxParkingTime) {
+    this.maxParkingTime = maxParkingTime;
+  }
+
   /**
    * @return the running
    */
@@ -20,6 +20,7 @@
 package com.qubit.topnet.waitonly;
 
 import static com.qubit.topnet.waitonly.HandlingThread.handlingClosedIdleCounter;
+import static com.qubit.topnet.waitonly.HandlingThread.totalParkedIO;
 import static com.qubit.topnet.waitonly.HandlingThread.totalWaitedIO;
 import java.io.IOException;
 import java.nio.channels.CancelledKeyException;
@@ -159,11 +160,12 @@ class MainAcceptAndDispatchThread extends Thread {
       
       if (System.currentTimeMillis() > (lastMeassured + getInfoLogsFrequency())) {
         log.log(Level.INFO,
-            "Accepted connections: {0}, total accept waited: {1}ms , waited IO count: {2}",
+            "Accepted connections: {0}, total accept waited: {1}ms , waited IO count: {2}, parked IO count: {3}",
             new Object[]{
               acceptedCnt,
               totalWaitingAcceptMsCounter,
-              totalWaitedIO});
+              totalWaitedIO,
+              totalParkedIO});
         log.log(Level.INFO,
             "Max accept idle gained total ML:{0} HL:{1}",
             new Object[]{closedIdleCounter, handlingClosedIdleCounter});
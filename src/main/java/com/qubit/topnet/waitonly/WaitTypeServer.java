@@ -41,6 +41,8 @@ public class WaitTypeServer extends ServerBase {
   private final static Logger log = Logger.getLogger(WaitTypeServer.class.getName());
   
   private int delayForNoIOReadsInSuite = 100 * 1000;
+  private boolean parkingOnSelector = false;
+  private long maxParkingTime = 100;
   private MainAcceptAndDispatchThread mainAcceptDispatcher;
   private HandlingThread[] handlingThreads;
 
@@ -119,11 +121,19 @@ public class WaitTypeServer extends ServerBase {
     this.setStoppingNow(true);
 
     try {
+      // handlers running on pool use their connections until they finish
+      this.shutdownBlockingHandlersPool();
       this.mainAcceptDispatcher.setRunning(false); // help it to finish
       this.mainAcceptDispatcher = null;
+      this.getChannelSelector().wakeup();
       for (int j = 0; j < handlingThreads.length; j++) {
-        handlingThreads[j].setRunning(false); // help thread to finish
-        handlingThreads[j] = null; // remove thread
+        // finishing thread removes itself from array
+        HandlingThread thread = handlingThreads[j];
+        if (thread != null) {
+          thread.setRunning(false); // help thread to finish
+          thread.wakeup(); // it may be parked with no jobs
+          handlingThreads[j] = null; // remove thread
+        }
       }
       this.clearThreadsCache();
       this.allRegisteringHandlingThreads.clear();
@@ -324,6 +334,8 @@ public class WaitTypeServer extends ServerBase {
     }
 
     t.setDelayForNoIO(this.getDelayForNoIOReadsInSuite());
+    t.setParkingOnSelector(this.isParkingOnSelector());
+    t.setMaxParkingTime(this.getMaxParkingTime());
 
     t.start();
     
@@ -389,4 +401,39 @@ public class WaitTypeServer extends ServerBase {
   public void setDelayForNoIOReadsInSuite(int delayForNoIOReadsInSuite) {
     this.delayForNoIOReadsInSuite = delayForNoIOReadsInSuite;
   }
+
+  /**
+   * @return the parkingOnSelector
+   */
+  public boolean isParkingOnSelector() {
+    return parkingOnSelector;
+  }
+
+  /**
+   * Hybrid waiting mode. When true, handling thread which made no progress
+   * after spinning registers its connections with own selector and waits 
+   * for their read or write readiness (or max parking time) instead of 
+   * sleeping for {@link #getDelayForNoIOReadsInSuite()} and polling again.
+   * Default is false. Applied to threads created after change.
+   * @param parkingOnSelector true to park threads on selector
+   */
+  public void setParkingOnSelector(boolean parkingOnSelector) {
+    this.parkingOnSelector = parkingOnSelector;
+  }
+
+  /**
+   * @return the maxParkingTime
+   */
+  public long getMaxParkingTime() {
+    return maxParkingTime;
+  }
+
+  /**
+   * Max miliseconds handling thread waits on selector, idle connections 
+   * limits are checked after. Default is 100.
+   * @param maxParkingTime the maxParkingTime to set
+   */
+  public void setMaxParkingTime(long maxParkingTime) {
+    this.maxParkingTime = maxParkingTime;
+  }
 }
@@ -20,10 +20,24 @@
 package com.qubit.topnet;
 
 import static com.qubit.topnet.ServerBase.HTTP_0_9;
+import static com.qubit.topnet.errors.ErrorTypes.HTTP_BAD_REQUEST;
 import static com.qubit.topnet.errors.ErrorTypes.HTTP_MALFORMED_HEADERS;
 import static com.qubit.topnet.errors.ErrorTypes.HTTP_NOT_FOUND;
+import static com.qubit.topnet.errors.ErrorTypes.HTTP_SERVICE_UNAVAILABLE;
+import com.qubit.topnet.examples.EchoHandler;
 import com.qubit.topnet.exceptions.OutputStreamAlreadySetException;
+import com.qubit.topnet.plugins.filesserve.ByteRanges;
+import com.qubit.topnet.plugins.filesserve.FilesDownloadHandler;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.zip.GZIPInputStream;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -323,11 +337,626 @@ public class DataHandlerTest {
     assertEquals(dataHandler.getRequest().getRequestedHttpProtocol(), HTTP_0_9);
     // https 0.9 will consume rest as body and it wont be MALFORMED HEADER CASE.
     assertEquals(0, dataHandler.getContentLength());
-    assertEquals("", dataHandler.getRequest().getBodyString());
+    // response is written with own buffers, request body stays untouched
+    assertEquals(httpMsg.substring(httpMsg.indexOf("\r\n") + 2),
+        dataHandler.getRequest().getBodyString());
     
     assertEquals("Server Error!", dummy.getWrittenBackMessage());
   }
   
+  @Test
+  public void testConsumingChunkedBody() 
+      throws IOException,
+      OutputStreamAlreadySetException {
+    String httpMsg = "POST /echo HTTP/1.1\r\n"
+        + "Transfer-Encoding: chunked\r\n"
+        + "\r\n"
+        + "6\r\n{body:\r\n"
+        + "0E;ext=1\r\n \"Hello World\"\r\n"
+        + "1\r\n}\r\n"
+        + "0\r\n"
+        + "Trailer: value\r\n"
+        + "\r\n";
+    
+    AcceptOnlyEventsTypeServer server = 
+        new AcceptOnlyEventsTypeServer("localhost", 3456);
+    server.registerHandlerByPath("/echo", new EchoHandler());
+    
+    DummySocketChannel dummy = new DummySocketChannel(null);
+    
+    dummy.init(httpMsg);
+    
+    DataHandler dataHandler = 
+        new DataHandler(server, dummy);
+    
+    while(dataHandler.read() >= 0);
+    
+    assertEquals(dataHandler.getErrorOccured(), null);
+    assertEquals(dataHandler.getRequest()
+        .getBodyString(), "{body: \"Hello World\"}");
+  }
+  
+  @Test
+  public void testFailingChunkedBody() 
+      throws IOException,
+      OutputStreamAlreadySetException {
+    String httpMsg = "POST /echo HTTP/1.1\r\n"
+        + "Transfer-Encoding: chunked\r\n"
+        + "\r\n"
+        + "5\r\nabcdefgh\r\n"
+        + "0\r\n\r\n";
+    
+    AcceptOnlyEventsTypeServer server = 
+        new AcceptOnlyEventsTypeServer("localhost", 3456);
+    server.registerHandlerByPath("/echo", new EchoHandler());
+    
+    DummySocketChannel dummy = new DummySocketChannel(null);
+    
+    dummy.init(httpMsg);
+    
+    DataHandler dataHandler = 
+        new DataHandler(server, dummy);
+    
+    while(dataHandler.read() >= 0);
+    
+    assertEquals(dataHandler.getErrorOccured(), HTTP_BAD_REQUEST);
+  }
+  
+  @Test
+  public void testConsumingPipelinedRequests() 
+      throws IOException,
+      OutputStreamAlreadySetException {
+    String httpMsg = "POST /echo HTTP/1.1\r\n"
+        + "Content-Length: 5\r\n"
+        + "\r\n"
+        + "first"
+        + "POST /echo HTTP/1.1\r\n"
+        + "Transfer-Encoding: chunked\r\n"
+        + "\r\n"
+        + "6\r\nsecond\r\n0\r\n\r\n"
+        + "GET /echo HTTP/1.1\r\n"
+        + "\r\n";
+    
+    AcceptOnlyEventsTypeServer server = 
+        new AcceptOnlyEventsTypeServer("localhost", 3456);
+    server.registerHandlerByPath("/echo", new EchoHandler());
+    
+    DummySocketChannel dummy = new DummySocketChannel(null);
+    
+    dummy.init(httpMsg);
+    
+    DataHandler dataHandler = 
+        new DataHandler(server, dummy);
+    
+    assertEquals(dataHandler.read(), -2);
+    assertEquals(dataHandler.getRequest().getBodyString(), "first");
+    assertTrue(dataHandler.hasPipelinedBytes());
+    
+    dataHandler.resetForNewRequest();
+    assertEquals(dataHandler.read(), -2);
+    assertEquals(dataHandler.getRequest().getBodyString(), "second");
+    assertTrue(dataHandler.hasPipelinedBytes());
+    
+    dataHandler.resetForNewRequest();
+    assertEquals(dataHandler.read(), -2);
+    assertEquals(dataHandler.getRequest().getMethod(), "GET");
+    assertEquals(dataHandler.getRequest().getBodyString(), "");
+    assertFalse(dataHandler.hasPipelinedBytes());
+  }
+  
+  @Test
+  public void testConsumingHeadersSplitAcrossBuffers() 
+      throws IOException,
+      OutputStreamAlreadySetException {
+    String bodyMsg = "{bodyMessage: \"Hello World!\"}";
+    StringBuilder httpMsg = new StringBuilder("POST /echo HTTP/1.1\r\n");
+    
+    for (int i = 0; i < 200; i++) {
+      httpMsg.append("Header-").append(i).append(": value-").append(i)
+          .append(" abcdefghijklmnopqrstuvwxyz\r\n");
+    }
+    
+    httpMsg.append("Content-Length: ").append(bodyMsg.length()).append("\r\n")
+        .append("\r\n")
+        .append(bodyMsg);
+    
+    AcceptOnlyEventsTypeServer server = 
+        new AcceptOnlyEventsTypeServer("localhost", 3456);
+    server.registerHandlerByPath("/echo", new EchoHandler());
+        
+    DummySocketChannel dummy = new DummySocketChannel(null);
+    
+    dummy.init(httpMsg.toString());
+    
+    int defaultChunkSize = BytesStream.getDefaultBufferChunkSize();
+    DataHandler dataHandler;
+    
+    try {
+      // small chunks so header lines cross buffer boundaries
+      BytesStream.setDefaultBufferChunkSize(4096);
+      dataHandler = new DataHandler(server, dummy);
+      while(dataHandler.read() >= 0);
+    } finally {
+      BytesStream.setDefaultBufferChunkSize(defaultChunkSize);
+    }
+    
+    assertEquals(null, dataHandler.getErrorOccured());
+    assertEquals(dataHandler.getRequest().getHeaders().size(), 201);
+    
+    for (int i = 0; i < 200; i++) {
+      assertEquals(dataHandler.getRequest().getHeader("Header-" + i), 
+          "value-" + i + " abcdefghijklmnopqrstuvwxyz");
+    }
+    
+    assertEquals(dataHandler.getRequest().getBodyString(), bodyMsg);
+  }
+  
+  @Test
+  public void testConsumingPipelinedRequestsAcrossBuffers() 
+      throws IOException,
+      OutputStreamAlreadySetException {
+    StringBuilder bodyMsg = new StringBuilder();
+    
+    while (bodyMsg.length() < 10000) {
+      bodyMsg.append("pipelined body ").append(bodyMsg.length()).append(';');
+    }
+    
+    String httpMsg = "GET /echo HTTP/1.1\r\n"
+        + "\r\n"
+        + "POST /echo HTTP/1.1\r\n"
+        + "Content-Length: " + bodyMsg.length() + "\r\n"
+        + "\r\n"
+        + bodyMsg;
+    
+    AcceptOnlyEventsTypeServer server = 
+        new AcceptOnlyEventsTypeServer("localhost", 3456);
+    server.registerHandlerByPath("/echo", new EchoHandler());
+    
+    DummySocketChannel dummy = new DummySocketChannel(null);
+    
+    dummy.init(httpMsg);
+    
+    int defaultChunkSize = BytesStream.getDefaultBufferChunkSize();
+    DataHandler dataHandler;
+    
+    try {
+      // next request takes more than one small chunk
+      BytesStream.setDefaultBufferChunkSize(4096);
+      dataHandler = new DataHandler(server, dummy);
+      assertEquals(dataHandler.read(), -2);
+      assertEquals(dataHandler.getRequest().getMethod(), "GET");
+      assertEquals(dataHandler.getRequest().getBodyString(), "");
+      assertTrue(dataHandler.hasPipelinedBytes());
+
+      dataHandler.resetForNewRequest();
+      while(dataHandler.read() >= 0);
+    } finally {
+      BytesStream.setDefaultBufferChunkSize(defaultChunkSize);
+    }
+    
+    assertEquals(null, dataHandler.getErrorOccured());
+    assertEquals(dataHandler.getRequest().getMethod(), "POST");
+    assertEquals(dataHandler.getRequest().getBodyString(), bodyMsg.toString());
+  }
+  
+  static class BlockingHandler extends Handler {
+    static CountDownLatch latch;
+
+    @Override
+    public boolean isBlocking() {
+      return true;
+    }
+
+    @Override
+    public boolean process(Request request, Response response)
+        throws Exception {
+      latch.await();
+      response.print("done");
+      return true;
+    }
+  }
+
+  /**
+   * Test of processing blocking handlers on blocking handlers pool.
+   */
+  @Test
+  public void testOffloadingBlockingHandlers() 
+      throws IOException, InterruptedException {
+    AcceptOnlyEventsTypeServer server = 
+        new AcceptOnlyEventsTypeServer("localhost", 3456);
+    server.registerHandlerByPath("/block", new BlockingHandler());
+    server.setBlockingHandlersThreadsAmount(1);
+    server.setBlockingHandlersQueueSize(1);
+    BlockingHandler.latch = new CountDownLatch(1);
+
+    DataHandler[] dataHandlers = new DataHandler[3];
+    
+    for (int i = 0; i < dataHandlers.length; i++) {
+      DummySocketChannel dummy = new DummySocketChannel(null);
+      dummy.init("GET /block HTTP/1.1\r\n\r\n");
+      dataHandlers[i] = new DataHandler(server, dummy);
+      while(dataHandlers[i].read() >= 0);
+    }
+
+    // one running, one waiting in queue and last one rejected
+    assertEquals(null, dataHandlers[0].getErrorOccured());
+    assertEquals(null, dataHandlers[1].getErrorOccured());
+    assertEquals(HTTP_SERVICE_UNAVAILABLE, dataHandlers[2].getErrorOccured());
+    assertTrue(dataHandlers[0].isHandling());
+    assertFalse(dataHandlers[2].isHandling());
+    assertEquals(0, dataHandlers[0].write());
+    assertEquals(1, server.getBlockingHandlersPool().getRejectedCounter());
+
+    BlockingHandler.latch.countDown();
+    
+    for (int i = 0; i < 2; i++) {
+      long timeout = System.currentTimeMillis() + 5000;
+      while (dataHandlers[i].isHandling() 
+          && System.currentTimeMillis() < timeout) {
+        Thread.sleep(1);
+      }
+      assertFalse(dataHandlers[i].isHandling());
+      assertEquals("done", 
+          dataHandlers[i].getResponse().getStringBuffer().toString());
+    }
+  }
+  
+  static class TextHandler extends Handler {
+    static String text;
+
+    @Override
+    public boolean process(Request request, Response response)
+        throws Exception {
+      response.setContentType("text/plain");
+      response.print(text);
+      return true;
+    }
+  }
+  
+  private static String writeResponse(
+      ServerBase server, String message) throws IOException {
+    DummySocketChannel dummy = new DummySocketChannel(null);
+    dummy.init(message);
+    DataHandler dataHandler = new DataHandler(server, dummy);
+    while(dataHandler.read() >= 0);
+    for (int i = 0; i < 1000 && dataHandler.write() != -1; i++);
+    return new String(dummy.getWrittenBackBytes(), 
+        StandardCharsets.ISO_8859_1);
+  }
+
+  /**
+   * Test of compressing responses negotiated with Accept-Encoding.
+   */
+  @Test
+  public void testCompressingResponses() throws IOException {
+    assertEquals("gzip", CompressedBodyStream.negotiate("gzip, deflate"));
+    assertEquals("deflate", 
+        CompressedBodyStream.negotiate("gzip;q=0.5, deflate"));
+    assertEquals("gzip", CompressedBodyStream.negotiate("*"));
+    assertEquals(null, CompressedBodyStream.negotiate("gzip;q=0, br"));
+    assertEquals(null, CompressedBodyStream.negotiate(null));
+    
+    AcceptOnlyEventsTypeServer server = 
+        new AcceptOnlyEventsTypeServer("localhost", 3456);
+    server.registerHandlerByPath("/text", new TextHandler());
+    server.setCompressingResponses(true);
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 2000; i++) {
+      text.append("line ").append(i).append('\n');
+    }
+    TextHandler.text = text.toString();
+    
+    String response = writeResponse(server, 
+        "GET /text HTTP/1.1\r\nAccept-Encoding: gzip\r\n\r\n");
+    int bodyStart = response.indexOf("\r\n\r\n") + 4;
+    String headers = response.substring(0, bodyStart);
+    
+    assertTrue(headers.contains("Content-Encoding: gzip\r\n"));
+    assertTrue(headers.contains("Vary: Accept-Encoding\r\n"));
+    assertTrue(headers.contains("Transfer-Encoding: chunked\r\n"));
+    assertFalse(headers.contains("Content-Length"));
+    
+    // unchunk and decompress
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    int at = bodyStart;
+    while (true) {
+      int lineEnd = response.indexOf("\r\n", at);
+      int size = Integer.parseInt(response.substring(at, lineEnd), 16);
+      if (size == 0) {
+        break;
+      }
+      byte[] chunk = response.substring(lineEnd + 2, lineEnd + 2 + size)
+          .getBytes(StandardCharsets.ISO_8859_1);
+      body.write(chunk, 0, chunk.length);
+      at = lineEnd + 2 + size + 2;
+    }
+    assertTrue(body.size() < TextHandler.text.length() / 2);
+    
+    InputStream gzip = new GZIPInputStream(
+        new ByteArrayInputStream(body.toByteArray()));
+    ByteArrayOutputStream plain = new ByteArrayOutputStream();
+    byte[] buf = new byte[4096];
+    for (int n; (n = gzip.read(buf)) != -1;) {
+      plain.write(buf, 0, n);
+    }
+    assertEquals(TextHandler.text, 
+        new String(plain.toByteArray(), StandardCharsets.ISO_8859_1));
+    
+    // not accepted
+    response = writeResponse(server, "GET /text HTTP/1.1\r\n\r\n");
+    assertFalse(response.contains("Content-Encoding"));
+    assertTrue(response.endsWith(TextHandler.text));
+    
+    // too small
+    TextHandler.text = "short";
+    response = writeResponse(server, 
+        "GET /text HTTP/1.1\r\nAccept-Encoding: gzip\r\n\r\n");
+    assertFalse(response.contains("Content-Encoding"));
+    assertTrue(response.contains("Content-Length: 5\r\n"));
+  }
+  
+  static class ChunksHandler extends Handler {
+    static ChunksInputStream stream;
+
+    @Override
+    public boolean process(Request request, Response response)
+        throws Exception {
+      stream = new ChunksInputStream(response);
+      stream.addChunk("abc", StandardCharsets.ISO_8859_1);
+      stream.addChunk(new byte[0]); // ignored
+      stream.addChunk("defgh", StandardCharsets.ISO_8859_1);
+      return true;
+    }
+  }
+  
+  private static String written(DummySocketChannel dummy) {
+    return new String(dummy.getWrittenBackBytes(), 
+        StandardCharsets.ISO_8859_1);
+  }
+  
+  // chunks data separated with "|", "0" marks last chunk
+  private static String chunks(String body) {
+    StringBuilder chunks = new StringBuilder();
+    int at = 0;
+    while (at < body.length()) {
+      int lineEnd = body.indexOf("\r\n", at);
+      String line = body.substring(at, lineEnd);
+      if (line.equals("0")) {
+        assertEquals("\r\n", body.substring(lineEnd + 2));
+        return chunks.append('0').toString();
+      }
+      int size = Integer.parseInt(line, 16);
+      int end = lineEnd + 2 + size;
+      chunks.append(body.substring(lineEnd + 2, end)).append('|');
+      assertEquals("\r\n", body.substring(end, end + 2));
+      at = end + 2;
+    }
+    return chunks.toString();
+  }
+
+  /**
+   * Test of chunked responses with data coming after handlers finished.
+   */
+  @Test
+  public void testChunkedResponses() throws IOException {
+    AcceptOnlyEventsTypeServer server = 
+        new AcceptOnlyEventsTypeServer("localhost", 3456);
+    server.registerHandlerByPath("/chunks", new ChunksHandler());
+    
+    DummySocketChannel dummy = new DummySocketChannel(null);
+    dummy.init("GET /chunks HTTP/1.1\r\n\r\n");
+    DataHandler dataHandler = new DataHandler(server, dummy);
+    while(dataHandler.read() >= 0);
+    
+    for (int i = 0; i < 10; i++) {
+      assertTrue(dataHandler.write() >= 0); // waiting for more chunks
+    }
+    
+    String response = written(dummy);
+    int bodyStart = response.indexOf("\r\n\r\n") + 4;
+    assertTrue(response.substring(0, bodyStart)
+        .contains("Transfer-Encoding: chunked\r\n"));
+    // each added chunk is own HTTP chunk, even if all fit in one
+    assertEquals("abc|defgh|", chunks(response.substring(bodyStart)));
+    
+    ChunksHandler.stream.addChunk("i", StandardCharsets.ISO_8859_1);
+    ChunksHandler.stream.addChunk("jk", StandardCharsets.ISO_8859_1);
+    ChunksHandler.stream.finish();
+    for (int i = 0; i < 1000 && dataHandler.write() != -1; i++);
+    
+    assertEquals("abc|defgh|i|jk|0", 
+        chunks(written(dummy).substring(bodyStart)));
+    assertTrue(written(dummy).endsWith("\r\n0\r\n\r\n"));
+    // chunked body has own end, connection is kept for next request
+    assertFalse(dataHandler.finishedOrWaitForMoreRequests(true));
+  }
+
+  /**
+   * Test of closing connections after responses of unknown length which are
+   * not chunked.
+   */
+  @Test
+  public void testUnknownLengthResponsesClosing() throws IOException {
+    AcceptOnlyEventsTypeServer server = 
+        new AcceptOnlyEventsTypeServer("localhost", 3456);
+    server.registerHandlerByPath("/chunks", new ChunksHandler());
+    
+    DummySocketChannel dummy = new DummySocketChannel(null);
+    dummy.init("GET /chunks HTTP/1.0\r\nConnection: keep-alive\r\n\r\n");
+    DataHandler dataHandler = new DataHandler(server, dummy);
+    while(dataHandler.read() >= 0);
+    ChunksHandler.stream.finish();
+    for (int i = 0; i < 1000 && dataHandler.write() != -1; i++);
+    
+    String response = written(dummy);
+    assertFalse(response.contains("Transfer-Encoding"));
+    assertTrue(response.endsWith("\r\n\r\nabcdefgh"));
+    // only closing connection tells where body ends
+    assertTrue(dataHandler.finishedOrWaitForMoreRequests(true));
+  }
+  
+  private static String header(String response, String name) {
+    int start = response.indexOf("\r\n" + name + ": ");
+    if (start == -1) {
+      return null;
+    }
+    start += name.length() + 4;
+    return response.substring(start, response.indexOf("\r\n", start));
+  }
+
+  /**
+   * Test of conditional requests for files.
+   */
+  @Test
+  public void testConditionalFilesRequests() throws IOException {
+    File dir = Files.createTempDirectory("files").toFile();
+    File file = new File(dir, "a.css");
+    Files.write(file.toPath(), "body{}".getBytes(StandardCharsets.UTF_8));
+    
+    AcceptOnlyEventsTypeServer server = 
+        new AcceptOnlyEventsTypeServer("localhost", 3456);
+    FilesDownloadHandler files = 
+        new FilesDownloadHandler("/files/", dir.getPath());
+    files.setCacheControl("/files/", "no-cache");
+    files.setCacheControl("/files/a", "max-age=60");
+    server.registerMatchingHandler(files);
+    
+    String response = writeResponse(server, 
+        "GET /files/a.css HTTP/1.1\r\n\r\n");
+    String etag = header(response, "ETag");
+    String lastModified = header(response, "Last-Modified");
+    
+    assertTrue(response.startsWith("HTTP/1.1 200"));
+    assertTrue(etag.startsWith("W/\""));
+    assertEquals("max-age=60", header(response, "Cache-Control"));
+    assertTrue(response.endsWith("body{}"));
+    
+    response = writeResponse(server, 
+        "GET /files/a.css HTTP/1.1\r\nIf-None-Match: \"x\", " + etag 
+            + "\r\n\r\n");
+    assertTrue(response.startsWith("HTTP/1.1 304"));
+    assertTrue(response.endsWith("\r\n\r\n"));
+    assertEquals(null, header(response, "Content-Length"));
+    assertEquals(null, header(response, "Transfer-Encoding"));
+    assertEquals(etag, header(response, "ETag"));
+    assertEquals("text/css", header(response, "Content-Type"));
+    
+    response = writeResponse(server, 
+        "GET /files/a.css HTTP/1.1\r\nIf-Modified-Since: " + lastModified 
+            + "\r\n\r\n");
+    assertTrue(response.startsWith("HTTP/1.1 304"));
+    
+    // If-None-Match wins over If-Modified-Since
+    response = writeResponse(server, 
+        "GET /files/a.css HTTP/1.1\r\nIf-None-Match: \"x\"\r\n"
+            + "If-Modified-Since: " + lastModified + "\r\n\r\n");
+    assertTrue(response.startsWith("HTTP/1.1 200"));
+    
+    response = writeResponse(server, 
+        "GET /files/a.css HTTP/1.1\r\n"
+            + "If-Modified-Since: Thu, 01 Jan 1970 00:00:00 GMT\r\n\r\n");
+    assertTrue(response.startsWith("HTTP/1.1 200"));
+    
+    assertTrue(file.delete());
+    assertTrue(dir.delete());
+  }
+  
+  /**
+   * Test of Range requests for files, read from disk, memory mapped and from
+   * files cache.
+   */
+  @Test
+  public void testRangeFilesRequests() throws IOException {
+    assertEquals(null, ByteRanges.parse("items=0-1", 10, 16));
+    assertEquals(null, ByteRanges.parse("bytes=5-1", 10, 16));
+    assertEquals(null, ByteRanges.parse("bytes=0-1,3-4", 10, 1));
+    assertEquals(0, ByteRanges.parse("bytes=10-", 10, 16).length);
+    assertEquals("[0, 4, 8, 9]", 
+        Arrays.toString(ByteRanges.parse("bytes=-2, 3-4,0-2", 10, 16)));
+    
+    File dir = Files.createTempDirectory("files").toFile();
+    File file = new File(dir, "a.txt");
+    Files.write(file.toPath(), "0123456789".getBytes(StandardCharsets.UTF_8));
+    
+    AcceptOnlyEventsTypeServer server = 
+        new AcceptOnlyEventsTypeServer("localhost", 3456);
+    FilesDownloadHandler files = 
+        new FilesDownloadHandler("/files/", dir.getPath());
+    server.registerMatchingHandler(files);
+    
+    for (int pass = 0; pass < 5; pass++) {
+      if (pass == 1) {
+        server.setTransferringFileChannels(false);
+      } else if (pass == 2) {
+        // memory mapped, copied and then written directly
+        files.getFilesCache().setMaxCachedFileSize(0);
+        files.getFilesCache().clear();
+        files.getMappedFiles().setMinFileSize(1);
+        files.getMappedFiles().setMinHits(0);
+      } else if (pass == 3) {
+        server.setTransferringFileChannels(true);
+      } else if (pass == 4) {
+        assertEquals(1, files.getMappedFiles().getMapped());
+        files.getMappedFiles().setMaxMappedBytes(0);
+        files.getFilesCache().setMaxCachedFileSize(1024);
+        files.getFilesCache().setMinHitsToCacheBytes(0);
+        writeResponse(server, "GET /files/a.txt HTTP/1.1\r\n\r\n");
+        assertNotNull(files.getFilesCache().get("/files/a.txt").getContent());
+      }
+      
+      String response = writeResponse(server, 
+          "GET /files/a.txt HTTP/1.1\r\nRange: bytes=2-4\r\n\r\n");
+      assertTrue(response.startsWith("HTTP/1.1 206"));
+      assertEquals("bytes 2-4/10", header(response, "Content-Range"));
+      assertEquals("3", header(response, "Content-Length"));
+      assertTrue(response.endsWith("\r\n\r\n234"));
+      
+      response = writeResponse(server, 
+          "GET /files/a.txt HTTP/1.1\r\nRange: bytes=-3\r\n\r\n");
+      assertEquals("bytes 7-9/10", header(response, "Content-Range"));
+      assertTrue(response.endsWith("\r\n\r\n789"));
+      
+      response = writeResponse(server, 
+          "GET /files/a.txt HTTP/1.1\r\nRange: bytes=0-0,8-\r\n\r\n");
+      assertTrue(response.startsWith("HTTP/1.1 206"));
+      String type = header(response, "Content-Type");
+      assertTrue(type.startsWith("multipart/byteranges; boundary="));
+      String boundary = type.substring(type.indexOf('=') + 1);
+      String body = "--" + boundary + "\r\n"
+          + "Content-Type: text/plain\r\n"
+          + "Content-Range: bytes 0-0/10\r\n\r\n0\r\n"
+          + "--" + boundary + "\r\n"
+          + "Content-Type: text/plain\r\n"
+          + "Content-Range: bytes 8-9/10\r\n\r\n89\r\n"
+          + "--" + boundary + "--\r\n";
+      assertEquals("" + body.length(), header(response, "Content-Length"));
+      assertTrue(response.endsWith("\r\n\r\n" + body));
+      
+      response = writeResponse(server, 
+          "GET /files/a.txt HTTP/1.1\r\nRange: bytes=10-\r\n\r\n");
+      assertTrue(response.startsWith("HTTP/1.1 416"));
+      assertEquals("bytes */10", header(response, "Content-Range"));
+      
+      // stale If-Range, whole file is sent
+      response = writeResponse(server, 
+          "GET /files/a.txt HTTP/1.1\r\nRange: bytes=2-4\r\n"
+              + "If-Range: Thu, 01 Jan 1970 00:00:00 GMT\r\n\r\n");
+      assertTrue(response.startsWith("HTTP/1.1 200"));
+      assertEquals("bytes", header(response, "Accept-Ranges"));
+      assertTrue(response.endsWith("\r\n\r\n0123456789"));
+      
+      String lastModified = header(response, "Last-Modified");
+      response = writeResponse(server, 
+          "GET /files/a.txt HTTP/1.1\r\nRange: bytes=2-4\r\n"
+              + "If-Range: " + lastModified + "\r\n\r\n");
+      assertTrue(response.startsWith("HTTP/1.1 206"));
+    }
+    
+    files.getMappedFiles().clear();
+    assertEquals(0, files.getMappedFiles().getMappedBytes());
+    assertTrue(file.delete());
+    assertTrue(dir.delete());
+  }
   
   @Test
   public void testLongCacheParser() {
@@ -0,0 +1,113 @@
+/*
+ * topNET
+ * Fast HTTP Server Solution.
+ * Copyright 2016, Qubit Group <www.qubit.com>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  
+ * If not, see <https://www.gnu.org/licenses/lgpl-3.0.en.html>
+ * 
+ * Author: Peter Fronc <peter.fronc@qubitdigital.com>
+ */
+package com.qubit.topnet;
+
+import java.nio.ByteBuffer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Peter Fronc <peter.fronc@qubitdigital.com>
+ */
+public class DirectBufferPoolTest {
+  
+  // largest size class, not used by other tests
+  private static final int SIZE = 4 * 1024 * 1024;
+  
+  private long maxDirectBytes;
+
+  public DirectBufferPoolTest() {
+  }
+  
+  @Before
+  public void setUp() {
+    this.maxDirectBytes = DirectBufferPool.getMaxDirectBytes();
+  }
+  
+  @After
+  public void tearDown() {
+    DirectBufferPool.releaseThreadCache();
+    DirectBufferPool.setMaxDirectBytes(this.maxDirectBytes);
+  }
+
+  @Test
+  public void testCapAccounting() {
+    assertEquals(0, DirectBufferPool.sizeClassOf(1));
+    assertEquals(1, DirectBufferPool.sizeClassOf(4097));
+    assertEquals(-1, DirectBufferPool.sizeClassOf(SIZE + 1));
+    
+    // pool may have idle buffers of this class left by other tests
+    ByteBuffer a = DirectBufferPool.acquire(SIZE);
+    ByteBuffer b = DirectBufferPool.acquire(SIZE);
+    long allocated = DirectBufferPool.getAllocatedBytes();
+    DirectBufferPool.setMaxDirectBytes(allocated);
+    
+    long fallbacks = DirectBufferPool.getHeapFallbacks();
+    ByteBuffer c = DirectBufferPool.acquire(SIZE);
+    assertTrue(a.isDirect());
+    assertTrue(b.isDirect());
+    assertFalse(c.isDirect());
+    assertEquals(SIZE, c.capacity());
+    assertEquals(fallbacks + 1, DirectBufferPool.getHeapFallbacks());
+    
+    DirectBufferPool.release(c); // heap, ignored
+    DirectBufferPool.release(b);
+    assertEquals(allocated, DirectBufferPool.getAllocatedBytes());
+    
+    ByteBuffer d = DirectBufferPool.acquire(SIZE);
+    assertTrue(d == b); // from thread cache
+    assertEquals(0, d.position());
+    assertEquals(SIZE, d.limit());
+    
+    long pooled = DirectBufferPool.getPooledBytes();
+    DirectBufferPool.release(a);
+    DirectBufferPool.release(d);
+    DirectBufferPool.releaseThreadCache();
+    assertEquals(pooled + 2 * SIZE, DirectBufferPool.getPooledBytes());
+    assertEquals(allocated, DirectBufferPool.getAllocatedBytes());
+  }
+
+  @Test
+  public void testThreadsComingAndGoing() throws InterruptedException {
+    DirectBufferPool.setMaxDirectBytes(
+        DirectBufferPool.getAllocatedBytes() + 2 * SIZE);
+    long fallbacks = DirectBufferPool.getHeapFallbacks();
+    
+    for (int i = 0; i < 100; i++) {
+      Thread thread = new Thread(() -> {
+        try {
+          DirectBufferPool.release(DirectBufferPool.acquire(SIZE));
+        } finally {
+          DirectBufferPool.releaseThreadCache();
+        }
+      });
+      
+      thread.start();
+      thread.join();
+    }
+    
+    assertEquals(fallbacks, DirectBufferPool.getHeapFallbacks());
+    assertTrue(DirectBufferPool.getAllocatedBytes() 
+        <= DirectBufferPool.getMaxDirectBytes());
+  }
+}
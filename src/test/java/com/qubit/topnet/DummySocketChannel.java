@@ -132,6 +132,10 @@ class DummySocketChannel extends SocketChannel {
   public String getWrittenBackMessage() {
     return new String(output.array(),0, output.position());
   }
+
+  public byte[] getWrittenBackBytes() {
+    return java.util.Arrays.copyOf(output.array(), output.position());
+  }
   
   @Override
   public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
@@ -213,4 +213,57 @@ public class RequestTest {
     expResult.put("", "=1234&!@%");
     assertEquals(expResult, instance.getParameters());
   }
+  
+  /**
+   * Test of header lookups, of class Request.
+   */
+  @Test
+  public void testGetHeader() {
+    Request instance = new Request();
+    
+    for (int i = 0; i < 40; i++) {
+      instance.addHeader("X-Header-" + i, "value" + i);
+    }
+    instance.addHeader("content-type", "text/plain");
+    instance.addHeader("Content-Type", "text/html");
+    
+    assertEquals("value0", instance.getHeader("X-Header-0"));
+    assertEquals("value39", instance.getHeaderIgnoreCase("x-header-39"));
+    assertEquals("value7", instance.getLowerCaseHeader("x-header-7"));
+    assertEquals(null, instance.getHeader("x-header-7"));
+    assertEquals("text/html", instance.getHeader("Content-Type"));
+    assertEquals("text/plain", instance.getHeaderIgnoreCase("Content-Type"));
+    
+    instance.getHeaders().add(new String[]{"Host", "localhost"});
+    assertEquals("localhost", instance.getHeaderIgnoreCase("host"));
+    
+    instance.reset();
+    assertEquals(null, instance.getHeaderIgnoreCase("host"));
+    instance.addHeader("Host", "example.com");
+    assertEquals("example.com", instance.getHeader("Host"));
+  }
+  
+  /**
+   * Test of raw header values, of class Request.
+   */
+  @Test
+  public void testRawHeaderValues() {
+    Request instance = new Request();
+    byte[] line = "Connection: keep-alive, Upgrade".getBytes();
+    
+    instance.addHeader("Connection", line, 12, 10);
+    instance.addHeader("X-Multi", line, 24, 7);
+    instance.appendToLastHeader(line, 12, 4);
+    
+    CharSequence view = instance.getHeaderView("connection");
+    assertTrue(view instanceof ByteSlice);
+    assertTrue("keep-alive".contentEquals(view));
+    assertTrue(((ByteSlice) view).equalsIgnoreCase("Keep-Alive"));
+    assertEquals("alive", view.subSequence(5, 10).toString());
+    
+    assertEquals("Upgrade\nkeep", instance.getHeader("X-Multi"));
+    assertEquals("keep-alive", instance.getHeaders().get(0)[1]);
+    // decoded value is used from now on
+    assertEquals("keep-alive", instance.getHeaderView("Connection"));
+  }
 }
@@ -19,6 +19,10 @@
  */
 package com.qubit.topnet;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -58,4 +62,50 @@ public class ResponseTest {
   public void testGetServerName() {
   }
 
+  /**
+   * Headers stream must produce same bytes as string built headers, also
+   * when read in small parts.
+   */
+  @Test
+  public void testHeadersStreamMatchesHeadersToSend() {
+    Response response = new Response();
+    response.setHttpCode(404);
+    response.addHeader("Content-Type", "text/plain");
+    response.addHeader("X-Custom", "value \u00e9");
+    response.addHeader("Content-Length", "12");
+
+    ByteArrayInputStream expected = response.getHeadersToSend();
+    byte[] expectedBytes = new byte[expected.available()];
+    expected.read(expectedBytes, 0, expectedBytes.length);
+
+    ResponseHeadersStream stream = new ResponseHeadersStream();
+    stream.reset(response);
+    ByteBuffer buffer = ByteBuffer.allocateDirect(7);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    
+    while (stream.read(buffer) != -1) {
+      buffer.flip();
+      while (buffer.hasRemaining()) {
+        out.write(buffer.get());
+      }
+      buffer.clear();
+    }
+
+    assertEquals(withoutDate(expectedBytes), withoutDate(out.toByteArray()));
+
+    stream.reset(response);
+    out.reset();
+    int ch;
+    while ((ch = stream.read()) != -1) {
+      out.write(ch);
+    }
+    
+    assertEquals(withoutDate(expectedBytes), withoutDate(out.toByteArray()));
+  }
+
+  private static String withoutDate(byte[] bytes) {
+    return new String(bytes, StandardCharsets.ISO_8859_1)
+        .replaceAll("Date: [^\r]*\r\n", "");
+  }
+
 }
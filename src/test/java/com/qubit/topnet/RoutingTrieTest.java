@@ -0,0 +1,231 @@
+/*
+ * topNET
+ * Fast HTTP Server Solution.
+ * Copyright 2016, Qubit Group <www.qubit.com>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  
+ * If not, see <https://www.gnu.org/licenses/lgpl-3.0.en.html>
+ * 
+ * Author: Peter Fronc <peter.fronc@qubitdigital.com>
+ */
+package com.qubit.topnet;
+
+import java.util.Iterator;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Peter Fronc <peter.fronc@qubitdigital.com>
+ */
+public class RoutingTrieTest {
+
+  public RoutingTrieTest() {
+  }
+
+  static class NamedHandler extends Handler {
+    private final String name;
+    private final String prefix;
+    private int resets = 0;
+
+    NamedHandler(String name, String prefix) {
+      this.name = name;
+      this.prefix = prefix;
+    }
+
+    @Override
+    public Handler getInstance() {
+      return new NamedHandler(this.name, this.prefix);
+    }
+
+    @Override
+    public boolean matches(String fullPath, String path, String params) {
+      return this.prefix == null || path.startsWith(this.prefix);
+    }
+
+    @Override
+    public String getPathPrefix() {
+      return this.prefix;
+    }
+
+    @Override
+    public boolean process(Request request, Response response) {
+      return true;
+    }
+
+    @Override
+    public void reset() {
+      this.resets++;
+    }
+
+    @Override
+    public boolean isReusable() {
+      return true;
+    }
+  }
+
+  public static class PlainHandler extends Handler {
+    @Override
+    public boolean process(Request request, Response response) {
+      return true;
+    }
+  }
+
+  private static String chain(Handler handler) {
+    StringBuilder builder = new StringBuilder();
+    while (handler != null) {
+      builder.append(((NamedHandler) handler).name).append(';');
+      handler = handler.getNext();
+    }
+    return builder.toString();
+  }
+
+  /**
+   * Test of routing, of class RoutingTrie.
+   */
+  @Test
+  public void testRouting() {
+    AcceptOnlyEventsTypeServer server = 
+        new AcceptOnlyEventsTypeServer("localhost", 3456);
+
+    // matching handlers are unique by class
+    server.registerMatchingHandler(new NamedHandler("files", "/files") {});
+    server.registerMatchingHandler(new NamedHandler("all", null) {});
+    server.registerMatchingHandler(new NamedHandler("fi", "/fi") {});
+    server.registerHandlerByPath("/files/index", new NamedHandler("index", null));
+    server.registerHandlerByPath("/users/{id}", new NamedHandler("user", null));
+    server.registerHandlerByPath(
+        "/users/{id}/files/{name}", new NamedHandler("userFile", null));
+    server.registerHandlerByPath("/users/me", new NamedHandler("me", null));
+
+    assertEquals("files;all;fi;index;", 
+        chain(server.getHandlerForPath("/files/index", "/files/index", "")));
+    assertEquals("all;fi;", 
+        chain(server.getHandlerForPath("/fix", "/fix", "")));
+    assertEquals("all;", 
+        chain(server.getHandlerForPath("/f", "/f", "")));
+
+    Request request = new Request();
+    assertEquals("all;user;", chain(server.getHandlerForPath(
+        "/users/7", "/users/7", "", request)));
+    assertEquals("7", request.getPathParameter("id"));
+
+    request = new Request();
+    assertEquals("all;me;", chain(server.getHandlerForPath(
+        "/users/me", "/users/me", "", request)));
+    assertEquals(0, request.getPathParameters().size());
+
+    assertEquals("all;userFile;", chain(server.getHandlerForPath(
+        "/users/7/files/a.txt", "/users/7/files/a.txt", "", request)));
+    assertEquals("7", request.getPathParameter("id"));
+    assertEquals("a.txt", request.getPathParameter("name"));
+
+    assertEquals("all;", chain(server.getHandlerForPath(
+        "/users/", "/users/", "", null)));
+
+    long version = server.getRoutingTable().getVersion();
+    List<Handler> before = server.getMatchingHandlers();
+    Iterator<Handler> it = server.matchingHandlers.iterator();
+    server.unregisterMatchingHandler(server.matchingHandlers.get(1));
+    assertEquals("", chain(server.getHandlerForPath("/f", "/f", "")));
+    assertEquals(version + 1, server.getRoutingTable().getVersion());
+    assertEquals(2, server.matchingHandlers.size());
+    // snapshots taken before change stay whole
+    assertEquals(3, before.size());
+    int iterated = 0;
+    while (it.hasNext()) {
+      it.next();
+      iterated++;
+    }
+    assertEquals(3, iterated);
+    
+    try {
+      server.registerHandlerByPath("/broken/{id", new NamedHandler("x", null));
+      assertTrue(false);
+    } catch (IllegalArgumentException ex) {
+      // routing stays as it was
+    }
+    assertEquals(version + 1, server.getRoutingTable().getVersion());
+    assertEquals(null, server.plainPathHandlers.get("/broken/{id"));
+  }
+
+  /**
+   * Test of handling chains reuse, of class HandlerChain.
+   */
+  @Test
+  public void testHandlerChainReuse() {
+    AcceptOnlyEventsTypeServer server = 
+        new AcceptOnlyEventsTypeServer("localhost", 3456);
+
+    server.registerMatchingHandler(new NamedHandler("all", null) {});
+    server.registerHandlerByPath("/a", new NamedHandler("a", null));
+    
+    Handler shared = new NamedHandler("shared", null) {
+      @Override
+      public Handler getInstance() {
+        return this;
+      }
+    };
+    server.registerHandlerByPath("/shared", shared);
+
+    HandlerChain chain = server.getHandlerChain("/a", "/a", "", null);
+    assertEquals("all;a;", chain(chain.getFirst()));
+    
+    // chain in use is not given to other request
+    HandlerChain other = server.getHandlerChain("/a", "/a", "", null);
+    assertTrue(chain.getFirst() != other.getFirst());
+    
+    Handler first = chain.getFirst();
+    first.setNext(null);
+    chain.release();
+    other.release();
+    assertEquals(1, ((NamedHandler) first).resets);
+
+    HandlerChain reused = server.getHandlerChain("/a", "/a", "", null);
+    assertTrue(reused.getFirst() == other.getFirst() 
+        || reused.getFirst() == first);
+    assertEquals("all;a;", chain(reused.getFirst()));
+    reused.release();
+    
+    // shared instances keep own links
+    HandlerChain sharedChain = 
+        server.getHandlerChain("/shared", "/shared", "", null);
+    Handler link = sharedChain.getFirst().getNext();
+    assertTrue(link instanceof HandlerChain.SharedHandlerLink);
+    assertTrue(((HandlerChain.SharedHandlerLink) link).getHandler() == shared);
+    assertEquals(null, shared.getNext());
+    sharedChain.release();
+    assertEquals(0, ((NamedHandler) shared).resets);
+    
+    // routing change drops cached chains
+    Handler cached = server.getHandlerChain("/a", "/a", "", null).getFirst();
+    server.registerHandlerByPath("/b", new NamedHandler("b", null));
+    assertTrue(server.getHandlerChain("/a", "/a", "", null).getFirst() 
+        != cached);
+
+    // handlers not opting in get new instance for each request
+    server.registerHandlerByPath("/plain", new PlainHandler());
+    HandlerChain plain = server.getHandlerChain("/plain", "/plain", "", null);
+    plain.release();
+    Handler plainHandler = plain.getFirst().getNext();
+    assertTrue(plainHandler instanceof PlainHandler);
+    assertTrue(server.getHandlerChain("/plain", "/plain", "", null)
+        .getFirst().getNext() != plainHandler);
+
+    server.setCachingHandlerChains(false);
+    HandlerChain notCached = server.getHandlerChain("/a", "/a", "", null);
+    notCached.release();
+    assertTrue(server.getHandlerChain("/a", "/a", "", null).getFirst() 
+        != notCached.getFirst());
+  }
+}
@@ -0,0 +1,97 @@
+/*
+ * topNET
+ * Fast HTTP Server Solution.
+ * Copyright 2016, Qubit Group <www.qubit.com>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  
+ * If not, see <https://www.gnu.org/licenses/lgpl-3.0.en.html>
+ * 
+ * Author: Peter Fronc <peter.fronc@qubitdigital.com>
+ */
+package com.qubit.topnet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Minimal HTTP client for tests running servers on loopback.
+ * 
+ * @author Peter Fronc <peter.fronc@qubitdigital.com>
+ */
+public class TestClient {
+  
+  private TestClient() {}
+  
+  /**
+   * Sends request and reads response with Content-Length.
+   * 
+   * @param socket connection
+   * @param request whole request
+   * @return response or null if connection was closed before it was read
+   * @throws IOException 
+   */
+  public static String send(Socket socket, String request) throws IOException {
+    socket.getOutputStream()
+        .write(request.getBytes(StandardCharsets.ISO_8859_1));
+    return readResponse(socket.getInputStream());
+  }
+  
+  /**
+   * Reads response with Content-Length.
+   * 
+   * @param in connection input
+   * @return response or null if connection was closed before it was read
+   * @throws IOException 
+   */
+  public static String readResponse(InputStream in) throws IOException {
+    ByteArrayOutputStream headers = new ByteArrayOutputStream();
+    int matched = 0;
+    
+    while (matched < 4) {
+      int ch = in.read();
+      
+      if (ch == -1) {
+        return null;
+      }
+      
+      headers.write(ch);
+      
+      if (ch == (matched % 2 == 0 ? '\r' : '\n')) {
+        matched++;
+      } else {
+        matched = ch == '\r' ? 1 : 0;
+      }
+    }
+    
+    String head = 
+        new String(headers.toByteArray(), StandardCharsets.ISO_8859_1);
+    int start = head.indexOf("\r\nContent-Length: ") + 18;
+    int length = 
+        Integer.parseInt(head.substring(start, head.indexOf("\r\n", start)));
+    byte[] body = new byte[length];
+    
+    for (int read = 0; read < length;) {
+      int amount = in.read(body, read, length - read);
+      
+      if (amount == -1) {
+        return null;
+      }
+      
+      read += amount;
+    }
+    
+    return head + new String(body, StandardCharsets.ISO_8859_1);
+  }
+}
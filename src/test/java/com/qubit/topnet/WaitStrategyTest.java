@@ -0,0 +1,82 @@
+/*
+ * topNET
+ * Fast HTTP Server Solution.
+ * Copyright 2016, Qubit Group <www.qubit.com>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  
+ * If not, see <https://www.gnu.org/licenses/lgpl-3.0.en.html>
+ * 
+ * Author: Peter Fronc <peter.fronc@qubitdigital.com>
+ */
+package com.qubit.topnet;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Peter Fronc <peter.fronc@qubitdigital.com>
+ */
+public class WaitStrategyTest {
+
+  public WaitStrategyTest() {
+  }
+
+  @Test
+  public void testBackoffSteps() {
+    WaitStrategy strategy = WaitStrategy.backoff(2, 1, 1000, 5000);
+    
+    assertEquals(WaitStrategy.SPIN, strategy.idle(0));
+    assertEquals(WaitStrategy.SPIN, strategy.idle(1));
+    assertEquals(WaitStrategy.YIELD, strategy.idle(2));
+    assertEquals(1000, strategy.idle(3));
+    assertEquals(2000, strategy.idle(4));
+    assertEquals(4000, strategy.idle(5));
+    assertEquals(5000, strategy.idle(6));
+    assertEquals(5000, strategy.idle(Integer.MAX_VALUE));
+    
+    WaitStrategy spinning = WaitStrategy.spinning(1);
+    assertEquals(WaitStrategy.SPIN, spinning.idle(0));
+    assertEquals(WaitStrategy.PARK, spinning.idle(1));
+  }
+
+  @Test
+  public void testWaiterStatsAndSignal() throws Exception {
+    Waiter waiter = new Waiter(Thread.currentThread());
+    
+    waiter.idle(WaitStrategy.BUSY_SPIN, 0, 0);
+    waiter.idle(WaitStrategy.YIELDING, 0, 0);
+    // signalled before parking, must not block
+    waiter.signal();
+    waiter.idle(WaitStrategy.BLOCKING, 0, 0);
+    // bounded by max park time
+    waiter.idle(WaitStrategy.BLOCKING, 0, 1000 * 1000);
+    
+    assertEquals(1, waiter.getSpins());
+    assertEquals(1, waiter.getYields());
+    assertEquals(2, waiter.getParks());
+    
+    final Waiter parking = new Waiter(Thread.currentThread());
+    Thread signaller = new Thread(() -> {
+      try {
+        Thread.sleep(50);
+      } catch (InterruptedException ex) {}
+      parking.signal();
+    });
+    signaller.start();
+    parking.idle(WaitStrategy.BLOCKING, 0, 0);
+    signaller.join();
+    
+    assertEquals(1, parking.getParks());
+    assertTrue(parking.getParkedNanos() > 0);
+  }
+}
@@ -0,0 +1,131 @@
+/*
+ * topNET
+ * Fast HTTP Server Solution.
+ * Copyright 2016, Qubit Group <www.qubit.com>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  
+ * If not, see <https://www.gnu.org/licenses/lgpl-3.0.en.html>
+ * 
+ * Author: Peter Fronc <peter.fronc@qubitdigital.com>
+ */
+package com.qubit.topnet.blockingonly;
+
+import com.qubit.topnet.DeflaterPool;
+import com.qubit.topnet.Handler;
+import com.qubit.topnet.Request;
+import com.qubit.topnet.Response;
+import com.qubit.topnet.TestClient;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Peter Fronc <peter.fronc@qubitdigital.com>
+ */
+public class BlockingTypeServerTest {
+  
+  private static final int PORT = 34571;
+  
+  private BlockingTypeServer server;
+  private long limitsCheckPeriod;
+
+  public BlockingTypeServerTest() {
+  }
+  
+  public static class TextHandler extends Handler {
+    @Override
+    public boolean process(Request request, Response response)
+        throws Exception {
+      response.setContentType("text/plain");
+      response.print("hello " + request.getPath());
+      return true;
+    }
+  }
+  
+  @Before
+  public void setUp() throws IOException {
+    this.limitsCheckPeriod = BlockingTypeServer.getLimitsCheckPeriod();
+    BlockingTypeServer.setLimitsCheckPeriod(20);
+    
+    this.server = new BlockingTypeServer("localhost", PORT);
+    this.server.setUsingVirtualThreads(false);
+    this.server.setDefaultIdleTime(300);
+    this.server.setCompressingResponses(true);
+    this.server.setCompressionMinSize(1);
+    this.server.registerHandlerByPath("/a", new TextHandler());
+    this.server.registerHandlerByPath("/b", new TextHandler());
+    this.server.start();
+  }
+  
+  @After
+  public void tearDown() throws IOException {
+    this.server.stop();
+    BlockingTypeServer.setLimitsCheckPeriod(this.limitsCheckPeriod);
+  }
+  
+  private void waitForConnections(int amount) throws InterruptedException {
+    for (int i = 0; i < 200 && this.server.getConnectionsAmount() != amount; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(amount, this.server.getConnectionsAmount());
+  }
+
+  @Test
+  public void testKeepAliveRequests() throws Exception {
+    try (Socket socket = new Socket("localhost", PORT)) {
+      OutputStream out = socket.getOutputStream();
+      InputStream in = socket.getInputStream();
+      
+      String response = 
+          TestClient.send(socket, "GET /a HTTP/1.1\r\nHost: x\r\n\r\n");
+      assertTrue(response.startsWith("HTTP/1.1 200"));
+      assertTrue(response.endsWith("\r\n\r\nhello /a"));
+      
+      // same connection, compressed by connection own thread
+      out.write(("GET /b HTTP/1.1\r\nHost: x\r\n"
+          + "Accept-Encoding: deflate\r\nConnection: close\r\n\r\n")
+          .getBytes(StandardCharsets.ISO_8859_1));
+      byte[] rest = new byte[4096];
+      int read = 0;
+      for (int amount; (amount = in.read(rest, read, rest.length - read)) > 0;) {
+        read += amount;
+      }
+      response = new String(rest, 0, read, StandardCharsets.ISO_8859_1);
+      assertTrue(response.startsWith("HTTP/1.1 200"));
+      assertTrue(response.contains("\r\nContent-Encoding: deflate\r\n"));
+    }
+    
+    this.waitForConnections(0);
+    assertEquals(1, this.server.getConnectionsCounter());
+    // connection thread left its deflater to pool when it finished
+    assertTrue(DeflaterPool.getPooledDeflaters() > 0);
+  }
+
+  @Test
+  public void testIdleConnectionIsClosed() throws Exception {
+    try (Socket socket = new Socket("localhost", PORT)) {
+      socket.setSoTimeout(5000);
+      this.waitForConnections(1);
+      // limits thread closes connection after idle time
+      assertEquals(-1, socket.getInputStream().read());
+    }
+    
+    this.waitForConnections(0);
+  }
+}
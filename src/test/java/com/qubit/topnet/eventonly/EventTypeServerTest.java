@@ -0,0 +1,393 @@
+/*
+ * topNET
+ * Fast HTTP Server Solution.
+ * Copyright 2016, Qubit Group <www.qubit.com>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  
+ * If not, see <https://www.gnu.org/licenses/lgpl-3.0.en.html>
+ * 
+ * Author: Peter Fronc <peter.fronc@qubitdigital.com>
+ */
+package com.qubit.topnet.eventonly;
+
+import com.qubit.topnet.AbstractHandlingThread;
+import com.qubit.topnet.Handler;
+import com.qubit.topnet.PoolType;
+import com.qubit.topnet.Request;
+import com.qubit.topnet.Response;
+import com.qubit.topnet.TestClient;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Peter Fronc <peter.fronc@qubitdigital.com>
+ */
+public class EventTypeServerTest {
+  
+  private static final int PORT = 34572;
+  
+  private EventTypeServer server;
+
+  public EventTypeServerTest() {
+  }
+  
+  public static class SleepingHandler extends Handler {
+    @Override
+    public boolean isBlocking() {
+      return true;
+    }
+
+    @Override
+    public boolean process(Request request, Response response)
+        throws Exception {
+      Thread.sleep(300);
+      response.print("slept");
+      return true;
+    }
+  }
+  
+  public static class StubbornHandler extends Handler {
+    static final CountDownLatch started = new CountDownLatch(1);
+    static volatile boolean finished = false;
+    
+    @Override
+    public boolean isBlocking() {
+      return true;
+    }
+
+    @Override
+    public boolean process(Request request, Response response)
+        throws Exception {
+      started.countDown();
+      long end = System.currentTimeMillis() + 300;
+      while (System.currentTimeMillis() < end) {
+        // ignores interruption
+      }
+      response.print("done");
+      finished = true;
+      return true;
+    }
+  }
+  
+  public static class OkHandler extends Handler {
+    @Override
+    public boolean process(Request request, Response response)
+        throws Exception {
+      response.print("ok");
+      return true;
+    }
+  }
+  
+  public static class LoopHandler extends Handler {
+    static final Set<Selector> selectors = 
+        Collections.newSetFromMap(new ConcurrentHashMap<Selector, Boolean>());
+    
+    @Override
+    public boolean process(Request request, Response response)
+        throws Exception {
+      // each loop threads share loop selector
+      selectors.add(((HandlingThread) Thread.currentThread())
+          .getChannelSelector());
+      response.print("loop");
+      return true;
+    }
+  }
+  
+  public static class LargeHandler extends Handler {
+    static final String BODY;
+    
+    static {
+      StringBuilder body = new StringBuilder();
+      while (body.length() < 4 * 1024 * 1024) {
+        body.append("0123456789abcdef");
+      }
+      BODY = body.append('.').toString();
+    }
+    
+    @Override
+    public boolean process(Request request, Response response)
+        throws Exception {
+      response.print(BODY);
+      return true;
+    }
+  }
+  
+  // every test uses own port, listening socket is released asynchronously 
+  // by stopping dispatcher
+  private EventTypeServer newServer(PoolType poolType, int port) {
+    this.server = new EventTypeServer("localhost", port);
+    this.server.setPoolType(poolType);
+    this.server.setMinimumThreadsAmount(1);
+    this.server.registerHandlerByPath("/sleep", new SleepingHandler());
+    this.server.registerHandlerByPath("/ok", new OkHandler());
+    this.server.registerHandlerByPath("/large", new LargeHandler());
+    this.server.registerHandlerByPath("/stubborn", new StubbornHandler());
+    this.server.registerHandlerByPath("/loop", new LoopHandler());
+    return this.server;
+  }
+  
+  private static int port(PoolType poolType) {
+    return PORT + poolType.ordinal();
+  }
+  
+  @After
+  public void tearDown() throws IOException {
+    if (this.server != null) {
+      this.server.stop();
+    }
+  }
+  
+  private long parks() {
+    long parks = 0;
+    for (AbstractHandlingThread thread : this.server.getAllHandlingThreads()) {
+      parks += thread.getWaiter().getParks();
+    }
+    return parks;
+  }
+
+  @Test
+  public void testOffloadedHandlerWakesOwningThread() throws Exception {
+    for (PoolType poolType : new PoolType[]{PoolType.QUEUE, PoolType.SELECTOR}) {
+      this.newServer(poolType, port(poolType)).start();
+      
+      try (Socket socket = new Socket("localhost", port(poolType))) {
+        socket.setSoTimeout(5000);
+        String request = "GET /sleep HTTP/1.1\r\nHost: x\r\n\r\n";
+        
+        long parks = this.parks();
+        String response = TestClient.send(socket, request);
+        assertTrue(response.endsWith("\r\n\r\nslept"));
+        // thread waits for handler to finish without polling every 1ms
+        assertTrue(this.parks() - parks < 30);
+        
+        // keep-alive connection is still served after offloading
+        response = TestClient.send(socket, request);
+        assertTrue(response.endsWith("\r\n\r\nslept"));
+      }
+      
+      this.server.stop();
+      this.server = null;
+    }
+  }
+  
+  @Test
+  public void testSelectorThreadWritesLargeResponses() throws Exception {
+    int port = PORT + 10;
+    // small buffers, so thread waits for write readiness many times
+    this.newServer(PoolType.SELECTOR, port).setChannelSendBufferSize(8192);
+    this.server.start();
+    
+    try (Socket socket = new Socket()) {
+      socket.setReceiveBufferSize(8192);
+      socket.setSoTimeout(5000);
+      socket.connect(new InetSocketAddress("localhost", port));
+      String request = "GET /large HTTP/1.1\r\nHost: x\r\n\r\n";
+      
+      for (int i = 0; i < 2; i++) { // reading interest is back after write
+        String response = TestClient.send(socket, request);
+        assertTrue(response.endsWith("\r\n\r\n" + LargeHandler.BODY));
+      }
+    }
+  }
+  
+  private List<HandlingThread> handlingThreads() {
+    List<HandlingThread> threads = new ArrayList<>();
+    for (HandlingThread thread : this.server.getHandlingThreads()) {
+      if (thread != null) {
+        threads.add(thread);
+      }
+    }
+    return threads;
+  }
+  
+  private void waitForJobs(List<HandlingThread> threads, long jobs) 
+      throws InterruptedException {
+    for (int i = 0; i < 500; i++) {
+      long left = 0;
+      for (HandlingThread thread : threads) {
+        left += thread.jobsLeft();
+      }
+      if (left == jobs) {
+        return;
+      }
+      Thread.sleep(10);
+    }
+    fail("Jobs left did not get to " + jobs);
+  }
+
+  @Test
+  public void testSelectorThreadsScaling() throws Exception {
+    int port = PORT + 11;
+    this.newServer(PoolType.SELECTOR, port);
+    this.server.setJobsPerThread(1);
+    this.server.setCachingThreads(false);
+    this.server.setScalingDownTryPeriodMS(0);
+    this.server.start();
+    
+    String request = "GET /ok HTTP/1.1\r\nHost: x\r\n\r\n";
+    Socket[] sockets = new Socket[6];
+    
+    try {
+      // dispatcher only accepts, each connection needs new thread
+      for (int i = 0; i < sockets.length; i++) {
+        sockets[i] = new Socket("localhost", port);
+        sockets[i].setSoTimeout(5000);
+        assertTrue(TestClient.send(sockets[i], request).endsWith("ok"));
+      }
+      
+      List<HandlingThread> scaled = this.handlingThreads();
+      assertEquals(sockets.length, scaled.size());
+      
+      Socket kept = sockets[sockets.length - 1];
+      for (int i = 0; i < sockets.length - 1; i++) {
+        sockets[i].close();
+      }
+      this.waitForJobs(scaled, 1);
+      
+      // next accept scales threads down
+      sockets[0] = new Socket("localhost", port);
+      sockets[0].setSoTimeout(5000);
+      assertTrue(TestClient.send(sockets[0], request).endsWith("ok"));
+      
+      List<HandlingThread> removed = new ArrayList<>(scaled);
+      removed.removeAll(this.handlingThreads());
+      assertFalse(removed.isEmpty());
+      
+      HandlingThread draining = null;
+      for (HandlingThread thread : removed) {
+        if (thread.hasJobs()) {
+          draining = thread;
+        }
+      }
+      
+      // removed thread still serves its connection
+      assertNotNull(draining);
+      assertTrue(draining.isAlive());
+      assertTrue(TestClient.send(kept, request).endsWith("ok"));
+      
+      kept.close();
+      for (HandlingThread thread : removed) {
+        thread.join(5000);
+        assertFalse(thread.isAlive());
+      }
+    } finally {
+      for (Socket socket : sockets) {
+        if (socket != null) {
+          socket.close();
+        }
+      }
+    }
+  }
+  
+  @Test
+  public void testStopWaitsForOffloadedHandlers() throws Exception {
+    int port = PORT + 12;
+    this.newServer(PoolType.SELECTOR, port).start();
+    
+    try (Socket socket = new Socket("localhost", port)) {
+      socket.setSoTimeout(5000);
+      socket.getOutputStream().write(
+          "GET /stubborn HTTP/1.1\r\nHost: x\r\n\r\n".getBytes());
+      assertTrue(StubbornHandler.started.await(5, TimeUnit.SECONDS));
+      
+      // connection buffers are released only after handler finished
+      this.server.stop();
+      assertTrue(StubbornHandler.finished);
+      this.server = null;
+    }
+  }
+  
+  @Test
+  public void testSelectorLoops() throws Exception {
+    for (boolean reusingPort : new boolean[]{false, true}) {
+      int port = reusingPort ? PORT + 14 : PORT + 13;
+      this.newServer(PoolType.QUEUE, port);
+      this.server.setSelectorThreadsAmount(3);
+      this.server.setMinimumThreadsAmount(3);
+      this.server.setReusingPort(reusingPort);
+      this.server.start();
+      
+      EventLoop[] loops = this.server.getEventLoops();
+      assertEquals(3, loops.length);
+      // handed over connections are accepted by first loop only
+      assertEquals(reusingPort && EventTypeServer.reusePortOption() != null,
+          loops[1].getServerChannel() != null);
+      
+      LoopHandler.selectors.clear();
+      String request = "GET /loop HTTP/1.1\r\nHost: x\r\n\r\n";
+      Socket[] sockets = new Socket[12];
+      
+      try {
+        for (int i = 0; i < sockets.length; i++) {
+          sockets[i] = new Socket("localhost", port);
+          sockets[i].setSoTimeout(5000);
+        }
+        
+        for (int i = 0; i < 2; i++) { // keep-alive connections served again
+          for (Socket socket : sockets) {
+            assertTrue(TestClient.send(socket, request).endsWith("loop"));
+          }
+        }
+      } finally {
+        for (Socket socket : sockets) {
+          if (socket != null) {
+            socket.close();
+          }
+        }
+      }
+      
+      assertTrue(LoopHandler.selectors.size() > 1);
+      
+      this.server.stop();
+      this.server = null;
+    }
+  }
+  
+  @Test
+  public void testStopClosesHandedOverChannels() throws Exception {
+    EventTypeServer notStarted = new EventTypeServer("localhost", PORT + 15);
+    EventLoop loop = new EventLoop(notStarted, 1, null, 1, 0);
+    
+    try (ServerSocketChannel listening = ServerSocketChannel.open()) {
+      listening.bind(new InetSocketAddress("localhost", 0));
+      
+      try (Socket client = new Socket("localhost", 
+          listening.socket().getLocalPort())) {
+        SocketChannel accepted = listening.accept();
+        
+        // loop did not register it yet
+        loop.handOver(accepted);
+        loop.stop();
+        
+        assertFalse(accepted.isOpen());
+        assertNull(loop.pollHandedOver());
+      }
+    } finally {
+      loop.getChannelSelector().close();
+    }
+  }
+}
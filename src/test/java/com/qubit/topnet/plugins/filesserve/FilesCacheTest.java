@@ -0,0 +1,162 @@
+/*
+ * topNET
+ * Fast HTTP Server Solution.
+ * Copyright 2016, Qubit Group <www.qubit.com>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  
+ * If not, see <https://www.gnu.org/licenses/lgpl-3.0.en.html>
+ * 
+ * Author: Peter Fronc <peter.fronc@qubitdigital.com>
+ */
+package com.qubit.topnet.plugins.filesserve;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Peter Fronc <peter.fronc@qubitdigital.com>
+ */
+public class FilesCacheTest {
+
+  public FilesCacheTest() {
+  }
+  
+  private static String read(ByteBuffer content) {
+    byte[] bytes = new byte[content.remaining()];
+    content.duplicate().get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void testCachingAndRevalidation() throws IOException {
+    File dir = Files.createTempDirectory("filescache").toFile();
+    File file = new File(dir, "a.txt");
+    Files.write(file.toPath(), "hello".getBytes(StandardCharsets.UTF_8));
+    
+    FilesCache cache = new FilesCache();
+    cache.setRevalidationPeriod(0);
+    
+    FilesCache.Entry entry = cache.get("/a.txt", file, false);
+    assertTrue(entry.getStat().exists());
+    assertEquals(5, entry.getStat().getSize());
+    assertNull(entry.getContent()); // requested once only
+    
+    entry = cache.get("/a.txt");
+    assertEquals("hello", read(entry.getContent()));
+    assertEquals(5, cache.getCachedBytes());
+    
+    Files.write(file.toPath(), "hello world".getBytes(StandardCharsets.UTF_8));
+    entry = cache.get("/a.txt");
+    assertEquals("hello world", read(entry.getContent()));
+    assertEquals(11, cache.getCachedBytes());
+    
+    assertTrue(file.delete());
+    entry = cache.get("/a.txt");
+    assertFalse(entry.getStat().exists());
+    assertNull(entry.getContent());
+    assertEquals(0, cache.getCachedBytes());
+    
+    FilesCache.Entry forbidden = cache.get("/../etc", dir, true);
+    assertTrue(forbidden.isForbidden());
+    assertTrue(dir.delete());
+  }
+
+  @Test
+  public void testBounds() throws IOException {
+    File dir = Files.createTempDirectory("filescache").toFile();
+    FilesCache cache = new FilesCache();
+    cache.setMaxEntries(4);
+    cache.setMaxCachedBytes(250);
+    cache.setMinHitsToCacheBytes(1);
+    
+    for (int i = 0; i < 20; i++) {
+      File file = new File(dir, i + ".txt");
+      Files.write(file.toPath(), new byte[100]);
+      cache.get("/" + i + ".txt", file, false);
+      // hot one stays
+      assertNotNull(cache.get("/0.txt").getContent());
+      assertTrue(cache.size() <= 4);
+      assertTrue(cache.getCachedBytes() <= 250);
+    }
+    
+    // evicted files get cached again and evicted again
+    cache.setMaxEntries(100);
+    for (int round = 0; round < 3; round++) {
+      for (int i = 0; i < 20; i++) {
+        cache.get("/" + i + ".txt", new File(dir, i + ".txt"), false);
+        assertTrue(cache.getCachedBytes() <= 250);
+      }
+    }
+    cache.setMaxEntries(4);
+    
+    // crawled paths do not grow cache
+    for (int i = 0; i < 100; i++) {
+      FilesCache.Entry entry = 
+          cache.get("/missing" + i, new File(dir, "missing" + i), false);
+      assertFalse(entry.getStat().exists());
+    }
+    assertTrue(cache.size() <= 4);
+    
+    for (File file : dir.listFiles()) {
+      file.delete();
+    }
+    dir.delete();
+  }
+  
+  @Test
+  public void testConcurrentCounters() 
+      throws IOException, InterruptedException {
+    File dir = Files.createTempDirectory("filescache").toFile();
+    File file = new File(dir, "a.txt");
+    Files.write(file.toPath(), "hello".getBytes(StandardCharsets.UTF_8));
+    
+    final FilesCache cache = new FilesCache();
+    cache.setRevalidationPeriod(60000);
+    final File served = file;
+    cache.get("/a.txt", served, false);
+    assertNotNull(cache.get("/a.txt").getContent());
+    long hits = cache.getHits();
+    long misses = cache.getMisses();
+    final int perThread = 100000;
+    Thread[] threads = new Thread[8];
+    
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          for (int j = 0; j < perThread; j++) {
+            cache.get("/a.txt", served, false);
+          }
+        }
+      };
+      threads[i].start();
+    }
+    
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    
+    int total = threads.length * perThread;
+    assertEquals(total + 2, cache.get("/a.txt").getHits() - 1);
+    assertEquals(hits + total + 1, cache.getHits());
+    assertEquals(misses, cache.getMisses());
+    
+    assertTrue(file.delete());
+    assertTrue(dir.delete());
+  }
+}
@@ -0,0 +1,152 @@
+/*
+ * topNET
+ * Fast HTTP Server Solution.
+ * Copyright 2016, Qubit Group <www.qubit.com>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  
+ * If not, see <https://www.gnu.org/licenses/lgpl-3.0.en.html>
+ * 
+ * Author: Peter Fronc <peter.fronc@qubitdigital.com>
+ */
+package com.qubit.topnet.plugins.filesserve;
+
+import com.qubit.topnet.ByteBufferChannel;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Peter Fronc <peter.fronc@qubitdigital.com>
+ */
+public class MappedFilesTest {
+
+  public MappedFilesTest() {
+  }
+  
+  private static String read(ByteBuffer content) {
+    byte[] bytes = new byte[content.remaining()];
+    content.duplicate().get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void testMappingAndReferences() throws IOException {
+    File dir = Files.createTempDirectory("mappedfiles").toFile();
+    File file = new File(dir, "a.txt");
+    Files.write(file.toPath(), "hello".getBytes(StandardCharsets.UTF_8));
+    
+    FilesCache cache = new FilesCache();
+    cache.setRevalidationPeriod(0);
+    MappedFiles mappedFiles = new MappedFiles();
+    mappedFiles.setMinFileSize(1);
+    
+    FilesCache.Entry entry = cache.get("/a.txt", file, false);
+    assertNull(mappedFiles.acquire(entry)); // not hot yet
+    
+    entry = cache.get("/a.txt");
+    entry = cache.get("/a.txt");
+    MappedFiles.Mapping first = mappedFiles.acquire(entry);
+    assertNotNull(first);
+    assertEquals("hello", read(first.getContent()));
+    assertTrue(first == mappedFiles.acquire(entry)); // shared
+    first.release();
+    
+    ByteBufferChannel channel = mappedFiles.openChannel(first, 1, 3);
+    assertEquals("ell", read(channel.getSource()));
+    assertEquals(1, mappedFiles.size());
+    assertEquals(5, mappedFiles.getMappedBytes());
+    
+    // new version is mapped, old one waits for its last reader
+    Files.write(file.toPath(), "hello world".getBytes(StandardCharsets.UTF_8));
+    entry = cache.get("/a.txt");
+    MappedFiles.Mapping second = mappedFiles.acquire(entry);
+    assertEquals("hello world", read(second.getContent()));
+    assertEquals(16, mappedFiles.getMappedBytes());
+    assertEquals(0, mappedFiles.getUnmapped());
+    assertEquals("ell", read(channel.getSource()));
+    
+    channel.close();
+    channel.close();
+    assertEquals(1, mappedFiles.getUnmapped());
+    assertEquals(11, mappedFiles.getMappedBytes());
+    
+    mappedFiles.clear();
+    assertEquals(0, mappedFiles.size());
+    assertEquals(11, mappedFiles.getMappedBytes()); // still referenced
+    second.release();
+    assertEquals(0, mappedFiles.getMappedBytes());
+    assertEquals(2, mappedFiles.getUnmapped());
+    
+    // limits
+    entry = cache.get("/a.txt");
+    mappedFiles.setMaxMappedBytes(10);
+    assertNull(mappedFiles.acquire(entry));
+    mappedFiles.setMaxMappedBytes(1024);
+    mappedFiles.setMinFileSize(12);
+    assertNull(mappedFiles.acquire(entry));
+    
+    assertTrue(file.delete());
+    assertTrue(dir.delete());
+  }
+  
+  @Test
+  public void testOlderStatKeepsNewerMapping() 
+      throws IOException, InterruptedException {
+    File dir = Files.createTempDirectory("mappedfiles").toFile();
+    File file = new File(dir, "b.txt");
+    Files.write(file.toPath(), "old".getBytes(StandardCharsets.UTF_8));
+    
+    // request which checked file before it changed
+    FilesCache before = new FilesCache();
+    before.get("/b.txt", file, false);
+    FilesCache.Entry stale = before.get("/b.txt");
+    
+    Thread.sleep(5);
+    Files.write(file.toPath(), "newer".getBytes(StandardCharsets.UTF_8));
+    FilesCache after = new FilesCache();
+    after.get("/b.txt", file, false);
+    FilesCache.Entry current = after.get("/b.txt");
+    
+    MappedFiles mappedFiles = new MappedFiles();
+    mappedFiles.setMinFileSize(1);
+    MappedFiles.Mapping mapping = mappedFiles.acquire(current);
+    assertEquals("newer", read(mapping.getContent()));
+    
+    assertNull(mappedFiles.acquire(stale));
+    assertTrue(mapping == mappedFiles.acquire(current));
+    assertEquals(1, mappedFiles.getMapped());
+    assertEquals(0, mappedFiles.getUnmapped());
+    assertEquals(5, mappedFiles.getMappedBytes());
+    
+    mapping.release();
+    mapping.release();
+    mappedFiles.clear();
+    assertEquals(0, mappedFiles.getMappedBytes());
+    
+    // reserved bytes are given back when file does not match stat
+    Files.write(file.toPath(), "changed again".getBytes(StandardCharsets.UTF_8));
+    FilesCache.Entry changing = new FilesCache().get("/b.txt", file, false);
+    Files.write(file.toPath(), "x".getBytes(StandardCharsets.UTF_8));
+    mappedFiles.setMinHits(1);
+    assertNull(mappedFiles.acquire(changing));
+    assertEquals(0, mappedFiles.getMappedBytes());
+    assertEquals(1, mappedFiles.getMapped());
+    
+    assertTrue(file.delete());
+    assertTrue(dir.delete());
+  }
+}
@@ -0,0 +1,133 @@
+/*
+ * topNET
+ * Fast HTTP Server Solution.
+ * Copyright 2016, Qubit Group <www.qubit.com>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  
+ * If not, see <https://www.gnu.org/licenses/lgpl-3.0.en.html>
+ * 
+ * Author: Peter Fronc <peter.fronc@qubitdigital.com>
+ */
+package com.qubit.topnet.waitonly;
+
+import com.qubit.topnet.Handler;
+import com.qubit.topnet.Request;
+import com.qubit.topnet.Response;
+import com.qubit.topnet.TestClient;
+import com.qubit.topnet.WaitStrategy;
+import java.io.IOException;
+import java.net.Socket;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Peter Fronc <peter.fronc@qubitdigital.com>
+ */
+public class WaitTypeServerTest {
+  
+  private static final int PORT = 34580;
+  // parked thread would wait this long if nothing woke it
+  private static final long MAX_PARKING_TIME = 10000;
+  private static final String REQUEST = "GET /ok HTTP/1.1\r\nHost: x\r\n\r\n";
+  
+  private WaitTypeServer server;
+
+  public WaitTypeServerTest() {
+  }
+  
+  public static class OkHandler extends Handler {
+    @Override
+    public boolean process(Request request, Response response)
+        throws Exception {
+      response.print("ok");
+      return true;
+    }
+  }
+  
+  // every test uses own port, listening socket is released asynchronously 
+  // by stopping dispatcher
+  private void startServer(int port) throws IOException {
+    this.server = new WaitTypeServer("localhost", port);
+    this.server.setMinimumThreadsAmount(1);
+    this.server.setAutoscalingThreads(false);
+    this.server.setWaitStrategy(WaitStrategy.BLOCKING);
+    this.server.setParkingOnSelector(true);
+    this.server.setMaxParkingTime(MAX_PARKING_TIME);
+    this.server.registerHandlerByPath("/ok", new OkHandler());
+    this.server.start();
+  }
+  
+  @After
+  public void tearDown() throws IOException {
+    if (this.server != null) {
+      this.server.stop();
+    }
+  }
+  
+  private Socket connect() throws IOException {
+    Socket socket = new Socket("localhost", this.server.getPort());
+    socket.setSoTimeout(5000);
+    return socket;
+  }
+  
+  private static long timeRequest(Socket socket) throws IOException {
+    long start = System.currentTimeMillis();
+    assertTrue(TestClient.send(socket, REQUEST).endsWith("\r\n\r\nok"));
+    return System.currentTimeMillis() - start;
+  }
+  
+  /**
+   * Checks that thread stays in one select() call, parks are counted when
+   * thread wakes up.
+   * 
+   * @return parks counted so far
+   */
+  private static long assertParked() throws InterruptedException {
+    Thread.sleep(100); // response is written, keep-alive connection is idle
+    long parked = HandlingThread.totalParkedIO;
+    long waited = HandlingThread.totalWaitedIO;
+    Thread.sleep(200);
+    assertEquals(parked, HandlingThread.totalParkedIO);
+    assertEquals(waited, HandlingThread.totalWaitedIO);
+    return parked;
+  }
+
+  @Test
+  public void testParkedThreadWokenByReadableData() throws Exception {
+    this.startServer(PORT);
+    
+    try (Socket socket = connect()) {
+      timeRequest(socket);
+      long parked = assertParked();
+      
+      assertTrue(timeRequest(socket) < MAX_PARKING_TIME / 5);
+      assertTrue(HandlingThread.totalParkedIO > parked);
+    }
+  }
+
+  @Test
+  public void testParkedThreadWokenByNewJob() throws Exception {
+    this.startServer(PORT + 1);
+    
+    try (Socket idle = connect()) {
+      timeRequest(idle);
+      assertParked();
+      
+      // new connection is not registered with selector of parked thread
+      try (Socket socket = connect()) {
+        assertTrue(timeRequest(socket) < MAX_PARKING_TIME / 5);
+      }
+    }
+  }
+}